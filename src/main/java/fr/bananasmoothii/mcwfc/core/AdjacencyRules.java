@@ -0,0 +1,157 @@
+package fr.bananasmoothii.mcwfc.core;
+
+import fr.bananasmoothii.mcwfc.core.util.Face;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The rules used by a {@link BitsetWave}: a number of patterns (numbered from 0), a weight for each pattern, and for
+ * each pattern and each enabled face, a bitset of the patterns that may be at that face. Only the enabled faces are
+ * stored and checked, so enabling fewer faces makes propagation faster.
+ * <p>
+ * The rules must not be modified while a {@link BitsetWave} uses them.
+ */
+public class AdjacencyRules {
+
+    private final int patternCount, words;
+    private final List<Face> faces;
+    /**
+     * index of each face in {@link #faces}, by {@link Face#ordinal()}, or -1 if it is not enabled
+     */
+    private final int[] faceIndexes = new int[Face.values().length];
+    /**
+     * for each face index and each pattern, the bitset of allowed neighbors, as {@link #words} longs
+     */
+    private final long[] allowed;
+    private final double[] weights;
+
+    /**
+     * Creates rules where nothing is allowed, and every weight is 1
+     * @param faces the enabled faces
+     */
+    public AdjacencyRules(int patternCount, @NotNull List<Face> faces) {
+        if (patternCount < 1) throw new IllegalArgumentException("there must be at least one pattern");
+        this.patternCount = patternCount;
+        this.faces = List.copyOf(faces);
+        words = (patternCount + 63) / 64;
+        Arrays.fill(faceIndexes, -1);
+        for (int i = 0; i < this.faces.size(); i++) {
+            if (faceIndexes[this.faces.get(i).ordinal()] != -1)
+                throw new IllegalArgumentException("the face " + this.faces.get(i) + " is there twice");
+            faceIndexes[this.faces.get(i).ordinal()] = i;
+        }
+        allowed = new long[this.faces.size() * patternCount * words];
+        weights = new double[patternCount];
+        Arrays.fill(weights, 1);
+    }
+
+    public int getPatternCount() {
+        return patternCount;
+    }
+
+    /**
+     * @return the enabled faces
+     */
+    public @NotNull List<Face> getFaces() {
+        return faces;
+    }
+
+    /**
+     * @return the number of longs in each bitset of patterns
+     */
+    public int getWords() {
+        return words;
+    }
+
+    /**
+     * Allows neighbor to be at that face of pattern
+     * @throws IllegalArgumentException if that face is not enabled
+     */
+    public void allow(int pattern, @NotNull Face face, int neighbor) {
+        checkPattern(neighbor);
+        allowed[offset(pattern, faceIndex(face)) + (neighbor >> 6)] |= 1L << neighbor;
+    }
+
+    /**
+     * Allows every pattern to be at that face of pattern
+     * @throws IllegalArgumentException if that face is not enabled
+     */
+    public void allowAll(int pattern, @NotNull Face face) {
+        final int offset = offset(pattern, faceIndex(face));
+        for (int neighbor = 0; neighbor < patternCount; neighbor++) {
+            allowed[offset + (neighbor >> 6)] |= 1L << neighbor;
+        }
+    }
+
+    /**
+     * Replaces 64 bits of the bitset of patterns allowed at that face of pattern, the ones of patterns
+     * {@code wordIndex * 64} to {@code wordIndex * 64 + 63}. Bits of patterns that don't exist are ignored.
+     * @throws IllegalArgumentException if that face is not enabled
+     */
+    public void setAllowedWord(int pattern, @NotNull Face face, int wordIndex, long word) {
+        if (wordIndex < 0 || wordIndex >= words)
+            throw new IndexOutOfBoundsException("no word " + wordIndex + " in bitsets of " + words + " words");
+        if (wordIndex == words - 1 && (patternCount & 63) != 0) word &= (1L << patternCount) - 1;
+        allowed[offset(pattern, faceIndex(face)) + wordIndex] = word;
+    }
+
+    /**
+     * @return whether neighbor may be at that face of pattern. This is always true for faces that are not enabled.
+     */
+    @Contract(pure = true)
+    public boolean isAllowed(int pattern, @NotNull Face face, int neighbor) {
+        checkPattern(neighbor);
+        final int faceIndex = faceIndexes[face.ordinal()];
+        if (faceIndex == -1) return true;
+        return (allowed[offset(pattern, faceIndex) + (neighbor >> 6)] & 1L << neighbor) != 0;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the weight is not strictly positive
+     */
+    public void setWeight(int pattern, double weight) {
+        checkPattern(pattern);
+        if (!(weight > 0)) throw new IllegalArgumentException("weights must be strictly positive");
+        weights[pattern] = weight;
+    }
+
+    @Contract(pure = true)
+    public double getWeight(int pattern) {
+        checkPattern(pattern);
+        return weights[pattern];
+    }
+
+    /**
+     * @return the index of that face in {@link #getFaces()}
+     * @throws IllegalArgumentException if that face is not enabled
+     */
+    @Contract(pure = true)
+    public int faceIndex(@NotNull Face face) {
+        final int faceIndex = faceIndexes[face.ordinal()];
+        if (faceIndex == -1) throw new IllegalArgumentException("the face " + face + " is not enabled");
+        return faceIndex;
+    }
+
+    /**
+     * Adds (with a binary or) the patterns allowed at that face of that pattern to into
+     */
+    void addAllowed(int faceIndex, int pattern, long @NotNull [] into) {
+        final int offset = offset(pattern, faceIndex);
+        for (int i = 0; i < words; i++) {
+            into[i] |= allowed[offset + i];
+        }
+    }
+
+    private int offset(int pattern, int faceIndex) {
+        checkPattern(pattern);
+        return (faceIndex * patternCount + pattern) * words;
+    }
+
+    private void checkPattern(int pattern) {
+        if (pattern < 0 || pattern >= patternCount)
+            throw new IndexOutOfBoundsException("no pattern with id " + pattern);
+    }
+}
@@ -0,0 +1,262 @@
+package fr.bananasmoothii.mcwfc.core;
+
+import fr.bananasmoothii.mcwfc.core.Wave.GenerationFailedException;
+import fr.bananasmoothii.mcwfc.core.util.Bounds;
+import fr.bananasmoothii.mcwfc.core.util.Face;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A wave where the possible states of each cell are patterns numbered from 0, stored as a bitset, and where the rules
+ * are given by {@link AdjacencyRules}. When the states of a cell change, the states of each neighbor (at each enabled
+ * face) are intersected with the union of the patterns allowed next to the remaining states. Nothing else than these
+ * bitsets is allocated while collapsing.
+ * <p>
+ * On an impossible state, the wave is not restored like in {@link Wave}: the whole collapse is tried again with another
+ * random, at most {@link #getMaxAttempts()} times.
+ */
+public class BitsetWave {
+
+    private final AdjacencyRules rules;
+    private final Bounds bounds;
+    private final boolean useModuloCoords;
+    private final long seed;
+    private final int xSize, ySize, zSize, words;
+    private final List<Face> faces;
+    /**
+     * the states of each cell, looping over X, then Y, then Z, as {@link #words} longs for each cell
+     */
+    private final long[] states;
+    private final int[] stateCounts;
+    private final int[] stack;
+    private final boolean[] inStack;
+    private final long[] allowed;
+    private int maxAttempts = 10;
+
+    /**
+     * @param useModuloCoords whether the faces at the limit of the bounds see the other side of the bounds, or nothing
+     *                        ({@code true} means the result can be repeated like a tile)
+     */
+    public BitsetWave(@NotNull AdjacencyRules rules, @NotNull Bounds bounds, boolean useModuloCoords, long seed) {
+        this.rules = rules;
+        this.bounds = bounds;
+        this.useModuloCoords = useModuloCoords;
+        this.seed = seed;
+        xSize = bounds.xSize();
+        ySize = bounds.ySize();
+        zSize = bounds.zSize();
+        words = rules.getWords();
+        faces = rules.getFaces();
+        final int cellCount = xSize * ySize * zSize;
+        states = new long[cellCount * words];
+        stateCounts = new int[cellCount];
+        stack = new int[cellCount];
+        inStack = new boolean[cellCount];
+        allowed = new long[words];
+        reset();
+    }
+
+    public @NotNull AdjacencyRules getRules() {
+        return rules;
+    }
+
+    public @NotNull Bounds getBounds() {
+        return bounds;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public void setMaxAttempts(int maxAttempts) {
+        if (maxAttempts < 1) throw new IllegalArgumentException("there must be at least one attempt");
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Collapses every cell
+     * @throws GenerationFailedException if every attempt led to an impossible state
+     */
+    public void collapseAll() throws GenerationFailedException {
+        for (int attempt = 0; attempt < maxAttempts; attempt++) {
+            reset();
+            if (tryCollapse(new Random(seed + attempt * 0x9E3779B97F4A7C15L))) return;
+        }
+        throw new GenerationFailedException("Encountered an impossible state in each of the " + maxAttempts
+                + " attempts");
+    }
+
+    private void reset() {
+        final long lastWord = rules.getPatternCount() % 64 == 0 ? -1L : (1L << rules.getPatternCount()) - 1;
+        for (int cell = 0; cell < stateCounts.length; cell++) {
+            Arrays.fill(states, cell * words, cell * words + words - 1, -1L);
+            states[cell * words + words - 1] = lastWord;
+            stateCounts[cell] = rules.getPatternCount();
+        }
+    }
+
+    /**
+     * @return false if an impossible state was encountered
+     */
+    private boolean tryCollapse(@NotNull Random random) {
+        // some patterns may be impossible whatever the neighbors are
+        int stackSize = 0;
+        for (int cell = 0; cell < stateCounts.length; cell++) {
+            stack[stackSize++] = cell;
+            inStack[cell] = true;
+        }
+        if (!propagate(stackSize)) return false;
+        while (true) {
+            final int cell = chooseLowEntropyCell(random);
+            if (cell == -1) return true;
+            collapse(cell, random);
+            stack[0] = cell;
+            inStack[cell] = true;
+            if (!propagate(1)) return false;
+        }
+    }
+
+    /**
+     * @return the cell with the fewest states (but more than 1), or -1 if every cell is collapsed
+     */
+    private int chooseLowEntropyCell(@NotNull Random random) {
+        int lowest = Integer.MAX_VALUE, chosen = -1, ties = 0;
+        for (int cell = 0; cell < stateCounts.length; cell++) {
+            final int count = stateCounts[cell];
+            if (count <= 1 || count > lowest) continue;
+            if (count < lowest) {
+                lowest = count;
+                chosen = cell;
+                ties = 1;
+            } else if (random.nextInt(++ties) == 0) {
+                chosen = cell;
+            }
+        }
+        return chosen;
+    }
+
+    private void collapse(int cell, @NotNull Random random) {
+        final int offset = cell * words;
+        double totalWeight = 0;
+        for (int i = 0; i < words; i++) {
+            for (long word = states[offset + i]; word != 0; word &= word - 1) {
+                totalWeight += rules.getWeight(i * 64 + Long.numberOfTrailingZeros(word));
+            }
+        }
+        double target = random.nextDouble() * totalWeight;
+        int chosen = -1;
+        search:
+        for (int i = 0; i < words; i++) {
+            for (long word = states[offset + i]; word != 0; word &= word - 1) {
+                chosen = i * 64 + Long.numberOfTrailingZeros(word);
+                target -= rules.getWeight(chosen);
+                if (target < 0) break search;
+            }
+        }
+        Arrays.fill(states, offset, offset + words, 0L);
+        states[offset + (chosen >> 6)] = 1L << chosen;
+        stateCounts[cell] = 1;
+    }
+
+    /**
+     * Propagates the changes of the cells in the stack
+     * @return false if a cell has no state left
+     */
+    private boolean propagate(int stackSize) {
+        boolean possible = true;
+        while (stackSize > 0) {
+            final int cell = stack[--stackSize];
+            inStack[cell] = false;
+            if (!possible) continue; // only empties the stack
+            final int x = cell / (ySize * zSize), y = cell / zSize % ySize, z = cell % zSize;
+            for (int faceIndex = 0; faceIndex < faces.size(); faceIndex++) {
+                final Face face = faces.get(faceIndex);
+                final int neighbor = neighbor(x + face.getModX(), y + face.getModY(), z + face.getModZ());
+                if (neighbor == -1) continue;
+                Arrays.fill(allowed, 0L);
+                final int offset = cell * words;
+                for (int i = 0; i < words; i++) {
+                    for (long word = states[offset + i]; word != 0; word &= word - 1) {
+                        rules.addAllowed(faceIndex, i * 64 + Long.numberOfTrailingZeros(word), allowed);
+                    }
+                }
+                final int neighborOffset = neighbor * words;
+                int count = 0;
+                boolean changed = false;
+                for (int i = 0; i < words; i++) {
+                    final long old = states[neighborOffset + i], restricted = old & allowed[i];
+                    if (restricted != old) {
+                        states[neighborOffset + i] = restricted;
+                        changed = true;
+                    }
+                    count += Long.bitCount(restricted);
+                }
+                if (!changed) continue;
+                stateCounts[neighbor] = count;
+                if (count == 0) {
+                    possible = false;
+                    break;
+                }
+                if (!inStack[neighbor]) {
+                    inStack[neighbor] = true;
+                    stack[stackSize++] = neighbor;
+                }
+            }
+        }
+        return possible;
+    }
+
+    /**
+     * @param x relative to the bounds, may be out of them
+     * @return the index of that cell, or -1 if it is out of the bounds and modulo coords are not used
+     */
+    private int neighbor(int x, int y, int z) {
+        if (useModuloCoords) {
+            x = Math.floorMod(x, xSize);
+            y = Math.floorMod(y, ySize);
+            z = Math.floorMod(z, zSize);
+        } else if (x < 0 || x >= xSize || y < 0 || y >= ySize || z < 0 || z >= zSize) {
+            return -1;
+        }
+        return (x * ySize + y) * zSize + z;
+    }
+
+    private int cell(int x, int y, int z) {
+        if (!bounds.contains(x, y, z))
+            throw new IndexOutOfBoundsException(x + " " + y + " " + z + " is out of the bounds " + bounds);
+        return ((x - bounds.xMin()) * ySize + y - bounds.yMin()) * zSize + z - bounds.zMin();
+    }
+
+    /**
+     * @return the number of patterns that are still possible in that cell
+     */
+    @Contract(pure = true)
+    public int getStateCount(int x, int y, int z) {
+        return stateCounts[cell(x, y, z)];
+    }
+
+    @Contract(pure = true)
+    public boolean isPossible(int x, int y, int z, int pattern) {
+        if (pattern < 0 || pattern >= rules.getPatternCount())
+            throw new IndexOutOfBoundsException("no pattern with id " + pattern);
+        return (states[cell(x, y, z) * words + (pattern >> 6)] & 1L << pattern) != 0;
+    }
+
+    /**
+     * @return the pattern of that cell, or -1 if it is not collapsed
+     */
+    @Contract(pure = true)
+    public int getPattern(int x, int y, int z) {
+        final int cell = cell(x, y, z);
+        if (stateCounts[cell] != 1) return -1;
+        for (int i = 0; i < words; i++) {
+            final long word = states[cell * words + i];
+            if (word != 0) return i * 64 + Long.numberOfTrailingZeros(word);
+        }
+        throw new IllegalStateException("a cell has a state count of 1 but no state");
+    }
+}
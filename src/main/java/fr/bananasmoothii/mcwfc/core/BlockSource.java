@@ -0,0 +1,56 @@
+package fr.bananasmoothii.mcwfc.core;
+
+import fr.bananasmoothii.mcwfc.core.util.Bounds;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.Objects;
+
+/**
+ * Something where blocks can be read one X layer at a time, without having everything in memory. This is what
+ * {@link StreamingSampleExtractor} reads. It can be a file or a world, or any {@link VirtualSpace} (including a
+ * {@link MappedVirtualSpace}) with {@link #of(VirtualSpace, Object)}.
+ * @param <B> the type of blocks. In vanilla minecraft, this can be {@code BlockData}.
+ */
+public interface BlockSource<B> {
+
+    /**
+     * @return the bounds of the blocks that can be read, they must never change
+     */
+    @NotNull Bounds getBounds();
+
+    /**
+     * Reads every block having that x coordinate. Layers may be read in any order, and more than once.
+     * @return a new array of length {@code ySize * zSize} without {@code null}, where the block at y, z is at
+     * {@code (y - yMin) * zSize + (z - zMin)}
+     */
+    @NotNull B @NotNull [] readLayer(int x) throws IOException;
+
+    /**
+     * @param defaultBlock the block used where there is nothing in the space
+     * @return a source reading that space, in its bounds at the time this method is called
+     */
+    static <B> @NotNull BlockSource<B> of(@NotNull VirtualSpace<B> space, @NotNull B defaultBlock) {
+        Objects.requireNonNull(defaultBlock);
+        final Bounds bounds = space.getBounds();
+        return new BlockSource<>() {
+            @Override
+            public @NotNull Bounds getBounds() {
+                return bounds;
+            }
+
+            @Override
+            public @NotNull B @NotNull [] readLayer(int x) {
+                @SuppressWarnings("unchecked")
+                final B[] layer = (B[]) new Object[bounds.ySize() * bounds.zSize()];
+                int index = 0;
+                for (int y = bounds.yMin(); y <= bounds.yMax(); y++) {
+                    for (int z = bounds.zMin(); z <= bounds.zMax(); z++) {
+                        layer[index++] = space.getOrDefault(x, y, z, defaultBlock);
+                    }
+                }
+                return layer;
+            }
+        };
+    }
+}
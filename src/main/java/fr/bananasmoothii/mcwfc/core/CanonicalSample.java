@@ -0,0 +1,121 @@
+package fr.bananasmoothii.mcwfc.core;
+
+import fr.bananasmoothii.mcwfc.core.util.Symmetry;
+import fr.bananasmoothii.mcwfc.core.util.WeightedSet;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A compact version of a {@link Sample} where rotated and flipped versions of a {@link PieceNeighbors} are stored only
+ * once. Each element is a <i>canonical orientation</i> (the first orientation that was added), and its weight is the
+ * number of times any of its orientations was added. Nothing else is stored: the other orientations are only computed
+ * when needed, with {@link #getSymmetryMask(PieceNeighbors.Locked)}. {@link #expand()} gives the full {@link Sample},
+ * with every orientation.
+ * <p>
+ * Adding a {@link PieceNeighbors.Locked} that is already an element is O(1). Otherwise, its orientations are computed
+ * one by one until one of them is an element, see {@link #canonicalize(PieceNeighbors.Locked)}.
+ * @param <B> the type of the blocks in the {@link Piece}s. For example, in bukkit, this is BlockData.
+ */
+public class CanonicalSample<B> extends WeightedSet<PieceNeighbors.Locked<B>> {
+
+    private final boolean allowUpsideDown;
+
+    /**
+     * @param allowUpsideDown whether to use all the 48 symmetries, or only the 8 keeping the Y axis, see
+     *                        {@link Symmetry#all(boolean)}
+     */
+    public CanonicalSample(boolean allowUpsideDown) {
+        this.allowUpsideDown = allowUpsideDown;
+    }
+
+    public boolean allowsUpsideDown() {
+        return allowUpsideDown;
+    }
+
+    /**
+     * Adds the weight to the canonical orientation of e
+     */
+    @Override
+    public void add(PieceNeighbors.Locked<B> e, int weight) {
+        super.add(canonicalize(e), weight);
+    }
+
+    /**
+     * @return the element of this sample that is an orientation of these piece neighbors, or pieceNeighbors itself if
+     * there is none. This doesn't modify the sample.
+     */
+    @Contract(pure = true)
+    public @NotNull PieceNeighbors.Locked<B> canonicalize(@NotNull PieceNeighbors.Locked<B> pieceNeighbors) {
+        if (contains(pieceNeighbors)) return pieceNeighbors;
+        long mask = orientationsMask(pieceNeighbors) & ~1L; // the identity was just checked
+        for (; mask != 0; mask &= mask - 1) {
+            final PieceNeighbors.Locked<B> sibling =
+                    pieceNeighbors.transform(Symmetry.get(Long.numberOfTrailingZeros(mask)));
+            if (contains(sibling)) return sibling;
+        }
+        return pieceNeighbors;
+    }
+
+    /**
+     * @param canonical an element of this sample
+     * @return a mask where bit {@link Symmetry#getIndex() i} is set if {@link Symmetry#get(int) Symmetry.get(i)} gives
+     * an orientation of canonical. Each of its distinct orientations is given by exactly one of these symmetries, and
+     * {@link Symmetry#IDENTITY} is always there. This is 0 if canonical is not an element of this sample.
+     */
+    @Contract(pure = true)
+    public long getSymmetryMask(@NotNull PieceNeighbors.Locked<B> canonical) {
+        return contains(canonical) ? orientationsMask(canonical) : 0;
+    }
+
+    /**
+     * @return one symmetry (the first in {@link Symmetry#all(boolean)}) for each distinct orientation, computed from
+     * the {@link PieceNeighbors.Locked#getStabilizerMask() stabilizer mask} without transforming anything
+     */
+    private long orientationsMask(@NotNull PieceNeighbors.Locked<B> pieceNeighbors) {
+        final long stabilizer = pieceNeighbors.getStabilizerMask();
+        long done = 0, mask = 0;
+        for (Symmetry symmetry : Symmetry.all(allowUpsideDown)) {
+            if ((done & 1L << symmetry.getIndex()) != 0) continue;
+            mask |= 1L << symmetry.getIndex();
+            done |= symmetry.precededBy(stabilizer);
+        }
+        return mask;
+    }
+
+    /**
+     * @return the number of distinct orientations of all elements, this is the size that {@link #expand()} will have
+     */
+    @Contract(pure = true)
+    public int expandedSize() {
+        int size = 0;
+        for (PieceNeighbors.Locked<B> canonical : this) {
+            size += Long.bitCount(getSymmetryMask(canonical));
+        }
+        return size;
+    }
+
+    /**
+     * @return a new {@link Sample} containing every orientation of every element, each having the weight of its
+     * canonical orientation. This is the same as what {@link MCVirtualSpace#generatePieces(int, boolean, boolean)}
+     * gives.
+     */
+    @Contract(pure = true)
+    public @NotNull Sample<B> expand() {
+        final Sample<B> sample = new Sample<>();
+        final Iterator<Map.Entry<PieceNeighbors.Locked<B>, Integer>> iter = elementsAndWeightsIterator();
+        while (iter.hasNext()) {
+            final Map.Entry<PieceNeighbors.Locked<B>, Integer> entry = iter.next();
+            final PieceNeighbors.Locked<B> canonical = entry.getKey();
+            long mask = getSymmetryMask(canonical);
+            while (mask != 0) {
+                final int index = Long.numberOfTrailingZeros(mask);
+                mask &= mask - 1;
+                sample.add(canonical.transform(Symmetry.get(index)), entry.getValue());
+            }
+        }
+        return sample;
+    }
+}
@@ -0,0 +1,422 @@
+package fr.bananasmoothii.mcwfc.core;
+
+import fr.bananasmoothii.mcwfc.core.util.Codec;
+import fr.bananasmoothii.mcwfc.core.util.Face;
+import fr.bananasmoothii.mcwfc.core.util.Palette;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+
+/**
+ * An immutable version of a {@link Sample} where everything is stored as ids in a single {@link ByteBuffer}: the
+ * pieces as block ids, the {@link PieceNeighbors} (called patterns here) as piece ids with their weight, and for each
+ * piece and each cartesian face, a bitset of the pieces that can be next to it. The buffer has the same format as the
+ * file written by {@link #write(Sample, OutputStream, Codec)}, so a file can be {@link #map(Path, Codec) mapped} and
+ * used directly, and many waves can share the same read-only copy. Only the block palette is read into objects.
+ * <p>
+ * Ids are the ones given by a {@link PieceRegistry} created from the sample. This is thread-safe.
+ * @param <B> the type of the blocks in the {@link Piece}s. For example, in bukkit, this is BlockData.
+ */
+public final class CompiledRuleset<B> {
+
+    /*
+        Format (big endian):
+         - int magic, short version
+         - int xSize, ySize, zSize of the pieces (0 if there is no piece)
+         - int palette size, piece count, pattern count, palette length in bytes
+         - every block of the palette written with the Codec
+         - padding up to a multiple of 8 bytes
+         - for each piece: xSize * ySize * zSize int block ids, looping over X, then Y, then Z
+         - for each pattern: int center piece id, int weight, then for each cartesian face (by ordinal) an int piece
+           id, PieceRegistry.NO_NEIGHBOR or PieceRegistry.ANY_NEIGHBOR
+         - padding up to a multiple of 8 bytes
+         - for each piece and each cartesian face (by ordinal): a bitset of the pieces that can be at that face, as
+           (piece count + 63) / 64 longs. Bit i of long j is piece j * 64 + i.
+     */
+    private static final int MAGIC = 0x4D435752; // "MCWR"
+    private static final short VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 2 + 7 * 4;
+    private static final int PATTERN_INTS = 2 + PieceRegistry.FACES;
+
+    private final ByteBuffer buffer;
+    private final B[] palette;
+    private final int xSize, ySize, zSize, pieceCount, patternCount, wordsPerBitset;
+    private final int piecesOffset, patternsOffset, adjacencyOffset;
+    private final long totalWeight;
+
+    @SuppressWarnings("unchecked")
+    private CompiledRuleset(@NotNull ByteBuffer buffer, @NotNull Codec<B> codec) throws IOException {
+        // the copy is always big endian, whatever the order of the given buffer is
+        this.buffer = buffer.asReadOnlyBuffer();
+        final int limit = this.buffer.limit();
+        if (limit < HEADER_SIZE || this.buffer.getInt(0) != MAGIC)
+            throw new IOException("this is not a compiled ruleset");
+        final short version = this.buffer.getShort(4);
+        if (version != VERSION) throw new IOException("unsupported compiled ruleset version: " + version);
+        xSize = this.buffer.getInt(6);
+        ySize = this.buffer.getInt(10);
+        zSize = this.buffer.getInt(14);
+        final int paletteSize = this.buffer.getInt(18);
+        pieceCount = this.buffer.getInt(22);
+        patternCount = this.buffer.getInt(26);
+        final int paletteLength = this.buffer.getInt(30);
+        if (xSize < 0 || ySize < 0 || zSize < 0 || paletteSize < 0 || pieceCount < 0 || patternCount < 0
+                || paletteLength < 0)
+            throw new IOException("invalid compiled ruleset header");
+        if (paletteLength > limit - HEADER_SIZE)
+            throw new IOException("the compiled ruleset is truncated, its palette doesn't fit in " + limit + " bytes");
+        // blocks of the palette are all different, so only one of them may be written with 0 bytes
+        if (paletteSize > Math.max(1, paletteLength))
+            throw new IOException("invalid palette size: " + paletteSize + " blocks in " + paletteLength + " bytes");
+
+        final byte[] paletteBytes = new byte[paletteLength];
+        this.buffer.get(HEADER_SIZE, paletteBytes);
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(paletteBytes));
+        palette = (B[]) new Object[paletteSize];
+        for (int i = 0; i < paletteSize; i++) {
+            palette[i] = codec.read(in);
+        }
+
+        wordsPerBitset = (pieceCount + 63) / 64;
+        // computed with longs, as a corrupted header could make them overflow
+        final long piecesOffset = align(HEADER_SIZE + (long) paletteLength);
+        final long patternsOffset = piecesOffset + (long) pieceCount * xSize * ySize * zSize * 4;
+        final long adjacencyOffset = align(patternsOffset + (long) patternCount * PATTERN_INTS * 4);
+        final long length = adjacencyOffset + (long) pieceCount * PieceRegistry.FACES * wordsPerBitset * 8;
+        if (limit < length)
+            throw new IOException("the compiled ruleset is truncated, its length is " + limit + " instead of " + length);
+        this.piecesOffset = (int) piecesOffset;
+        this.patternsOffset = (int) patternsOffset;
+        this.adjacencyOffset = (int) adjacencyOffset;
+        long totalWeight = 0;
+        for (int pattern = 0; pattern < patternCount; pattern++) {
+            totalWeight += getWeight(pattern);
+        }
+        this.totalWeight = totalWeight;
+    }
+
+    private static long align(long offset) {
+        return (offset + 7) & ~7;
+    }
+
+    /**
+     * Compiles that sample in memory, this is the same as writing it and mapping it
+     * @param codec used to write the palette, it is needed as the result has the same format as a file
+     */
+    public static <B> @NotNull CompiledRuleset<B> compile(@NotNull Sample<B> sample, @NotNull Codec<B> codec) {
+        final PieceRegistry<B> registry = new PieceRegistry<>(sample);
+        return compile(registry, weights(registry, sample), codec);
+    }
+
+    /**
+     * Same as {@link #compile(Sample, Codec)} for every {@link PieceNeighbors} of that registry
+     * @param weights the weight of each neighborhood id of the registry
+     */
+    static <B> @NotNull CompiledRuleset<B> compile(@NotNull PieceRegistry<B> registry, int @NotNull [] weights,
+                                                   @NotNull Codec<B> codec) {
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            write(registry, weights, bytes, codec);
+            return new CompiledRuleset<>(ByteBuffer.wrap(bytes.toByteArray()), codec);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static <B> int @NotNull [] weights(@NotNull PieceRegistry<B> registry, @NotNull Sample<B> sample) {
+        final int[] weights = new int[registry.neighborhoodCount()];
+        for (int pattern = 0; pattern < weights.length; pattern++) {
+            weights[pattern] = sample.getWeight(registry.getNeighborhood(pattern));
+        }
+        return weights;
+    }
+
+    /**
+     * Reads a compiled ruleset from that buffer (from its position 0 to its limit, as big endian whatever its order
+     * is). The buffer is used directly, so it must not be modified after this.
+     */
+    public static <B> @NotNull CompiledRuleset<B> of(@NotNull ByteBuffer buffer, @NotNull Codec<B> codec)
+            throws IOException {
+        return new CompiledRuleset<>(buffer, codec);
+    }
+
+    /**
+     * Maps a file written by {@link #write(Sample, OutputStream, Codec)} in memory. The file must not be modified
+     * while the result is used.
+     */
+    public static <B> @NotNull CompiledRuleset<B> map(@NotNull Path file, @NotNull Codec<B> codec) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new CompiledRuleset<>(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), codec);
+        }
+    }
+
+    /**
+     * Writes the compiled version of that sample
+     * @throws IllegalArgumentException if the pieces in the sample don't all have the same size, or if an element has
+     * a neighbor on a face that is not {@link Face#isCartesian() cartesian}, see {@link PieceRegistry}
+     */
+    public static <B> void write(@NotNull Sample<B> sample, @NotNull OutputStream out, @NotNull Codec<B> codec)
+            throws IOException {
+        final PieceRegistry<B> registry = new PieceRegistry<>(sample);
+        write(registry, weights(registry, sample), out, codec);
+    }
+
+    /**
+     * Writes every {@link PieceNeighbors} of that registry, with these weights
+     * @param weights the weight of each neighborhood id of the registry
+     * @throws IllegalArgumentException if the pieces in the registry don't all have the same size
+     */
+    static <B> void write(@NotNull PieceRegistry<B> registry, int @NotNull [] weights, @NotNull OutputStream out,
+                          @NotNull Codec<B> codec) throws IOException {
+        final int pieceCount = registry.pieceCount(), patternCount = registry.neighborhoodCount();
+        if (weights.length != patternCount)
+            throw new IllegalArgumentException("there are " + weights.length + " weights for " + patternCount
+                    + " patterns");
+        final int xSize, ySize, zSize;
+        if (pieceCount == 0) {
+            xSize = ySize = zSize = 0;
+        } else {
+            final Piece.Locked<B> first = registry.getPiece(0);
+            xSize = first.xSize;
+            ySize = first.ySize;
+            zSize = first.zSize;
+        }
+        final Palette<B> palette = new Palette<>();
+        final int[] blockIds = new int[pieceCount * xSize * ySize * zSize];
+        int index = 0;
+        for (int pieceId = 0; pieceId < pieceCount; pieceId++) {
+            final Piece.Locked<B> piece = registry.getPiece(pieceId);
+            if (piece.xSize != xSize || piece.ySize != ySize || piece.zSize != zSize)
+                throw new IllegalArgumentException("all pieces must have the same size");
+            for (int x = 0; x < xSize; x++) {
+                for (int y = 0; y < ySize; y++) {
+                    for (int z = 0; z < zSize; z++) {
+                        blockIds[index++] = palette.getOrCreateId(piece.get(x, y, z));
+                    }
+                }
+            }
+        }
+        final ByteArrayOutputStream paletteBytes = new ByteArrayOutputStream();
+        final DataOutputStream paletteOut = new DataOutputStream(paletteBytes);
+        for (B block : palette) {
+            codec.write(block, paletteOut);
+        }
+        paletteOut.flush();
+
+        final int wordsPerBitset = (pieceCount + 63) / 64;
+        final long[] adjacency = new long[pieceCount * PieceRegistry.FACES * wordsPerBitset];
+        for (int pattern = 0; pattern < patternCount; pattern++) {
+            final int center = registry.getCenterPieceId(pattern);
+            for (Face face : Face.getCartesianFaces()) {
+                final int neighbor = registry.getNeighborId(pattern, face);
+                final int bitset = (center * PieceRegistry.FACES + face.ordinal()) * wordsPerBitset;
+                if (neighbor == PieceRegistry.ANY_NEIGHBOR) {
+                    for (int piece = 0; piece < pieceCount; piece++) {
+                        adjacency[bitset + (piece >> 6)] |= 1L << piece;
+                    }
+                } else if (neighbor != PieceRegistry.NO_NEIGHBOR) {
+                    adjacency[bitset + (neighbor >> 6)] |= 1L << neighbor;
+                }
+            }
+        }
+
+        final DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        data.writeInt(MAGIC);
+        data.writeShort(VERSION);
+        data.writeInt(xSize);
+        data.writeInt(ySize);
+        data.writeInt(zSize);
+        data.writeInt(palette.size());
+        data.writeInt(pieceCount);
+        data.writeInt(patternCount);
+        data.writeInt(paletteBytes.size());
+        paletteBytes.writeTo(data);
+        pad(data);
+        for (int blockId : blockIds) {
+            data.writeInt(blockId);
+        }
+        for (int pattern = 0; pattern < patternCount; pattern++) {
+            data.writeInt(registry.getCenterPieceId(pattern));
+            data.writeInt(weights[pattern]);
+            for (int neighbor : registry.getNeighborIds(pattern)) {
+                data.writeInt(neighbor);
+            }
+        }
+        pad(data);
+        for (long word : adjacency) {
+            data.writeLong(word);
+        }
+        data.flush();
+    }
+
+    private static void pad(DataOutputStream out) throws IOException {
+        while ((out.size() & 7) != 0) {
+            out.writeByte(0);
+        }
+    }
+
+    public int getPaletteSize() {
+        return palette.length;
+    }
+
+    /**
+     * @throws IndexOutOfBoundsException if there is no block with that id
+     */
+    @Contract(pure = true)
+    public @NotNull B getBlock(int blockId) {
+        return palette[blockId];
+    }
+
+    /**
+     * @return the size of the pieces on the X axis, or 0 if there is no piece
+     */
+    public int getPieceXSize() {
+        return xSize;
+    }
+
+    public int getPieceYSize() {
+        return ySize;
+    }
+
+    public int getPieceZSize() {
+        return zSize;
+    }
+
+    public int pieceCount() {
+        return pieceCount;
+    }
+
+    /**
+     * @return the id of the block at these coordinates of that piece
+     */
+    @Contract(pure = true)
+    public int getBlockId(int pieceId, int x, int y, int z) {
+        checkPieceId(pieceId);
+        if (x < 0 || x >= xSize || y < 0 || y >= ySize || z < 0 || z >= zSize)
+            throw new IndexOutOfBoundsException("(" + x + ", " + y + ", " + z + ") is out of the pieces");
+        return buffer.getInt(piecesOffset + (((pieceId * xSize + x) * ySize + y) * zSize + z) * 4);
+    }
+
+    /**
+     * @return a new {@link Piece.Locked} with the blocks of that piece
+     */
+    @Contract(pure = true)
+    public @NotNull Piece.Locked<B> getPiece(int pieceId) {
+        final Piece<B> piece = new Piece<>(xSize, ySize, zSize, getBlock(getBlockId(pieceId, 0, 0, 0)));
+        for (int x = 0; x < xSize; x++) {
+            for (int y = 0; y < ySize; y++) {
+                for (int z = 0; z < zSize; z++) {
+                    piece.set(getBlock(getBlockId(pieceId, x, y, z)), x, y, z);
+                }
+            }
+        }
+        return piece.lock();
+    }
+
+    public int patternCount() {
+        return patternCount;
+    }
+
+    /**
+     * @return the sum of the weights of all patterns
+     */
+    public long getTotalWeight() {
+        return totalWeight;
+    }
+
+    @Contract(pure = true)
+    public int getCenterPieceId(int patternId) {
+        return buffer.getInt(patternOffset(patternId));
+    }
+
+    @Contract(pure = true)
+    public int getWeight(int patternId) {
+        return buffer.getInt(patternOffset(patternId) + 4);
+    }
+
+    /**
+     * @param face must be {@link Face#isCartesian() cartesian}
+     * @return the id of the piece at that face, {@link PieceRegistry#NO_NEIGHBOR} or {@link PieceRegistry#ANY_NEIGHBOR}
+     */
+    @Contract(pure = true)
+    public int getNeighborId(int patternId, @NotNull Face face) {
+        return buffer.getInt(patternOffset(patternId) + 8 + cartesianOrdinal(face) * 4);
+    }
+
+    private int patternOffset(int patternId) {
+        if (patternId < 0 || patternId >= patternCount)
+            throw new IndexOutOfBoundsException("no pattern with id " + patternId);
+        return patternsOffset + patternId * PATTERN_INTS * 4;
+    }
+
+    /**
+     * @return a new {@link PieceNeighbors.Locked} equal to the one that was compiled to that pattern
+     */
+    @Contract(pure = true)
+    public @NotNull PieceNeighbors.Locked<B> getPattern(int patternId) {
+        final PieceNeighbors<B> pieceNeighbors = new PieceNeighbors<>(getPiece(getCenterPieceId(patternId)));
+        for (Face face : Face.getCartesianFaces()) {
+            final int neighbor = getNeighborId(patternId, face);
+            if (neighbor == PieceRegistry.NO_NEIGHBOR) pieceNeighbors.put(face, Optional.empty());
+            else if (neighbor != PieceRegistry.ANY_NEIGHBOR) pieceNeighbors.put(face, getPiece(neighbor).asOptional());
+        }
+        return pieceNeighbors.lock();
+    }
+
+    /**
+     * @return whether at least one pattern has that piece at the center and the other one at that face
+     */
+    @Contract(pure = true)
+    public boolean isAllowed(int pieceId, @NotNull Face face, int neighborPieceId) {
+        checkPieceId(neighborPieceId);
+        return (getAdjacencyWord(pieceId, face, neighborPieceId >> 6) & 1L << neighborPieceId) != 0;
+    }
+
+    /**
+     * @return the 64 bits of the bitset of pieces that can be at that face of that piece, starting from piece
+     * {@code wordIndex * 64}
+     */
+    @Contract(pure = true)
+    public long getAdjacencyWord(int pieceId, @NotNull Face face, int wordIndex) {
+        checkPieceId(pieceId);
+        if (wordIndex < 0 || wordIndex >= wordsPerBitset)
+            throw new IndexOutOfBoundsException("no word " + wordIndex + " in bitsets of " + wordsPerBitset + " words");
+        return buffer.getLong(adjacencyOffset
+                + ((pieceId * PieceRegistry.FACES + cartesianOrdinal(face)) * wordsPerBitset + wordIndex) * 8);
+    }
+
+    /**
+     * @return the number of longs in each adjacency bitset
+     */
+    public int getWordsPerBitset() {
+        return wordsPerBitset;
+    }
+
+    /**
+     * @return a new {@link Sample} equal to the one that was compiled
+     */
+    @Contract(pure = true)
+    public @NotNull Sample<B> toSample() {
+        final Sample<B> sample = new Sample<>();
+        for (int pattern = 0; pattern < patternCount; pattern++) {
+            sample.add(getPattern(pattern), getWeight(pattern));
+        }
+        return sample;
+    }
+
+    private void checkPieceId(int pieceId) {
+        if (pieceId < 0 || pieceId >= pieceCount)
+            throw new IndexOutOfBoundsException("no piece with id " + pieceId);
+    }
+
+    private static int cartesianOrdinal(@NotNull Face face) {
+        if (!face.isCartesian()) throw new IllegalArgumentException("only cartesian faces are compiled, not " + face);
+        return face.ordinal();
+    }
+}
@@ -0,0 +1,345 @@
+package fr.bananasmoothii.mcwfc.core;
+
+import fr.bananasmoothii.mcwfc.core.util.Bounds;
+import fr.bananasmoothii.mcwfc.core.util.Coords;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.UnaryOperator;
+
+/**
+ * A {@link VirtualSpace} cut in sections of 8*8*8 elements, where {@link #copy()} is O(1): the copy shares every
+ * section with the original, and a section is only cloned when one of them writes in it. This makes snapshots very
+ * cheap when only a few elements change between two of them, like in {@link Wave}. Section hashes are cached, so
+ * {@link #contentHash()} is fast, and {@link #equals(Object)}, {@link #diff(VirtualSpace)} and
+ * {@link #diffSections(VirtualSpace)} skip the sections shared between a space and its copies.
+ * <p>
+ * Because sections are shared, elements must not be modified in place, unless they were given by
+ * {@link #getForWrite(int, int, int, UnaryOperator)}, and only until the next hash computation (see that method).
+ * Unlike a normal {@link VirtualSpace}, it can't grow: setting something out of its bounds throws an
+ * {@link IndexOutOfBoundsException}.
+ * @param <T> the type of objects you will put inside
+ */
+public class CopyOnWriteVirtualSpace<T> extends VirtualSpace<T> {
+
+    private static final int SECTION_MASK = SECTION_SIZE - 1;
+    private static final long EMPTY_SECTION_HASH =
+            new Section(new Object(), new Object[SECTION_SIZE * SECTION_SIZE * SECTION_SIZE]).hash();
+
+    /*
+        A space and its copies all have a different owner. A section can only be written by the space owning it, other
+        spaces have to clone it first. When copying, both the original and the copy get a new owner, so they both stop
+        owning their sections.
+     */
+    private @NotNull Object owner = new Object();
+    private Section[] sections;
+    private boolean sectionsShared = false;
+    private final int xSections, ySections, zSections;
+
+    public CopyOnWriteVirtualSpace(@NotNull Bounds bounds) {
+        super(bounds, NoArrays.NO_ARRAYS);
+        xSections = sectionCount(bounds.xSize());
+        ySections = sectionCount(bounds.ySize());
+        zSections = sectionCount(bounds.zSize());
+        sections = new Section[xSections * ySections * zSections];
+    }
+
+    private CopyOnWriteVirtualSpace(@NotNull CopyOnWriteVirtualSpace<T> original) {
+        super(original.getBounds(), NoArrays.NO_ARRAYS);
+        setEnlargeAtOnce(original.getEnlargeAtOnce());
+        setFill(original.getFill());
+        xSections = original.xSections;
+        ySections = original.ySections;
+        zSections = original.zSections;
+        sections = original.sections;
+        sectionsShared = true;
+        original.sectionsShared = true;
+        original.owner = new Object();
+    }
+
+    private static final class Section {
+        private final @NotNull Object owner;
+        private final Object[] elements;
+        /**
+         * bits set to 1 are elements that were set after the owner got this section, so they are not shared with any
+         * other space.
+         */
+        private final long[] ownElements = new long[SECTION_SIZE * SECTION_SIZE * SECTION_SIZE / Long.SIZE];
+        private long hash;
+        private boolean hashIsValid = false;
+
+        private Section(@NotNull Object owner, Object[] elements) {
+            this.owner = owner;
+            this.elements = elements;
+        }
+
+        private boolean isOwnElement(int index) {
+            return (ownElements[index >>> 6] & 1L << index) != 0;
+        }
+
+        private void setOwnElement(int index) {
+            ownElements[index >>> 6] |= 1L << index;
+            hashIsValid = false;
+        }
+
+        private void setSharedElement(int index) {
+            ownElements[index >>> 6] &= ~(1L << index);
+            hashIsValid = false;
+        }
+
+        /**
+         * @return the same as {@link VirtualSpace#sectionHash(int, int, int)}, but cached
+         */
+        private long hash() {
+            if (!hashIsValid) {
+                long hash = 0;
+                for (Object element : elements) {
+                    hash = mix(hash, Objects.hashCode(element));
+                }
+                this.hash = hash;
+                hashIsValid = true;
+            }
+            return hash;
+        }
+    }
+
+    @Contract(pure = true)
+    private boolean contains(int x, int y, int z) {
+        return x >= xMin() && x <= xMax() && y >= yMin() && y <= yMax() && z >= zMin() && z <= zMax();
+    }
+
+    private int sectionIndex(int x, int y, int z) {
+        return (((x - xMin()) >> SECTION_BITS) * ySections + ((y - yMin()) >> SECTION_BITS)) * zSections
+                + ((z - zMin()) >> SECTION_BITS);
+    }
+
+    private int indexInSection(int x, int y, int z) {
+        return ((x - xMin()) & SECTION_MASK) << (2 * SECTION_BITS) | ((y - yMin()) & SECTION_MASK) << SECTION_BITS
+                | (z - zMin()) & SECTION_MASK;
+    }
+
+    /**
+     * @return the section at that index, that this space can write in. It is created or cloned if needed.
+     */
+    private @NotNull Section writableSection(int sectionIndex) {
+        if (sectionsShared) {
+            sections = sections.clone();
+            sectionsShared = false;
+        }
+        Section section = sections[sectionIndex];
+        if (section == null) {
+            section = new Section(owner, new Object[SECTION_SIZE * SECTION_SIZE * SECTION_SIZE]);
+            sections[sectionIndex] = section;
+        } else if (section.owner != owner) {
+            final Section shared = section;
+            section = new Section(owner, shared.elements.clone());
+            section.hash = shared.hash;
+            section.hashIsValid = shared.hashIsValid;
+            sections[sectionIndex] = section;
+        }
+        return section;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public @Nullable T getWithoutFill(int x, int y, int z) {
+        if (!contains(x, y, z)) return null;
+        final Section section = sections[sectionIndex(x, y, z)];
+        if (section == null) return null;
+        return (T) section.elements[indexInSection(x, y, z)];
+    }
+
+    @Override
+    public @Nullable T getWithoutFillModuloCoords(int x, int y, int z) {
+        return getWithoutFill(xInBounds(x), yInBounds(y), zInBounds(z));
+    }
+
+    @Override
+    public void set(@Nullable T object, int x, int y, int z) {
+        ensureCapacityForElement(x, y, z);
+        final int sectionIndex = sectionIndex(x, y, z);
+        if (object == null && sections[sectionIndex] == null) return;
+        final Section section = writableSection(sectionIndex);
+        final int index = indexInSection(x, y, z);
+        section.elements[index] = object;
+        section.setOwnElement(index);
+    }
+
+    @Override
+    public void setModuloCoords(@Nullable T object, int x, int y, int z) {
+        set(object, xInBounds(x), yInBounds(y), zInBounds(z));
+    }
+
+    /**
+     * Same as {@link #set(Object, int, int, int)}, but the object is considered shared, so
+     * {@link #getForWrite(int, int, int, UnaryOperator)} will copy it before it can be modified. This allows putting
+     * the same object at many coordinates, for example the initial state of every cell of a {@link Wave}, and only
+     * copying it where it changes.
+     */
+    public void setShared(@Nullable T object, int x, int y, int z) {
+        ensureCapacityForElement(x, y, z);
+        final int sectionIndex = sectionIndex(x, y, z);
+        if (object == null && sections[sectionIndex] == null) return;
+        final Section section = writableSection(sectionIndex);
+        final int index = indexInSection(x, y, z);
+        section.elements[index] = object;
+        section.setSharedElement(index);
+    }
+
+    /**
+     * Gives the element at these coordinates, making sure it can be modified in place without changing any copy of
+     * this space. If the element may be shared with a copy, it is replaced by {@code copier.apply(element)} first.
+     * <p>
+     * The hash of the section is only marked as outdated here. So the returned element must be modified before the
+     * next call to {@link #equals(Object)}, {@link #hashCode()}, {@link #contentHash()} or {@link #diff(VirtualSpace)}
+     * on this space or on one of its copies. To modify it after that, get it again with this method.
+     * @param copier makes a copy of an element, for example {@code toCopy -> new Sample<>(toCopy, true)}
+     * @return {@code null} if there is no element at these coordinates (without the fill)
+     */
+    @SuppressWarnings("unchecked")
+    public @Nullable T getForWrite(int x, int y, int z, @NotNull UnaryOperator<T> copier) {
+        if (!contains(x, y, z)) return null;
+        final int sectionIndex = sectionIndex(x, y, z);
+        final Section readOnlySection = sections[sectionIndex];
+        if (readOnlySection == null) return null;
+        final int index = indexInSection(x, y, z);
+        final T element = (T) readOnlySection.elements[index];
+        if (element == null) return null;
+        if (readOnlySection.owner == owner && readOnlySection.isOwnElement(index)) {
+            readOnlySection.hashIsValid = false; // the element is probably going to be modified
+            return element;
+        }
+        final T copy = copier.apply(element);
+        final Section section = writableSection(sectionIndex);
+        section.elements[index] = copy;
+        section.setOwnElement(index);
+        return copy;
+    }
+
+    /**
+     * Same as {@link #getForWrite(int, int, int, UnaryOperator)}
+     * @param useModuloCoords whether to use always in-bounds coordinates, see {@link #xInBounds(int)}
+     */
+    public @Nullable T getForWrite(int x, int y, int z, boolean useModuloCoords, @NotNull UnaryOperator<T> copier) {
+        if (useModuloCoords) return getForWrite(xInBounds(x), yInBounds(y), zInBounds(z), copier);
+        return getForWrite(x, y, z, copier);
+    }
+
+    /**
+     * A {@link CopyOnWriteVirtualSpace} can't grow, so this only checks the coordinates.
+     * @throws IndexOutOfBoundsException if the coordinates are out of the bounds given at creation
+     */
+    @Override
+    public void ensureCapacityForElement(int x, int y, int z) {
+        if (!contains(x, y, z))
+            throw new IndexOutOfBoundsException("(" + x + ", " + y + ", " + z + ") is out of the bounds of this " +
+                    "copy-on-write virtual space: " + getPrettyCoordinates());
+    }
+
+    @Override
+    protected long sectionHash(int sectionX, int sectionY, int sectionZ) {
+        final Section section = sections[(sectionX * ySections + sectionY) * zSections + sectionZ];
+        return section == null ? EMPTY_SECTION_HASH : section.hash();
+    }
+
+    /**
+     * @return whether both spaces have the same bounds, so the same sections
+     */
+    private boolean hasSameSections(@NotNull VirtualSpace<?> other) {
+        return other instanceof CopyOnWriteVirtualSpace && getBounds().equals(other.getBounds());
+    }
+
+    /**
+     * Same as {@link VirtualSpace#sectionEquals(VirtualSpace, int, int, int)}, but if the other space is also a
+     * {@link CopyOnWriteVirtualSpace} with the same bounds, a shared section is equal without being read, and two
+     * sections with different cached hashes are different. Only sections with the same hash are compared element by
+     * element.
+     */
+    @Override
+    protected boolean sectionEquals(@NotNull VirtualSpace<?> other, int sectionX, int sectionY, int sectionZ) {
+        if (!hasSameSections(other)) return super.sectionEquals(other, sectionX, sectionY, sectionZ);
+        final int i = (sectionX * ySections + sectionY) * zSections + sectionZ;
+        return sectionEquals(sections[i], ((CopyOnWriteVirtualSpace<?>) other).sections[i]);
+    }
+
+    private static boolean sectionEquals(@Nullable Section section, @Nullable Section otherSection) {
+        if (section == otherSection) return true;
+        final long hash = section == null ? EMPTY_SECTION_HASH : section.hash();
+        final long otherHash = otherSection == null ? EMPTY_SECTION_HASH : otherSection.hash();
+        if (hash != otherHash) return false;
+        for (int i = 0; i < SECTION_SIZE * SECTION_SIZE * SECTION_SIZE; i++) {
+            if (!Objects.equals(section == null ? null : section.elements[i],
+                    otherSection == null ? null : otherSection.elements[i])) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Same as {@link VirtualSpace#equals(Object)}, but if the other space is also a {@link CopyOnWriteVirtualSpace}
+     * with the same bounds, shared sections are skipped and sections with different cached hashes make it return
+     * {@code false} early, see {@link #sectionEquals(VirtualSpace, int, int, int)}. So comparing a space to one of
+     * its copies is O(sections + modified sections * elements per section).
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) return true;
+        if (!(obj instanceof CopyOnWriteVirtualSpace<?> other) || !hasSameSections(other))
+            return super.equals(obj);
+        if (!Objects.equals(getFill(), other.getFill())) return false;
+        for (int i = 0; i < sections.length; i++) {
+            if (!sectionEquals(sections[i], other.sections[i])) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @see VirtualSpace#hashCode()
+     */
+    @Override
+    public int hashCode() {
+        return super.hashCode();
+    }
+
+    /**
+     * Same as {@link VirtualSpace#diff(VirtualSpace)}, but if the other space is also a {@link CopyOnWriteVirtualSpace}
+     * with the same bounds, sections that are shared are skipped, so this is fast between a space and its copies.
+     */
+    @Override
+    public @NotNull List<Coords> diff(@NotNull VirtualSpace<T> other) {
+        if (!hasSameSections(other)) return super.diff(other);
+        final CopyOnWriteVirtualSpace<T> otherSpace = (CopyOnWriteVirtualSpace<T>) other;
+        final List<Coords> result = new ArrayList<>();
+        for (int sectionX = 0; sectionX < xSections; sectionX++) {
+            for (int sectionY = 0; sectionY < ySections; sectionY++) {
+                for (int sectionZ = 0; sectionZ < zSections; sectionZ++) {
+                    final int i = (sectionX * ySections + sectionY) * zSections + sectionZ;
+                    if (sections[i] == otherSpace.sections[i]) continue;
+                    final int xFrom = xMin() + (sectionX << SECTION_BITS),
+                              yFrom = yMin() + (sectionY << SECTION_BITS),
+                              zFrom = zMin() + (sectionZ << SECTION_BITS);
+                    for (int x = xFrom; x < Math.min(xFrom + SECTION_SIZE, xMax() + 1); x++) {
+                        for (int y = yFrom; y < Math.min(yFrom + SECTION_SIZE, yMax() + 1); y++) {
+                            for (int z = zFrom; z < Math.min(zFrom + SECTION_SIZE, zMax() + 1); z++) {
+                                if (!Objects.equals(getWithoutFill(x, y, z), other.getWithoutFill(x, y, z)))
+                                    result.add(new Coords(x, y, z));
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return a copy sharing all its sections with this space, in O(1)
+     */
+    @Override
+    public CopyOnWriteVirtualSpace<T> copy() {
+        return new CopyOnWriteVirtualSpace<>(this);
+    }
+}
@@ -1,20 +1,181 @@
 package fr.bananasmoothii.mcwfc.core;
 
+import fr.bananasmoothii.mcwfc.core.util.WeightedSet;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 
-import java.util.Collection;
-import java.util.Iterator;
+import java.util.*;
 
 /**
+ * A frozen {@link Sample}: the {@link PieceNeighbors} are stored in an array sorted by hash code, with a parallel array
+ * of weights and the cumulative sum of these weights. The {@link PieceNeighbors.Locked} are already interned by their
+ * pool, so looking for one is a binary search on the hash codes, followed by a reference comparison most of the time.
+ * <p>
+ * Each {@link PieceNeighbors} also has an index, from 0 to {@link #size()} - 1, so that a subset of this sample can be
+ * stored as a bitset (see {@link #toBitset(Iterable)} and {@link #fromBitset(long[])}).
  * @param <B> the type of the blocks in the {@link Piece}s. For example, in bukkit, this is {@link org.bukkit.block.data.BlockData}
  */
 public class ImmutableSample<B> extends Sample<B> {
 
+    private final PieceNeighbors.Locked<B>[] elements;
+    private final int[] hashes;
+    private final int[] weights;
+    /**
+     * cumulativeWeights[i] is the sum of the weights from 0 to i included
+     */
+    private final int[] cumulativeWeights;
+    private final int totalWeight;
+    private final int hash;
+
+    /**
+     * Copies the elements of that sample with their weights
+     */
     public ImmutableSample(@NotNull Sample<B> c) {
-        for (PieceNeighbors.Locked<B> c1 : c) {
-            super.add(c1);
+        final int size = c.size();
+        final PieceNeighbors.Locked<B>[] unsorted = newArray(size);
+        final int[] unsortedWeights = new int[size];
+        final Integer[] order = new Integer[size];
+        final Cursor cursor = c.cursor();
+        for (int i = 0; cursor.advance(); i++) {
+            unsorted[i] = cursor.key();
+            unsortedWeights[i] = cursor.weight();
+            order[i] = i;
+        }
+        final int[] unsortedHashes = new int[size];
+        for (int i = 0; i < size; i++) {
+            unsortedHashes[i] = unsorted[i].hashCode();
+        }
+        Arrays.sort(order, Comparator.comparingInt(i -> unsortedHashes[i]));
+
+        elements = newArray(size);
+        hashes = new int[size];
+        weights = new int[size];
+        cumulativeWeights = new int[size];
+        int total = 0, hash = 0;
+        for (int i = 0; i < size; i++) {
+            final int from = order[i];
+            elements[i] = unsorted[from];
+            hashes[i] = unsortedHashes[from];
+            weights[i] = unsortedWeights[from];
+            total += weights[i];
+            cumulativeWeights[i] = total;
+            hash += hashes[i] ^ weights[i];
+        }
+        totalWeight = total;
+        this.hash = hash;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <B> PieceNeighbors.Locked<B>[] newArray(int size) {
+        return new PieceNeighbors.Locked[size];
+    }
+
+    @Override
+    public int size() {
+        return elements.length;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return o != null && indexOf(o) != -1;
+    }
+
+    @Override
+    public int getWeight(PieceNeighbors.Locked<B> pieceNeighbors) {
+        final int index = pieceNeighbors == null ? -1 : indexOf(pieceNeighbors);
+        return index == -1 ? 0 : weights[index];
+    }
+
+    @Override
+    public int getTotalWeight() {
+        return totalWeight;
+    }
+
+    /**
+     * @return the index of o, or -1 if it is not in this sample
+     */
+    @Contract(pure = true)
+    public int indexOf(@NotNull Object o) {
+        final int hashCode = o.hashCode();
+        int index = Arrays.binarySearch(hashes, hashCode);
+        if (index < 0) return -1;
+        // several elements may have the same hash code
+        while (index > 0 && hashes[index - 1] == hashCode) index--;
+        for (; index < hashes.length && hashes[index] == hashCode; index++) {
+            if (elements[index] == o || elements[index].equals(o)) return index;
+        }
+        return -1;
+    }
+
+    /**
+     * @throws IndexOutOfBoundsException if there is no element at that index
+     */
+    @Contract(pure = true)
+    public @NotNull PieceNeighbors.Locked<B> get(int index) {
+        return elements[index];
+    }
+
+    /**
+     * @throws IndexOutOfBoundsException if there is no element at that index
+     */
+    @Contract(pure = true)
+    public int getWeightAt(int index) {
+        return weights[index];
+    }
+
+    /**
+     * Same as {@link WeightedSet#weightedChoose(Random)}, but in O(log n)
+     */
+    @Override
+    public PieceNeighbors.Locked<B> weightedChoose(@NotNull Random random) {
+        if (isEmpty()) throw new IllegalArgumentException("cannot choose anything from an empty WeightedSet");
+        final int index = Arrays.binarySearch(cumulativeWeights, random.nextInt(totalWeight) + 1);
+        // if there are weights of 0, the first of the equal cumulative weights is not necessarily found
+        int chosen = index >= 0 ? index : -index - 1;
+        while (chosen > 0 && cumulativeWeights[chosen - 1] == cumulativeWeights[chosen]) chosen--;
+        return elements[chosen];
+    }
+
+    /**
+     * @return a bitset where the bit i is set if the element at the index i is in these elements
+     * @throws IllegalArgumentException if an element is not in this sample
+     */
+    @Contract(pure = true)
+    public long @NotNull [] toBitset(@NotNull Iterable<? extends PieceNeighbors.Locked<B>> elements) {
+        final long[] bitset = new long[(size() + 63) / 64];
+        for (PieceNeighbors.Locked<B> element : elements) {
+            final int index = indexOf(element);
+            if (index == -1) throw new IllegalArgumentException(element + " is not in this sample");
+            bitset[index >> 6] |= 1L << index;
+        }
+        return bitset;
+    }
+
+    /**
+     * @return a bitset where the bits of every element are set
+     */
+    @Contract(pure = true)
+    public long @NotNull [] fullBitset() {
+        final long[] bitset = new long[(size() + 63) / 64];
+        Arrays.fill(bitset, -1L);
+        if (size() % 64 != 0) bitset[bitset.length - 1] = (1L << size()) - 1;
+        return bitset;
+    }
+
+    /**
+     * @return a new sample with the elements whose bits are set, with their weights
+     * @throws IndexOutOfBoundsException if a bit is set after {@link #size()}
+     */
+    @Contract(pure = true)
+    public @NotNull Sample<B> fromBitset(long @NotNull [] bitset) {
+        final Sample<B> sample = new Sample<>();
+        for (int i = 0; i < bitset.length; i++) {
+            for (long word = bitset[i]; word != 0; word &= word - 1) {
+                final int index = i * 64 + Long.numberOfTrailingZeros(word);
+                sample.add(elements[index], weights[index]);
+            }
         }
+        return sample;
     }
 
     @Override
@@ -22,11 +183,21 @@ public class ImmutableSample<B> extends Sample<B> {
         throw new UnsupportedOperationException("tried to modify an ImmutableSample");
     }
 
+    @Override
+    public void add(PieceNeighbors.Locked<B> pieceNeighbors, int weight) {
+        throw new UnsupportedOperationException("tried to modify an ImmutableSample");
+    }
+
     @Override
     public boolean remove(Object o) {
         throw new UnsupportedOperationException("tried to modify an ImmutableSample");
     }
 
+    @Override
+    public int removeWeight(PieceNeighbors.Locked<B> pieceNeighbors, int weight) {
+        throw new UnsupportedOperationException("tried to modify an ImmutableSample");
+    }
+
     @Override
     public boolean retainAll(@NotNull Collection<?> c) {
         throw new UnsupportedOperationException("tried to modify an ImmutableSample");
@@ -37,29 +208,75 @@ public class ImmutableSample<B> extends Sample<B> {
         throw new UnsupportedOperationException("tried to modify an ImmutableSample");
     }
 
+    @Override
+    public boolean retainAllWithCenterPiece(@NotNull Piece.Locked<B> centerPiece) {
+        throw new UnsupportedOperationException("tried to modify an ImmutableSample");
+    }
+
     @Override
     public void clear() {
         throw new UnsupportedOperationException("tried to modify an ImmutableSample");
     }
 
+    @Override
+    public void simplify() {
+        throw new UnsupportedOperationException("tried to modify an ImmutableSample");
+    }
+
     @Override
     public @NotNull Iterator<PieceNeighbors.Locked<B>> iterator() {
-        // not using directly map.values().iterator() as it has a remove() method
         return new Iterator<>() {
-            private final Iterator<PieceNeighbors.Locked<B>> iterator = ImmutableSample.super.iterator();
+            private int index = 0;
 
             @Override
             public boolean hasNext() {
-                return iterator.hasNext();
+                return index < elements.length;
             }
 
             @Override
             public PieceNeighbors.Locked<B> next() {
-                return iterator.next();
+                if (index >= elements.length) throw new NoSuchElementException();
+                return elements[index++];
             }
         };
     }
 
+    @Override
+    public @NotNull Cursor cursor() {
+        return new IndexCursor();
+    }
+
+    @Override
+    public Iterator<Map.Entry<PieceNeighbors.Locked<B>, Integer>> elementsAndWeightsIterator() {
+        return new Iterator<>() {
+            private int index = 0;
+
+            @Override
+            public boolean hasNext() {
+                return index < elements.length;
+            }
+
+            @Override
+            public Map.Entry<PieceNeighbors.Locked<B>, Integer> next() {
+                if (index >= elements.length) throw new NoSuchElementException();
+                final Map.Entry<PieceNeighbors.Locked<B>, Integer> entry = Map.entry(elements[index], weights[index]);
+                index++;
+                return entry;
+            }
+        };
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o instanceof ImmutableSample<?> other && other.hash != hash) return false;
+        return super.equals(o);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
     @Contract("-> new")
     public @NotNull Sample<B> mutable() {
         return new Sample<>(this);
@@ -69,5 +286,36 @@ public class ImmutableSample<B> extends Sample<B> {
     public @NotNull ImmutableSample<B> immutable() {
         return this;
     }
-}
 
+    private class IndexCursor extends Cursor {
+        private int index = -1;
+
+        @Override
+        public boolean advance() {
+            if (index < elements.length) index++;
+            return index < elements.length;
+        }
+
+        @Override
+        public PieceNeighbors.Locked<B> key() {
+            checkIndex();
+            return elements[index];
+        }
+
+        @Override
+        public int weight() {
+            checkIndex();
+            return weights[index];
+        }
+
+        @Override
+        public void setWeight(int weight) {
+            throw new UnsupportedOperationException("tried to modify an ImmutableSample");
+        }
+
+        private void checkIndex() {
+            if (index < 0 || index >= elements.length)
+                throw new IllegalStateException("the cursor is not on an element");
+        }
+    }
+}
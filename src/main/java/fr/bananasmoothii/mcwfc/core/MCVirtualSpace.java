@@ -3,13 +3,18 @@ package fr.bananasmoothii.mcwfc.core;
 import fr.bananasmoothii.mcwfc.core.util.Bounds;
 import fr.bananasmoothii.mcwfc.core.util.Coords;
 import fr.bananasmoothii.mcwfc.core.util.Face;
+import fr.bananasmoothii.mcwfc.core.util.Interner;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
 
 /**
  * A {@link VirtualSpace} with minecraft blocks ({@link B}). It provides some useful methods, mainly to generate
@@ -67,24 +72,192 @@ public class MCVirtualSpace<B> extends VirtualSpace<@NotNull B> {
      */
     public Sample<B> generatePieces(final int pieceSize, final boolean allowUpsideDown,
                                  final boolean useModuloCoordsTopAndBottom) {
+        return generatePieces(pieceSize, allowUpsideDown, useModuloCoordsTopAndBottom, PieceNeighbors.Locked.DEFAULT_POOL);
+    }
+
+    /**
+     * Same as {@link #generatePieces(int, boolean, boolean)}, but the {@link PieceNeighbors.Locked} of the sample are
+     * taken from that pool. Using a new pool for a sample avoids sharing the default pool with other threads, but the
+     * result can then only be compared or merged with samples from the same pool.
+     * @see PieceNeighbors.Locked#of(PieceNeighbors, Interner)
+     */
+    public Sample<B> generatePieces(final int pieceSize, final boolean allowUpsideDown,
+                                 final boolean useModuloCoordsTopAndBottom,
+                                 final @NotNull Interner<PieceNeighbors.Locked<?>> pool) {
+        Sample<B> result = new Sample<>();
+        forEachPieceNeighbors(pieceSize, useModuloCoordsTopAndBottom, pieceNeighbors ->
+                // add 1 to the weight if that sibling already exists, else put it in the map with a weight of 1
+                result.addAll(pieceNeighbors.lock(pool).generateSiblingsLock(allowUpsideDown)));
+        return result;
+    }
+
+    /**
+     * Same as {@link #generatePieces(int, boolean, boolean)}, but the {@link PieceNeighbors} have a neighbor at each of
+     * these faces instead of only the {@link Face#isCartesian() cartesian} ones. For example, with
+     * {@link Face#getAllFaces()}, edge and corner neighbors are also recorded, and a {@link Wave} will enforce them.
+     * The neighbor at a face is the piece that is pieceSize blocks away in each direction of that face.
+     */
+    public Sample<B> generatePieces(final int pieceSize, final boolean allowUpsideDown,
+                                    final boolean useModuloCoordsTopAndBottom, final @NotNull List<Face> faces) {
+        return generatePieces(pieceSize, allowUpsideDown, useModuloCoordsTopAndBottom, faces,
+                PieceNeighbors.Locked.DEFAULT_POOL);
+    }
+
+    /**
+     * Same as {@link #generatePieces(int, boolean, boolean, List)}, but the {@link PieceNeighbors.Locked} are taken
+     * from that pool, see {@link #generatePieces(int, boolean, boolean, Interner)}
+     */
+    public Sample<B> generatePieces(final int pieceSize, final boolean allowUpsideDown,
+                                    final boolean useModuloCoordsTopAndBottom, final @NotNull List<Face> faces,
+                                    final @NotNull Interner<PieceNeighbors.Locked<?>> pool) {
         Sample<B> result = new Sample<>();
-        HashMap<Coords, Optional<Piece.Locked<B>>> piecesCache = new HashMap<>(); // used to keep the same reference for pieces with the exact same coords
-        for (int x = xMin(); x <= xMax(); x++) {
+        forEachPieceNeighbors(new PieceExtractor<>(this, pieceSize), xMin(), xMax(), useModuloCoordsTopAndBottom,
+                faces, pieceNeighbors -> result.addAll(pieceNeighbors.lock(pool).generateSiblingsLock(allowUpsideDown)));
+        return result;
+    }
+
+    /**
+     * Same as {@link #generatePieces(int, boolean, boolean)}, but only one orientation of each {@link PieceNeighbors}
+     * is stored, see {@link CanonicalSample}. The result is up to 48 times smaller, and
+     * {@link CanonicalSample#expand()} gives the same result as {@link #generatePieces(int, boolean, boolean)}.
+     */
+    public CanonicalSample<B> generateCanonicalPieces(final int pieceSize, final boolean allowUpsideDown,
+                                                      final boolean useModuloCoordsTopAndBottom) {
+        return generateCanonicalPieces(pieceSize, allowUpsideDown, useModuloCoordsTopAndBottom,
+                PieceNeighbors.Locked.DEFAULT_POOL);
+    }
+
+    /**
+     * Same as {@link #generateCanonicalPieces(int, boolean, boolean)}, but the {@link PieceNeighbors.Locked} are taken
+     * from that pool, see {@link #generatePieces(int, boolean, boolean, Interner)}
+     */
+    public CanonicalSample<B> generateCanonicalPieces(final int pieceSize, final boolean allowUpsideDown,
+                                                      final boolean useModuloCoordsTopAndBottom,
+                                                      final @NotNull Interner<PieceNeighbors.Locked<?>> pool) {
+        CanonicalSample<B> result = new CanonicalSample<>(allowUpsideDown);
+        forEachPieceNeighbors(pieceSize, useModuloCoordsTopAndBottom, pieceNeighbors ->
+                result.add(pieceNeighbors.lock(pool)));
+        return result;
+    }
+
+    /**
+     * Same as {@link #generatePieces(int, boolean, boolean)}, but using every thread of the
+     * {@link ForkJoinPool#commonPool() common pool}
+     */
+    public Sample<B> generatePiecesParallel(final int pieceSize, final boolean allowUpsideDown,
+                                            final boolean useModuloCoordsTopAndBottom) {
+        return generatePiecesParallel(pieceSize, allowUpsideDown, useModuloCoordsTopAndBottom, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Same as {@link #generatePieces(int, boolean, boolean)}, but this space is cut in slabs along the X axis that are
+     * processed in parallel in that pool. Each slab makes its own {@link Sample}, and they are merged by summing the
+     * weights, so the result is the same.
+     */
+    public Sample<B> generatePiecesParallel(final int pieceSize, final boolean allowUpsideDown,
+                                            final boolean useModuloCoordsTopAndBottom, final @NotNull ForkJoinPool pool) {
+        return generatePiecesParallel(pieceSize, allowUpsideDown, useModuloCoordsTopAndBottom, pool,
+                PieceNeighbors.Locked.DEFAULT_POOL);
+    }
+
+    /**
+     * Same as {@link #generatePiecesParallel(int, boolean, boolean, ForkJoinPool)}, but the
+     * {@link PieceNeighbors.Locked} are taken from neighborsPool, see
+     * {@link #generatePieces(int, boolean, boolean, Interner)}
+     */
+    public Sample<B> generatePiecesParallel(final int pieceSize, final boolean allowUpsideDown,
+                                            final boolean useModuloCoordsTopAndBottom, final @NotNull ForkJoinPool pool,
+                                            final @NotNull Interner<PieceNeighbors.Locked<?>> neighborsPool) {
+        final PieceExtractor<B> pieces = new PieceExtractor<>(this, pieceSize);
+        final int slabSize = Math.max(1, xSize() / (pool.getParallelism() * 4));
+        return pool.invoke(new GeneratePiecesTask(pieces, xMin(), xMax(), slabSize, allowUpsideDown,
+                useModuloCoordsTopAndBottom, neighborsPool));
+    }
+
+    @SuppressWarnings("serial") // tasks are never serialized
+    private class GeneratePiecesTask extends RecursiveTask<Sample<B>> {
+        private final PieceExtractor<B> pieces;
+        private final int xFrom, xTo, slabSize;
+        private final boolean allowUpsideDown, useModuloCoordsTopAndBottom;
+        private final Interner<PieceNeighbors.Locked<?>> neighborsPool;
+
+        private GeneratePiecesTask(PieceExtractor<B> pieces, int xFrom, int xTo, int slabSize, boolean allowUpsideDown,
+                                   boolean useModuloCoordsTopAndBottom, Interner<PieceNeighbors.Locked<?>> neighborsPool) {
+            this.pieces = pieces;
+            this.xFrom = xFrom;
+            this.xTo = xTo;
+            this.slabSize = slabSize;
+            this.allowUpsideDown = allowUpsideDown;
+            this.useModuloCoordsTopAndBottom = useModuloCoordsTopAndBottom;
+            this.neighborsPool = neighborsPool;
+        }
+
+        @Override
+        protected Sample<B> compute() {
+            if (xTo - xFrom + 1 <= slabSize) {
+                Sample<B> result = new Sample<>();
+                forEachPieceNeighbors(pieces, xFrom, xTo, useModuloCoordsTopAndBottom, pieceNeighbors ->
+                        result.addAll(pieceNeighbors.lock(neighborsPool).generateSiblingsLock(allowUpsideDown)));
+                return result;
+            }
+            final int middle = (xFrom + xTo) >>> 1;
+            final GeneratePiecesTask left = new GeneratePiecesTask(pieces, xFrom, middle, slabSize, allowUpsideDown,
+                    useModuloCoordsTopAndBottom, neighborsPool);
+            final GeneratePiecesTask right = new GeneratePiecesTask(pieces, middle + 1, xTo, slabSize, allowUpsideDown,
+                    useModuloCoordsTopAndBottom, neighborsPool);
+            left.fork();
+            final Sample<B> result = right.compute();
+            result.addAll(left.join());
+            return result;
+        }
+    }
+
+    /**
+     * Gives the {@link PieceNeighbors} at each position of this space to the action, this is used to generate samples
+     */
+    protected void forEachPieceNeighbors(final int pieceSize, final boolean useModuloCoordsTopAndBottom,
+                                         final @NotNull Consumer<PieceNeighbors<B>> action) {
+        forEachPieceNeighbors(new PieceExtractor<>(this, pieceSize), xMin(), xMax(), useModuloCoordsTopAndBottom, action);
+    }
+
+    /**
+     * Gives the {@link PieceNeighbors} at each position of this space with {@code xFrom <= x <= xTo} to the action
+     */
+    protected void forEachPieceNeighbors(final @NotNull PieceExtractor<B> pieces, final int xFrom, final int xTo,
+                                         final boolean useModuloCoordsTopAndBottom,
+                                         final @NotNull Consumer<PieceNeighbors<B>> action) {
+        forEachPieceNeighbors(pieces, xFrom, xTo, useModuloCoordsTopAndBottom, Face.getCartesianFaces(), action);
+    }
+
+    /**
+     * Same as {@link #forEachPieceNeighbors(PieceExtractor, int, int, boolean, Consumer)} with a neighbor at each of
+     * these faces
+     */
+    protected void forEachPieceNeighbors(final @NotNull PieceExtractor<B> pieces, final int xFrom, final int xTo,
+                                         final boolean useModuloCoordsTopAndBottom, final @NotNull List<Face> faces,
+                                         final @NotNull Consumer<PieceNeighbors<B>> action) {
+        final int pieceSize = pieces.getPieceSize();
+        for (int x = xFrom; x <= xTo; x++) {
             for (int y = yMin(); y <= yMax(); y++) {
                 for (int z = zMin(); z <= zMax(); z++) {
-                    PieceNeighbors<B> pieceNeighbors = new PieceNeighbors<>(getPieceAt(new Coords(x, y, z), pieceSize, true, piecesCache).orElseThrow());
-                    pieceNeighbors.put(Face.TOP, getPieceAt(new Coords(x, y + pieceSize, z), pieceSize, useModuloCoordsTopAndBottom, piecesCache));
-                    pieceNeighbors.put(Face.BOTTOM, getPieceAt(new Coords(x, y - pieceSize, z), pieceSize, useModuloCoordsTopAndBottom, piecesCache));
-                    pieceNeighbors.put(Face.WEST, getPieceAt(new Coords(x - pieceSize, y, z), pieceSize, true, piecesCache));
-                    pieceNeighbors.put(Face.EAST, getPieceAt(new Coords(x + pieceSize, y, z), pieceSize, true, piecesCache));
-                    pieceNeighbors.put(Face.NORTH, getPieceAt(new Coords(x, y, z - pieceSize), pieceSize, true, piecesCache));
-                    pieceNeighbors.put(Face.SOUTH, getPieceAt(new Coords(x, y, z + pieceSize), pieceSize, true, piecesCache));
-                    // add 1 to the weight if that sibling already exists, else put it in the map with a weight of 1
-                    result.addAll(pieceNeighbors.lock().generateSiblingsLock(allowUpsideDown));
+                    PieceNeighbors<B> pieceNeighbors = new PieceNeighbors<>(pieces.getPieceAt(x, y, z));
+                    for (Face face : faces) {
+                        final int neighborX = x + face.getModX() * pieceSize,
+                                  neighborY = y + face.getModY() * pieceSize,
+                                  neighborZ = z + face.getModZ() * pieceSize;
+                        // only the top and bottom may not use modulo coords
+                        pieceNeighbors.put(face, face.getModY() == 0
+                                ? pieces.getPieceAt(neighborX, neighborY, neighborZ).asOptional()
+                                : asOptional(pieces.getPieceAt(neighborX, neighborY, neighborZ, useModuloCoordsTopAndBottom)));
+                    }
+                    action.accept(pieceNeighbors);
                 }
             }
         }
-        return result;
+    }
+
+    private static <B> @NotNull Optional<Piece.Locked<B>> asOptional(@Nullable Piece.Locked<B> piece) {
+        return piece == null ? Optional.empty() : piece.asOptional();
     }
 
     /**
@@ -137,39 +310,17 @@ public class MCVirtualSpace<B> extends VirtualSpace<@NotNull B> {
      */
     protected Optional<Piece.Locked<B>> getPieceAt(final @NotNull Coords coords, final int pieceSize, final boolean useModuloCoords,
                                                              @NotNull Map<Coords, Optional<Piece.Locked<B>>> pieceCache) {
-        return pieceCache.computeIfAbsent(coords,
-                coords1 -> Optional.ofNullable(getPieceAt(coords1.x(), coords1.y(), coords1.z(), pieceSize, useModuloCoords)));
+        return pieceCache.computeIfAbsent(coords, coords1 -> {
+            final Piece.Locked<B> piece = getPieceAt(coords1.x(), coords1.y(), coords1.z(), pieceSize, useModuloCoords);
+            return piece == null ? Optional.empty() : piece.asOptional();
+        });
     }
 
     @Override
     public MCVirtualSpace<B> select(int xFrom, int yFrom, int zFrom, int xTo, int yTo, int zTo) {
-        if (xFrom > xTo) {
-            int swapper = xFrom;
-            xFrom = xTo;
-            xTo = swapper;
-        }
-        if (yFrom > yTo) {
-            int swapper = yFrom;
-            yFrom = yTo;
-            yTo = swapper;
-        }
-        if (zFrom > zTo) {
-            int swapper = zFrom;
-            zFrom = zTo;
-            zTo = swapper;
-        }
-        MCVirtualSpace<B> result = new MCVirtualSpace<>(getFill());
-        result.setFill(getFill());
-        for (int xi = xFrom; xi <= xTo; xi++) {
-            for (int yi = yFrom; yi <= yTo; yi++) {
-                for (int zi = zFrom; zi <= zTo; zi++) {
-                    final B element = getWithoutFill(xi, yi, zi);
-                    if (element != null) {
-                        result.set(element, xi, yi, zi);
-                    }
-                }
-            }
-        }
+        final Bounds region = Bounds.fromTo(xFrom, yFrom, zFrom, xTo, yTo, zTo);
+        MCVirtualSpace<B> result = new MCVirtualSpace<>(region, getFill());
+        result.paste(this, region, region.xMin(), region.yMin(), region.zMin());
         return result;
     }
 
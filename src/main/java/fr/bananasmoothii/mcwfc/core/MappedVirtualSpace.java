@@ -0,0 +1,287 @@
+package fr.bananasmoothii.mcwfc.core;
+
+import fr.bananasmoothii.mcwfc.core.util.Bounds;
+import fr.bananasmoothii.mcwfc.core.util.Codec;
+import fr.bananasmoothii.mcwfc.core.util.Palette;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A {@link VirtualSpace} whose elements are stored in a memory-mapped file instead of the java heap, so the heap stays
+ * small even for very large spaces (the operating system decides what stays in memory). Each element is stored as a
+ * 16-bit id of a {@link Palette}, this means there can't be more than 65535 different elements.
+ * <p>
+ * Unlike a normal {@link VirtualSpace}, it can't grow: setting something out of its bounds throws an
+ * {@link IndexOutOfBoundsException}. The palette and the <i>fill</i> are written at the end of the file by
+ * {@link #flush()}, so the file can be reopened later with {@link #open(Path, Codec)} without reading every element.
+ * @param <T> the type of objects you will put inside
+ */
+public class MappedVirtualSpace<T> extends VirtualSpace<T> implements Closeable {
+
+    /*
+        File layout (big endian):
+         - int magic, short version, short (unused)
+         - int xMin, yMin, zMin, xMax, yMax, zMax
+         - long position of the palette, or 0 if it was never flushed
+         - one char per element, looping over X, then Y, then Z. 0 is null, any other value is the palette id + 1
+         - the palette: int size, then every element written with the Codec, then boolean hasFill and the fill
+     */
+    private static final int MAGIC = 0x4D435653; // "MCVS"
+    private static final short VERSION = 1;
+    private static final int HEADER_SIZE = 40;
+    private static final int PALETTE_POSITION_OFFSET = 32;
+    private static final int MAX_PALETTE_SIZE = Character.MAX_VALUE; // because 0 is used for null
+
+    private final @NotNull FileChannel channel;
+    private final @NotNull Codec<T> codec;
+    private final @NotNull Palette<T> palette;
+    private final MappedByteBuffer[] buffers;
+    private final int zSize;
+    private final int layerBytes; // bytes used by one x layer
+    private final int layersPerBuffer; // a MappedByteBuffer can't be larger than 2 GB
+    private final long dataBytes;
+
+    private MappedVirtualSpace(@NotNull FileChannel channel, @NotNull Bounds bounds, @NotNull Palette<T> palette,
+                               @NotNull Codec<T> codec) throws IOException {
+        super(bounds, NoArrays.NO_ARRAYS);
+        this.channel = channel;
+        this.codec = codec;
+        this.palette = palette;
+        final int xSize = bounds.xSize();
+        zSize = bounds.zSize();
+
+        final long layerBytes = (long) bounds.ySize() * zSize * Character.BYTES;
+        if (layerBytes > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("bounds are too large on the y and z axes: " + bounds);
+        this.layerBytes = (int) layerBytes;
+        layersPerBuffer = Integer.MAX_VALUE / this.layerBytes;
+        dataBytes = layerBytes * xSize;
+
+        buffers = new MappedByteBuffer[(xSize + layersPerBuffer - 1) / layersPerBuffer];
+        for (int i = 0; i < buffers.length; i++) {
+            final int layers = Math.min(layersPerBuffer, xSize - i * layersPerBuffer);
+            buffers[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                    HEADER_SIZE + (long) i * layersPerBuffer * this.layerBytes, (long) layers * this.layerBytes);
+        }
+    }
+
+    /**
+     * Creates a new file (or overwrites it) with every element set to {@code null}.
+     * @param codec used to write the palette in {@link #flush()}
+     */
+    public static <T> @NotNull MappedVirtualSpace<T> create(@NotNull Path file, @NotNull Bounds bounds,
+                                                            @NotNull Codec<T> codec) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putShort(VERSION).putShort((short) 0)
+                    .putInt(bounds.xMin()).putInt(bounds.yMin()).putInt(bounds.zMin())
+                    .putInt(bounds.xMax()).putInt(bounds.yMax()).putInt(bounds.zMax())
+                    .putLong(0L)
+                    .flip();
+            channel.write(header, 0);
+            return new MappedVirtualSpace<>(channel, bounds, new Palette<>(), codec);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reopens a file that was created with {@link #create(Path, Bounds, Codec)} and {@link #flush() flushed}. Only the
+     * header and the palette are read, the elements stay in the file.
+     * @throws IOException if the file is not a valid {@link MappedVirtualSpace} or if it was never flushed
+     */
+    public static <T> @NotNull MappedVirtualSpace<T> open(@NotNull Path file, @NotNull Codec<T> codec) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0) throw new EOFException("truncated header in " + file);
+            }
+            header.flip();
+            if (header.getInt() != MAGIC) throw new IOException(file + " is not a mapped virtual space");
+            final short version = header.getShort();
+            if (version != VERSION) throw new IOException("unsupported mapped virtual space version: " + version);
+            header.getShort();
+            final Bounds bounds = new Bounds(header.getInt(), header.getInt(), header.getInt(),
+                    header.getInt(), header.getInt(), header.getInt());
+            final long palettePosition = header.getLong();
+            if (palettePosition == 0L) throw new IOException(file + " was never flushed, its palette is missing");
+
+            // not closing this stream as it would close the channel
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    Channels.newInputStream(channel.position(palettePosition))));
+            final Palette<T> palette = new Palette<>();
+            final int paletteSize = in.readInt();
+            for (int i = 0; i < paletteSize; i++) {
+                palette.getOrCreateId(codec.read(in));
+            }
+            final @Nullable T fill = in.readBoolean() ? codec.read(in) : null;
+
+            MappedVirtualSpace<T> space = new MappedVirtualSpace<>(channel, bounds, palette, codec);
+            space.setFill(fill);
+            return space;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the palette used to store elements. The id of an element in the file is its id in this palette + 1.
+     */
+    public @NotNull Palette<T> getPalette() {
+        return palette;
+    }
+
+    private @NotNull MappedByteBuffer bufferFor(int x) {
+        return buffers[(x - xMin()) / layersPerBuffer];
+    }
+
+    private int indexFor(int x, int y, int z) {
+        return ((x - xMin()) % layersPerBuffer) * layerBytes
+                + ((y - yMin()) * zSize + (z - zMin())) * Character.BYTES;
+    }
+
+    @Contract(pure = true)
+    private boolean contains(int x, int y, int z) {
+        return x >= xMin() && x <= xMax() && y >= yMin() && y <= yMax() && z >= zMin() && z <= zMax();
+    }
+
+    @Override
+    public @Nullable T getWithoutFill(int x, int y, int z) {
+        if (!contains(x, y, z)) return null;
+        final char id = bufferFor(x).getChar(indexFor(x, y, z));
+        return id == 0 ? null : palette.get(id - 1);
+    }
+
+    @Override
+    public @Nullable T getWithoutFillModuloCoords(int x, int y, int z) {
+        return getWithoutFill(xInBounds(x), yInBounds(y), zInBounds(z));
+    }
+
+    @Override
+    public void set(@Nullable T object, int x, int y, int z) {
+        ensureCapacityForElement(x, y, z);
+        final char id;
+        if (object == null) {
+            id = 0;
+        } else {
+            // checked before adding it, so that a rejected element doesn't stay in the palette
+            if (!palette.contains(object) && palette.size() >= MAX_PALETTE_SIZE)
+                throw new IllegalStateException("a MappedVirtualSpace can't contain more than " + MAX_PALETTE_SIZE +
+                        " different elements");
+            id = (char) (palette.getOrCreateId(object) + 1);
+        }
+        bufferFor(x).putChar(indexFor(x, y, z), id);
+    }
+
+    @Override
+    public void setModuloCoords(@Nullable T object, int x, int y, int z) {
+        set(object, xInBounds(x), yInBounds(y), zInBounds(z));
+    }
+
+    /**
+     * A {@link MappedVirtualSpace} can't grow, so this only checks the coordinates.
+     * @throws IndexOutOfBoundsException if the coordinates are out of the bounds given at creation
+     */
+    @Override
+    public void ensureCapacityForElement(int x, int y, int z) {
+        if (!contains(x, y, z))
+            throw new IndexOutOfBoundsException("(" + x + ", " + y + ", " + z + ") is out of the bounds of this " +
+                    "mapped virtual space: " + getPrettyCoordinates());
+    }
+
+    /**
+     * @return a copy in the java heap, as a normal {@link VirtualSpace}
+     */
+    @Override
+    public VirtualSpace<T> copy() {
+        VirtualSpace<T> copy = new VirtualSpace<>(getBounds());
+        copy.setEnlargeAtOnce(getEnlargeAtOnce());
+        copy.setFill(getFill());
+        for (int x = xMin(); x <= xMax(); x++) {
+            for (int y = yMin(); y <= yMax(); y++) {
+                for (int z = zMin(); z <= zMax(); z++) {
+                    copy.set(getWithoutFill(x, y, z), x, y, z);
+                }
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Writes the palette and forces every element to be written to the file.
+     */
+    public void flush() throws IOException {
+        writePalette();
+        for (MappedByteBuffer buffer : buffers) {
+            buffer.force();
+        }
+        channel.force(true);
+    }
+
+    /**
+     * Writes the palette and forces the elements with {@code xFrom <= x <= xTo} to be written to the file. This is
+     * useful to save the result bit by bit while it is being generated.
+     */
+    public void flush(int xFrom, int xTo) throws IOException {
+        writePalette();
+        xFrom = Math.max(xFrom, xMin());
+        xTo = Math.min(xTo, xMax());
+        for (int x = xFrom; x <= xTo; ) {
+            final int layerInBuffer = (x - xMin()) % layersPerBuffer;
+            final int layers = Math.min(layersPerBuffer - layerInBuffer, xTo - x + 1);
+            bufferFor(x).force(layerInBuffer * layerBytes, layers * layerBytes);
+            x += layers;
+        }
+        channel.force(true);
+    }
+
+    private void writePalette() throws IOException {
+        final long palettePosition = HEADER_SIZE + dataBytes;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(palette.size());
+        for (T element : palette) {
+            codec.write(element, out);
+        }
+        final @Nullable T fill = getFill();
+        out.writeBoolean(fill != null);
+        if (fill != null) codec.write(fill, out);
+        out.flush();
+
+        ByteBuffer paletteBuffer = ByteBuffer.wrap(bytes.toByteArray());
+        while (paletteBuffer.hasRemaining()) {
+            channel.write(paletteBuffer, palettePosition + paletteBuffer.position());
+        }
+        channel.truncate(palettePosition + bytes.size());
+        ByteBuffer positionBuffer = ByteBuffer.allocate(Long.BYTES).putLong(0, palettePosition);
+        while (positionBuffer.hasRemaining()) {
+            channel.write(positionBuffer, PALETTE_POSITION_OFFSET + positionBuffer.position());
+        }
+    }
+
+    /**
+     * {@link #flush() Flushes} and closes the file. This space must not be used after that.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package fr.bananasmoothii.mcwfc.core;
+
+import fr.bananasmoothii.mcwfc.core.Wave.GenerationFailedException;
+import fr.bananasmoothii.mcwfc.core.util.Bounds;
+import fr.bananasmoothii.mcwfc.core.util.Face;
+import fr.bananasmoothii.mcwfc.core.util.Palette;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+
+/**
+ * The overlapping model of wave function collapse: every patternSize<sup>3</sup> window of the input (and its rotated
+ * and flipped versions) is a pattern, and each cell of the output is one pattern, of which only the first block is
+ * written. Two patterns can be next to each other if they are equal where they overlap once one is moved by one block
+ * towards the other. Unlike {@link MCVirtualSpace#generatePieces(int, boolean, boolean)}, patterns are 1 block apart
+ * instead of pieceSize blocks apart, so small inputs give more natural results.
+ * <p>
+ * The overlaps are indexed by their content, so computing the rules is linear in the number of patterns and of allowed
+ * pairs, instead of comparing every pair of patterns.
+ * @param <B> the type of blocks. In vanilla minecraft, this can be {@code BlockData}.
+ */
+public class OverlappingModel<B> {
+
+    private final int patternSize;
+    private final Palette<Piece.Locked<B>> patterns = new Palette<>();
+    private final AdjacencyRules rules;
+
+    /**
+     * Extracts the patterns of that space, using modulo coordinates (the input loops on every side)
+     * @param allowUpsideDown same as in {@link MCVirtualSpace#generatePieces(int, boolean, boolean)}
+     */
+    public OverlappingModel(@NotNull MCVirtualSpace<B> input, int patternSize, boolean allowUpsideDown) {
+        this(input, patternSize, allowUpsideDown, Face.getCartesianFaces());
+    }
+
+    /**
+     * @param faces the faces where patterns must overlap, for example {@link Face#getAllFaces()} to also check the
+     *              edges and the corners. Propagation is proportional to the number of faces.
+     */
+    public OverlappingModel(@NotNull MCVirtualSpace<B> input, int patternSize, boolean allowUpsideDown,
+                            @NotNull List<Face> faces) {
+        this.patternSize = patternSize;
+        final PieceExtractor<B> extractor = new PieceExtractor<>(input, patternSize);
+        final Map<Piece.Locked<B>, Integer> windowCounts = new HashMap<>();
+        for (int x = input.xMin(); x <= input.xMax(); x++) {
+            for (int y = input.yMin(); y <= input.yMax(); y++) {
+                for (int z = input.zMin(); z <= input.zMax(); z++) {
+                    windowCounts.merge(extractor.getPieceAt(x, y, z), 1, Integer::sum);
+                }
+            }
+        }
+        final Map<Piece.Locked<B>, Integer> weights = new LinkedHashMap<>();
+        windowCounts.forEach((window, count) -> {
+            for (Piece.Locked<B> sibling : window.generateSiblingsLock(allowUpsideDown)) {
+                weights.merge(sibling, count, Integer::sum);
+            }
+        });
+        weights.keySet().forEach(patterns::getOrCreateId);
+
+        rules = new AdjacencyRules(patterns.size(), faces);
+        weights.forEach((pattern, weight) -> rules.setWeight(patterns.getId(pattern), weight));
+        final Palette<B> blocks = new Palette<>();
+        final int[][] blockIds = new int[patterns.size()][];
+        for (int id = 0; id < blockIds.length; id++) {
+            final Piece.Locked<B> pattern = patterns.get(id);
+            blockIds[id] = new int[patternSize * patternSize * patternSize];
+            int index = 0;
+            for (int x = 0; x < patternSize; x++) {
+                for (int y = 0; y < patternSize; y++) {
+                    for (int z = 0; z < patternSize; z++) {
+                        blockIds[id][index++] = blocks.getOrCreateId(pattern.get(x, y, z));
+                    }
+                }
+            }
+        }
+        for (Face face : rules.getFaces()) {
+            // the patterns by the part that overlaps a pattern at the opposite face
+            final Map<Overlap, List<Integer>> byOverlap = new HashMap<>();
+            for (int id = 0; id < blockIds.length; id++) {
+                byOverlap.computeIfAbsent(overlap(blockIds[id], face.getOppositeFace()), k -> new ArrayList<>()).add(id);
+            }
+            for (int id = 0; id < blockIds.length; id++) {
+                final List<Integer> compatible = byOverlap.get(overlap(blockIds[id], face));
+                if (compatible == null) continue;
+                for (int neighbor : compatible) {
+                    rules.allow(id, face, neighbor);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the blocks of that pattern that are overlapped by a pattern at that face, moved by one block towards it
+     */
+    private @NotNull Overlap overlap(int @NotNull [] blockIds, @NotNull Face face) {
+        final int xFrom = Math.max(0, face.getModX()), xTo = patternSize + Math.min(0, face.getModX());
+        final int yFrom = Math.max(0, face.getModY()), yTo = patternSize + Math.min(0, face.getModY());
+        final int zFrom = Math.max(0, face.getModZ()), zTo = patternSize + Math.min(0, face.getModZ());
+        final int[] overlap = new int[(xTo - xFrom) * (yTo - yFrom) * (zTo - zFrom)];
+        int index = 0;
+        for (int x = xFrom; x < xTo; x++) {
+            for (int y = yFrom; y < yTo; y++) {
+                for (int z = zFrom; z < zTo; z++) {
+                    overlap[index++] = blockIds[(x * patternSize + y) * patternSize + z];
+                }
+            }
+        }
+        return new Overlap(overlap);
+    }
+
+    public int getPatternSize() {
+        return patternSize;
+    }
+
+    public int getPatternCount() {
+        return patterns.size();
+    }
+
+    /**
+     * @throws IndexOutOfBoundsException if there is no pattern with that id
+     */
+    @Contract(pure = true)
+    public @NotNull Piece.Locked<B> getPattern(int patternId) {
+        return patterns.get(patternId);
+    }
+
+    /**
+     * @return the rules, the weight of a pattern is the number of times it was seen in the input
+     */
+    public @NotNull AdjacencyRules getRules() {
+        return rules;
+    }
+
+    /**
+     * Collapses a {@link BitsetWave} of these patterns and writes the first block of the pattern of each cell
+     * @param bounds the bounds of the result, one cell is one block
+     * @param useModuloCoords whether the result can be repeated like a tile
+     * @throws GenerationFailedException if the wave could not be collapsed
+     */
+    public @NotNull MCVirtualSpace<B> generate(@NotNull Bounds bounds, boolean useModuloCoords, long seed)
+            throws GenerationFailedException {
+        final BitsetWave wave = new BitsetWave(rules, bounds, useModuloCoords, seed);
+        wave.collapseAll();
+        final MCVirtualSpace<B> result = new MCVirtualSpace<>(bounds, patterns.get(0).get(0, 0, 0));
+        for (int x = bounds.xMin(); x <= bounds.xMax(); x++) {
+            for (int y = bounds.yMin(); y <= bounds.yMax(); y++) {
+                for (int z = bounds.zMin(); z <= bounds.zMax(); z++) {
+                    result.set(patterns.get(wave.getPattern(x, y, z)).get(0, 0, 0), x, y, z);
+                }
+            }
+        }
+        return result;
+    }
+
+    private record Overlap(int @NotNull [] blockIds) {
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Overlap other && Arrays.equals(blockIds, other.blockIds);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(blockIds);
+        }
+    }
+}
@@ -1,20 +1,23 @@
 package fr.bananasmoothii.mcwfc.core;
 
+import fr.bananasmoothii.mcwfc.core.util.Interner;
 import fr.bananasmoothii.mcwfc.core.util.RotationAngle;
+import fr.bananasmoothii.mcwfc.core.util.Symmetry;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.*;
 
-import static fr.bananasmoothii.mcwfc.core.util.RotationAngle.*;
-
 /**
  * @param <B> the type of blocks in this piece. In vanilla minecraft, this can be {@code BlockData}.
  */
 public class Piece<B> {
-    
-    private final @NotNull B[][] @NotNull[] data;
+
+    /**
+     * blocks looping over X, then Y, then Z
+     */
+    private final @NotNull B @NotNull[] data;
     public final int xSize, ySize, zSize;
 
     public Piece(int size, @NotNull B fillBlock) {
@@ -26,27 +29,42 @@ public class Piece<B> {
         fill(fillBlock);
     }
 
+    @SuppressWarnings("unchecked")
     protected Piece(int xSize, int ySize, int zSize) {
-        if (xSize < 1 || ySize < 1 || zSize < 1)
-            throw new IllegalArgumentException("Piece size can't be below 1");
-        //noinspection unchecked
-        data = (B[][][]) new Object[xSize][ySize][zSize];
+        this(xSize, ySize, zSize, (B[]) new Object[checkSizes(xSize, ySize, zSize)]);
+    }
+
+    private Piece(int xSize, int ySize, int zSize, @NotNull B @NotNull[] data) {
+        this.data = data;
         this.xSize = xSize;
         this.ySize = ySize;
         this.zSize = zSize;
     }
 
+    private static int checkSizes(int xSize, int ySize, int zSize) {
+        if (xSize < 1 || ySize < 1 || zSize < 1)
+            throw new IllegalArgumentException("Piece size can't be below 1");
+        return xSize * ySize * zSize;
+    }
+
+    private int index(int x, int y, int z) {
+        if (x < 0 || x >= xSize || y < 0 || y >= ySize || z < 0 || z >= zSize)
+            throw new ArrayIndexOutOfBoundsException("(" + x + ", " + y + ", " + z + ") is out of this piece of size "
+                    + xSize + ", " + ySize + ", " + zSize);
+        return (x * ySize + y) * zSize + z;
+    }
+
     /**
      * @return the block at these positions
      * @throws ArrayIndexOutOfBoundsException if a coordinate is below 0 or above or equal to the size (see xSize, ySize
      * and zSize)
      */
     public @NotNull B get(int x, int y, int z) {
-        return data[x][y][z];
+        return data[index(x, y, z)];
     }
 
     public void set(@NotNull B block, int x, int y, int z) {
-        data[x][y][z] = Objects.requireNonNull(block, "Piece cannot contain null blocks");
+        data[index(x, y, z)] = Objects.requireNonNull(block, "Piece cannot contain null blocks");
         hashCodeCache = null;
     }
 
@@ -56,13 +74,7 @@ public class Piece<B> {
     public void fill(@NotNull B block) {
         Objects.requireNonNull(block, "fill block must be non-null");
         hashCodeCache = null;
-        for (int x = 0; x < xSize; x++) {
-            for (int y = 0; y < ySize; y++) {
-                for (int z = 0; z < zSize; z++) {
-                    data[x][y][z] = block;
-                }
-            }
-        }
+        Arrays.fill(data, block);
     }
 
     /**
@@ -72,76 +84,50 @@ public class Piece<B> {
     public @NotNull Set<Piece<B>> generateSiblings(boolean allowUpsideDown) {
         Set<Piece<B>> pieces = new HashSet<>();
         pieces.add(this);
-        if (allowUpsideDown) {
-            pieces.addAll(generateSiblings(false));
-            pieces.addAll(rotateZ(D90).generateSiblings(false));
-            pieces.addAll(rotateZ(D180).generateSiblings(false));
-            pieces.addAll(rotateZ(D270).generateSiblings(false));
-            pieces.addAll(rotateX(D90).generateSiblings(false));
-            pieces.addAll(rotateX(D270).generateSiblings(false));
-            pieces.addAll(flipY().generateSiblings(false));
-        } else {
-            final Piece<B> r90 = rotateY(D90);
-            if (pieces.add(r90)) {
-                pieces.add(r90.flipX());
-                pieces.add(r90.flipZ());
-            }
-            final Piece<B> r180 = rotateY(D180);
-            if (pieces.add(r180)) {
-                pieces.add(r180.flipX());
-                pieces.add(r180.flipZ());
-            }
-            final Piece<B> r270 = rotateY(D270);
-            if (pieces.add(r270)) {
-                pieces.add(r270.flipX());
-                pieces.add(r270.flipZ());
-            }
-            pieces.add(flipX());
-            pieces.add(flipZ());
+        for (Symmetry symmetry : Symmetry.all(allowUpsideDown)) {
+            if (symmetry != Symmetry.IDENTITY) pieces.add(transform(symmetry));
         }
         return pieces;
     }
 
+    /**
+     * @return a transformed version of this piece, in a single pass using the tables of that symmetry
+     */
+    @Contract(pure = true)
+    public @NotNull Piece<B> transform(@NotNull Symmetry symmetry) {
+        final int[] sizes = {xSize, ySize, zSize};
+        Piece<B> copy = new Piece<>(sizes[symmetry.getAxis(0)], sizes[symmetry.getAxis(1)], sizes[symmetry.getAxis(2)]);
+        final int[] permutation = symmetry.permutation(xSize, ySize, zSize);
+        for (int i = 0; i < permutation.length; i++) {
+            copy.data[i] = data[permutation[i]];
+        }
+        return copy;
+    }
+
+    /**
+     * @return whether this piece is equal to {@code other.transform(symmetry)}, without creating that transformed piece
+     */
+    @Contract(pure = true)
+    public boolean isTransformOf(@NotNull Piece<B> other, @NotNull Symmetry symmetry) {
+        if (xSize != other.size(symmetry.getAxis(0)) || ySize != other.size(symmetry.getAxis(1))
+                || zSize != other.size(symmetry.getAxis(2))) return false;
+        final int[] permutation = symmetry.permutation(other.xSize, other.ySize, other.zSize);
+        for (int i = 0; i < permutation.length; i++) {
+            if (!data[i].equals(other.data[permutation[i]])) return false;
+        }
+        return true;
+    }
+
+    private int size(int axis) {
+        return axis == 0 ? xSize : axis == 1 ? ySize : zSize;
+    }
+
     /**
      * @return a rotated version by <i>angle</i> degrees along the X axis
      */
     @Contract(pure = true)
     public @NotNull Piece<B> rotateX(@NotNull RotationAngle angle) {
-        return switch (angle) {
-            case D90 -> {
-                Piece<B> copy = new Piece<>(xSize, zSize, ySize);
-                for (int x = 0; x < xSize; x++) {
-                    for (int y = 0; y < ySize; y++) {
-                        for (int z = 0; z < zSize; z++) {
-                            copy.data[x][zSize - 1 - z][y] = data[x][y][z];
-                        }
-                    }
-                }
-                yield copy;
-            }
-            case D270 -> {
-                Piece<B> copy = new Piece<>(xSize, zSize, ySize);
-                for (int x = 0; x < xSize; x++) {
-                    for (int y = 0; y < ySize; y++) {
-                        for (int z = 0; z < zSize; z++) {
-                            copy.data[x][z][ySize - 1 - y] = data[x][y][z];
-                        }
-                    }
-                }
-                yield copy;
-            }
-            case D180 -> {
-                Piece<B> copy = new Piece<>(xSize, ySize, zSize);
-                for (int x = 0; x < xSize; x++) {
-                    for (int y = 0; y < ySize; y++) {
-                        for (int z = 0; z < zSize; z++) {
-                            copy.data[x][ySize - 1 -  y][zSize - 1 - z] = data[x][y][z];
-                        }
-                    }
-                }
-                yield copy;
-            }
-        };
+        return transform(Symmetry.rotationX(angle));
     }
 
     /**
@@ -149,78 +135,15 @@ public class Piece<B> {
      */
     @Contract(pure = true)
     public @NotNull Piece<B> rotateY(@NotNull RotationAngle angle) {
-        return switch (angle) {
-            case D90 -> {
-                Piece<B> copy = new Piece<>(zSize, ySize, xSize);
-                for (int x = 0; x < xSize; x++) {
-                    for (int y = 0; y < ySize; y++) {
-                        for (int z = 0; z < zSize; z++) {
-                            copy.data[zSize - 1 - z][y][x] = data[x][y][z];
-                        }
-                    }
-                }
-                yield copy;
-            }
-            case D270 -> {
-                Piece<B> copy = new Piece<>(zSize, ySize, xSize);
-                for (int x = 0; x < xSize; x++) {
-                    for (int y = 0; y < ySize; y++) {
-                        for (int z = 0; z < zSize; z++) {
-                            copy.data[z][y][xSize - 1 - x] = data[x][y][z];
-                        }
-                    }
-                }
-                yield copy;
-            }
-            case D180 -> {
-                Piece<B> copy = new Piece<>(xSize, ySize, zSize);
-                for (int x = 0; x < xSize; x++) {
-                    for (int y = 0; y < ySize; y++) {
-                        for (int z = 0; z < zSize; z++) {
-                            copy.data[xSize - 1 - x][y][zSize - 1 - z] = data[x][y][z];
-                        }
-                    }
-                }
-                yield copy;
-            }
-        };
+        return transform(Symmetry.rotationY(angle));
     }
 
     /**
      * @return a rotated version by <i>angle</i> degrees along the Z axis
      */
-    @SuppressWarnings("SuspiciousNameCombination")
     @Contract(pure = true)
     public @NotNull Piece<B> rotateZ(@NotNull RotationAngle angle) {
-        return switch (angle) {
-            case D90 -> {
-                Piece<B> copy = new Piece<>(ySize, xSize, zSize);
-                for (int x = 0; x < xSize; x++) {
-                    for (int y = 0; y < ySize; y++) {
-                        System.arraycopy(data[x][y], 0, copy.data[ySize - 1 - y][x], 0, zSize);
-                    }
-                }
-                yield copy;
-            }
-            case D270 -> {
-                Piece<B> copy = new Piece<>(ySize, xSize, zSize);
-                for (int x = 0; x < xSize; x++) {
-                    for (int y = 0; y < ySize; y++) {
-                        System.arraycopy(data[x][y], 0, copy.data[y][xSize - 1 - x], 0, zSize);
-                    }
-                }
-                yield copy;
-            }
-            case D180 -> {
-                Piece<B> copy = new Piece<>(xSize, ySize, zSize);
-                for (int x = 0; x < xSize; x++) {
-                    for (int y = 0; y < ySize; y++) {
-                        System.arraycopy(data[x][y], 0, copy.data[xSize - 1 - x][ySize - 1 - y], 0, zSize);
-                    }
-                }
-                yield copy;
-            }
-        };
+        return transform(Symmetry.rotationZ(angle));
     }
 
     /**
@@ -228,13 +151,7 @@ public class Piece<B> {
      */
     @Contract(pure = true)
     public @NotNull Piece<B> flipX() {
-        Piece<B> copy = new Piece<>(xSize, ySize, zSize);
-        for (int x = 0; x < xSize; x++) {
-            for (int y = 0; y < ySize; y++) {
-                System.arraycopy(data[x][y], 0, copy.data[xSize - 1 - x][y], 0, zSize);
-            }
-        }
-        return copy;
+        return transform(Symmetry.FLIP_X);
     }
 
     /**
@@ -242,13 +159,7 @@ public class Piece<B> {
      */
     @Contract(pure = true)
     public @NotNull Piece<B> flipY() {
-        Piece<B> copy = new Piece<>(xSize, ySize, zSize);
-        for (int x = 0; x < xSize; x++) {
-            for (int y = 0; y < ySize; y++) {
-                System.arraycopy(data[x][y], 0, copy.data[x][ySize - 1 - y], 0, zSize);
-            }
-        }
-        return copy;
+        return transform(Symmetry.FLIP_Y);
     }
 
     /**
@@ -256,29 +167,25 @@ public class Piece<B> {
      */
     @Contract(pure = true)
     public @NotNull Piece<B> flipZ() {
-        Piece<B> copy = new Piece<>(xSize, ySize, zSize);
-        for (int x = 0; x < xSize; x++) {
-            for (int y = 0; y < ySize; y++) {
-                for (int z = 0; z < zSize; z++) {
-                    copy.data[x][y][zSize - 1 - z] = data[x][y][z];
-                }
-            }
-        }
-        return copy;
+        return transform(Symmetry.FLIP_Z);
     }
 
     @Override
     public boolean equals(Object o) {
         if (o instanceof Piece piece && hashCode() == piece.hashCode())
-            return Arrays.deepEquals(data, piece.data);
+            return xSize == piece.xSize && ySize == piece.ySize && Arrays.equals(data, piece.data);
         return false;
     }
 
     private @Nullable Integer hashCodeCache = null;
 
+    private static int hashCode(int xSize, int ySize, Object[] data) {
+        return (31 * xSize + ySize) * 31 + Arrays.hashCode(data);
+    }
+
     @Override
     public int hashCode() {
-        if (hashCodeCache == null) hashCodeCache = Arrays.deepHashCode(data);
+        if (hashCodeCache == null) hashCodeCache = hashCode(xSize, ySize, data);
         return hashCodeCache;
     }
 
@@ -292,28 +199,51 @@ public class Piece<B> {
      */
     public static final class Locked<B> extends Piece<B> {
 
-        private static final ArrayList<Locked<?>> instances = new ArrayList<>();
+        private static final Interner<Locked<?>> instances = new Interner<>();
 
         private final int hashCode;
+        private final Optional<Piece.Locked<B>> optional = Optional.of(this);
+        /**
+         * see {@link #getStabilizerMask()}, 0 if not computed yet (the identity bit is always set)
+         */
+        private volatile long stabilizerMask;
 
         private Locked(@NotNull Piece<B> piece) {
-            super(piece.xSize, piece.ySize, piece.zSize);
-            for (int x = 0; x < xSize; x++) {
-                for (int y = 0; y < ySize; y++) {
-                    System.arraycopy(piece.data[x][y], 0, super.data[x][y], 0, zSize);
-                }
-            }
-            hashCode = Arrays.deepHashCode(super.data);
+            this(piece, false);
+        }
+
+        /**
+         * @param shareData whether the blocks of that piece can be used directly, because nothing else will modify it
+         */
+        private Locked(@NotNull Piece<B> piece, boolean shareData) {
+            super(piece.xSize, piece.ySize, piece.zSize, shareData ? piece.data : piece.data.clone());
+            hashCode = Piece.hashCode(xSize, ySize, super.data);
         }
 
+        /**
+         * @return the only {@link Locked} instance equal to that piece. This is thread-safe, and instances that are not
+         * used anymore can be garbage collected.
+         */
         @SuppressWarnings("unchecked")
         public static <B> @NotNull Locked<B> of(@NotNull Piece<B> piece) {
-            for (Locked<?> locked : instances) {
-                if (piece.equals(locked)) return (Locked<B>) locked;
-            }
-            Locked<B> newInstance = new Locked<>(piece);
-            instances.add(newInstance);
-            return newInstance;
+            if (piece instanceof Locked<B> locked) return locked;
+            return (Locked<B>) instances.intern(piece, piece.hashCode(), Locked::new);
+        }
+
+        /**
+         * Same as {@link #of(Piece)}, but the blocks of that piece are reused if it becomes the locked instance, so that
+         * piece must not be used after that.
+         */
+        @SuppressWarnings("unchecked")
+        private static <B> @NotNull Locked<B> ofUnused(@NotNull Piece<B> piece) {
+            return (Locked<B>) instances.intern(piece, piece.hashCode(), p -> new Locked<>(p, true));
+        }
+
+        /**
+         * @return {@code Optional.of(this)}, but always the same instance
+         */
+        public @NotNull Optional<Piece.Locked<B>> asOptional() {
+            return optional;
         }
 
         @Override
@@ -345,67 +275,72 @@ public class Piece<B> {
             return this;
         }
         
+        /**
+         * @return every distinct rotated and flipped version of this piece (it also contains this). Symmetries giving an
+         * orientation already produced are skipped using {@link #getStabilizerMask()}, so each piece is transformed
+         * only once.
+         */
         public @NotNull Set<Piece.Locked<B>> generateSiblingsLock(boolean allowUpsideDown) {
             Set<Locked<B>> pieces = new HashSet<>();
-            pieces.add(this);
-            if (allowUpsideDown) {
-                pieces.addAll(generateSiblingsLock(false));
-                pieces.addAll(rotateZ(D90).generateSiblingsLock(false));
-                pieces.addAll(rotateZ(D180).generateSiblingsLock(false));
-                pieces.addAll(rotateZ(D270).generateSiblingsLock(false));
-                pieces.addAll(rotateX(D90).generateSiblingsLock(false));
-                pieces.addAll(rotateX(D270).generateSiblingsLock(false));
-                pieces.addAll(flipY().generateSiblingsLock(false));
-            } else {
-                final Locked<B> r90 = rotateY(D90);
-                if (pieces.add(r90)) {
-                    pieces.add(r90.flipX());
-                    pieces.add(r90.flipZ());
-                }
-                final Locked<B> r180 = rotateY(D180);
-                if (pieces.add(r180)) {
-                    pieces.add(r180.flipX());
-                    pieces.add(r180.flipZ());
-                }
-                final Locked<B> r270 = rotateY(D270);
-                if (pieces.add(r270)) {
-                    pieces.add(r270.flipX());
-                    pieces.add(r270.flipZ());
-                }
-                pieces.add(flipX());
-                pieces.add(flipZ());
+            final long stabilizer = getStabilizerMask();
+            long done = 0;
+            for (Symmetry symmetry : Symmetry.all(allowUpsideDown)) {
+                if ((done & 1L << symmetry.getIndex()) != 0) continue;
+                pieces.add(transform(symmetry));
+                done |= symmetry.precededBy(stabilizer);
             }
             return pieces;
         }
 
+        /**
+         * @return a mask where the bit {@link Symmetry#getIndex() i} is set if {@link Symmetry#get(int) Symmetry.get(i)}
+         * leaves this piece unchanged. It is computed once, without transforming this piece.
+         */
+        public long getStabilizerMask() {
+            long mask = stabilizerMask;
+            if (mask == 0) {
+                for (int i = 0; i < 48; i++) {
+                    if (isTransformOf(this, Symmetry.get(i))) mask |= 1L << i;
+                }
+                stabilizerMask = mask;
+            }
+            return mask;
+        }
+
+        @Override
+        public @NotNull Locked<B> transform(@NotNull Symmetry symmetry) {
+            if (symmetry == Symmetry.IDENTITY) return this;
+            return ofUnused(super.transform(symmetry));
+        }
+
         @Override
         public @NotNull Locked<B> rotateX(@NotNull RotationAngle angle) {
-            return super.rotateX(angle).lock();
+            return transform(Symmetry.rotationX(angle));
         }
 
         @Override
         public @NotNull Locked<B> rotateY(@NotNull RotationAngle angle) {
-            return super.rotateY(angle).lock();
+            return transform(Symmetry.rotationY(angle));
         }
 
         @Override
         public @NotNull Locked<B> rotateZ(@NotNull RotationAngle angle) {
-            return super.rotateZ(angle).lock();
+            return transform(Symmetry.rotationZ(angle));
         }
 
         @Override
         public @NotNull Locked<B> flipX() {
-            return super.flipX().lock();
+            return transform(Symmetry.FLIP_X);
         }
 
         @Override
         public @NotNull Locked<B> flipY() {
-            return super.flipY().lock();
+            return transform(Symmetry.FLIP_Y);
         }
 
         @Override
         public @NotNull Locked<B> flipZ() {
-            return super.flipZ().lock();
+            return transform(Symmetry.FLIP_Z);
         }
     }
 
@@ -413,7 +348,7 @@ public class Piece<B> {
     public void debugPrint(int zLayer) {
         for (int y = 0; y < ySize; y++) {
             for (int x = 0; x < xSize; x++) {
-                System.out.print(data[x][y][zLayer]);
+                System.out.print(get(x, y, zLayer));
                 System.out.print(' ');
             }
             System.out.print('\n');
@@ -426,7 +361,7 @@ public class Piece<B> {
         for (int y = 0; y < ySize; y++) {
             for (int z = 0; z < zSize; z++) {
                 for (int x = 0; x < xSize; x++) {
-                    System.out.print(data[x][y][z]);
+                    System.out.print(get(x, y, z));
                     System.out.print(' ');
                 }
                 System.out.print("   ");
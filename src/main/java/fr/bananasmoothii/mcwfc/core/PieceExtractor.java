@@ -0,0 +1,230 @@
+package fr.bananasmoothii.mcwfc.core;
+
+import fr.bananasmoothii.mcwfc.core.util.Bounds;
+import fr.bananasmoothii.mcwfc.core.util.Palette;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Gives the {@link Piece} at each position of a {@link MCVirtualSpace}, like
+ * {@link MCVirtualSpace#getPieceAt(int, int, int, int, boolean)}, but without building a new {@link Piece} for each
+ * position. Each block gets a random 64-bit value (a Zobrist value of its palette id), and the hash of every
+ * pieceSize<sup>3</sup> window is computed with a rolling hash along Z, then Y, then X, so that computing all the
+ * hashes only reads each block a few times. A {@link Piece} is only built the first time its hash is seen.
+ * <p>
+ * When a hash was already seen, the palette ids of the window are compared to the ones of the window where that piece
+ * was built, so two different pieces having the same 64-bit hash are still told apart. This is done once per window:
+ * the piece found is then kept for that window, so later lookups at the same position are O(1). This is a snapshot:
+ * modifying the space after creating the extractor doesn't change the pieces. It is thread-safe.
+ * @param <B> the type of blocks in this piece. In vanilla minecraft, this can be {@code BlockData}.
+ */
+public class PieceExtractor<B> {
+
+    private static final long Z_MULTIPLIER = 0x9E3779B97F4A7C15L;
+    private static final long Y_MULTIPLIER = 0xC2B2AE3D27D4EB4FL;
+    private static final long X_MULTIPLIER = 0x165667B19E3779F9L;
+
+    private final Bounds bounds;
+    private final int pieceSize;
+    private final int xSize, ySize, zSize;
+    private final Palette<B> palette = new Palette<>();
+    /**
+     * palette ids of the blocks, looping over X, then Y, then Z
+     */
+    private final int[] ids;
+    /**
+     * hash of the piece starting at each position, in the same order as ids
+     */
+    private final long[] hashes;
+    /**
+     * the pieces already built, chained when different pieces have the same hash
+     */
+    private final ConcurrentHashMap<Long, Entry<B>> piecesByHash = new ConcurrentHashMap<>();
+    /**
+     * the piece starting at each position, in the same order as ids, or {@code null} if it wasn't looked up yet
+     */
+    private final AtomicReferenceArray<Piece.Locked<B>> piecesAt;
+
+    /**
+     * Reads the whole space and computes the hash of every piece
+     */
+    public PieceExtractor(@NotNull MCVirtualSpace<B> space, int pieceSize) {
+        if (pieceSize < 1) throw new IllegalArgumentException("Piece size can't be below 1");
+        this.pieceSize = pieceSize;
+        bounds = space.getBounds();
+        xSize = bounds.xSize();
+        ySize = bounds.ySize();
+        zSize = bounds.zSize();
+        final B fill = space.getFill();
+        ids = new int[xSize * ySize * zSize];
+        piecesAt = new AtomicReferenceArray<>(ids.length);
+        int index = 0;
+        for (int x = bounds.xMin(); x <= bounds.xMax(); x++) {
+            for (int y = bounds.yMin(); y <= bounds.yMax(); y++) {
+                for (int z = bounds.zMin(); z <= bounds.zMax(); z++) {
+                    ids[index++] = palette.getOrCreateId(space.getOrDefault(x, y, z, fill));
+                }
+            }
+        }
+
+        final long[] zobristValues = zobristValues(palette.size());
+        hashes = new long[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            hashes[i] = zobristValues[ids[i]];
+        }
+        final long[] line = new long[Math.max(xSize, Math.max(ySize, zSize))];
+        for (int x = 0; x < xSize; x++) {
+            for (int y = 0; y < ySize; y++) {
+                roll(hashes, (x * ySize + y) * zSize, 1, zSize, line, Z_MULTIPLIER);
+            }
+        }
+        for (int x = 0; x < xSize; x++) {
+            for (int z = 0; z < zSize; z++) {
+                roll(hashes, x * ySize * zSize + z, zSize, ySize, line, Y_MULTIPLIER);
+            }
+        }
+        for (int y = 0; y < ySize; y++) {
+            for (int z = 0; z < zSize; z++) {
+                roll(hashes, y * zSize + z, ySize * zSize, xSize, line, X_MULTIPLIER);
+            }
+        }
+    }
+
+    /**
+     * Gives the random value of each palette id, used to compute the hashes. As pieces with the same hash are compared,
+     * the pieces are right whatever these values are, they only have to be random to be fast. This is called by the
+     * constructor.
+     */
+    protected long @NotNull [] zobristValues(int paletteSize) {
+        final SplittableRandom random = new SplittableRandom(paletteSize * 31L + pieceSize);
+        final long[] zobristValues = new long[paletteSize];
+        for (int i = 0; i < zobristValues.length; i++) {
+            zobristValues[i] = random.nextLong();
+        }
+        return zobristValues;
+    }
+
+    /**
+     * Replaces each value of a line (that loops, like modulo coordinates) by the polynomial hash of the pieceSize
+     * values starting there.
+     * @param line a buffer at least as long as the line
+     */
+    private void roll(long[] values, int start, int stride, int length, long[] line, long multiplier) {
+        for (int i = 0; i < length; i++) {
+            line[i] = values[start + i * stride];
+        }
+        long highestPower = 1;
+        for (int i = 1; i < pieceSize; i++) {
+            highestPower *= multiplier;
+        }
+        long hash = 0;
+        for (int i = 0; i < pieceSize; i++) {
+            hash = hash * multiplier + line[i % length];
+        }
+        for (int i = 0; i < length; i++) {
+            values[start + i * stride] = hash;
+            hash = (hash - line[i] * highestPower) * multiplier + line[(i + pieceSize) % length];
+        }
+    }
+
+    public int getPieceSize() {
+        return pieceSize;
+    }
+
+    /**
+     * @return the palette of the blocks in the space
+     */
+    public @NotNull Palette<B> getPalette() {
+        return palette;
+    }
+
+    private int index(int x, int y, int z) {
+        return ((Math.floorMod(x - bounds.xMin(), xSize)) * ySize + Math.floorMod(y - bounds.yMin(), ySize)) * zSize
+                + Math.floorMod(z - bounds.zMin(), zSize);
+    }
+
+    /**
+     * @return the hash of the piece starting at these coordinates, using modulo coordinates. Equal pieces have the
+     * same hash.
+     */
+    public long getHashAt(int x, int y, int z) {
+        return hashes[index(x, y, z)];
+    }
+
+    /**
+     * @return the same as {@link MCVirtualSpace#getPieceAt(int, int, int, int, boolean)} with modulo coordinates
+     */
+    public @NotNull Piece.Locked<B> getPieceAt(int x, int y, int z) {
+        final int index = index(x, y, z);
+        Piece.Locked<B> piece = piecesAt.get(index);
+        if (piece != null) return piece;
+        final Entry<B> entry = find(piecesByHash.get(hashes[index]), index);
+        piece = entry != null ? entry.piece : find(piecesByHash.compute(hashes[index], (hash, head) ->
+                find(head, index) != null ? head : new Entry<>(index, buildPiece(index), head)), index).piece;
+        piecesAt.set(index, piece); // other threads can only find the same piece
+        return piece;
+    }
+
+    /**
+     * @return the entry of that chain whose window has the same blocks as the window at index, or {@code null}
+     */
+    private @Nullable Entry<B> find(@Nullable Entry<B> entry, int index) {
+        for (; entry != null; entry = entry.next) {
+            if (sameWindow(entry.index, index)) return entry;
+        }
+        return null;
+    }
+
+    /**
+     * @return whether the pieces starting at these two indexes have the same blocks, without building them
+     */
+    private boolean sameWindow(int index1, int index2) {
+        if (index1 == index2) return true;
+        final int x1 = index1 / (ySize * zSize), y1 = index1 / zSize % ySize, z1 = index1 % zSize;
+        final int x2 = index2 / (ySize * zSize), y2 = index2 / zSize % ySize, z2 = index2 % zSize;
+        for (int dx = 0; dx < pieceSize; dx++) {
+            for (int dy = 0; dy < pieceSize; dy++) {
+                for (int dz = 0; dz < pieceSize; dz++) {
+                    if (ids[(((x1 + dx) % xSize) * ySize + (y1 + dy) % ySize) * zSize + (z1 + dz) % zSize]
+                            != ids[(((x2 + dx) % xSize) * ySize + (y2 + dy) % ySize) * zSize + (z2 + dz) % zSize])
+                        return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the same as {@link MCVirtualSpace#getPieceAt(int, int, int, int, boolean)}
+     */
+    public @Nullable Piece.Locked<B> getPieceAt(int x, int y, int z, boolean useModuloCoords) {
+        if (!useModuloCoords && (x < bounds.xMin() || y < bounds.yMin() || z < bounds.zMin()
+                || x + pieceSize > bounds.xMax() || y + pieceSize > bounds.yMax() || z + pieceSize > bounds.zMax()))
+            return null;
+        return getPieceAt(x, y, z);
+    }
+
+    private @NotNull Piece.Locked<B> buildPiece(int index) {
+        final int x = index / (ySize * zSize), y = index / zSize % ySize, z = index % zSize;
+        final Piece<B> piece = new Piece<>(pieceSize, palette.get(ids[index]));
+        for (int dx = 0; dx < pieceSize; dx++) {
+            for (int dy = 0; dy < pieceSize; dy++) {
+                for (int dz = 0; dz < pieceSize; dz++) {
+                    final int blockIndex = (((x + dx) % xSize) * ySize + (y + dy) % ySize) * zSize + (z + dz) % zSize;
+                    piece.set(palette.get(ids[blockIndex]), dx, dy, dz);
+                }
+            }
+        }
+        return piece.lock();
+    }
+
+    /**
+     * A piece, the index of a window where it is, and the next piece with the same hash
+     */
+    private record Entry<B>(int index, @NotNull Piece.Locked<B> piece, @Nullable Entry<B> next) {
+    }
+}
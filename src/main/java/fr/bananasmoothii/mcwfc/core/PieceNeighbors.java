@@ -1,45 +1,178 @@
 package fr.bananasmoothii.mcwfc.core;
 
 import fr.bananasmoothii.mcwfc.core.util.Face;
+import fr.bananasmoothii.mcwfc.core.util.Interner;
 import fr.bananasmoothii.mcwfc.core.util.RotationAngle;
+import fr.bananasmoothii.mcwfc.core.util.Symmetry;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.*;
 
-import static fr.bananasmoothii.mcwfc.core.util.RotationAngle.*;
-
 /**
+ * The pieces around a center piece. This is a {@link Map} from {@link Face}s to pieces, where
+ * {@link Optional#empty()} means that there can't be any piece at that face, and a missing face means that any piece
+ * can be there. Neighbors are stored in a small array indexed by {@link Face#ordinal()}, which only holds the 6
+ * {@link Face#getCartesianFaces() cartesian faces} unless another face is added.
  * @param <B> the type of blocks in this piece. In vanilla minecraft, this can be {@code BlockData}.
  */
-public class PieceNeighbors<B> extends HashMap<Face, Optional<Piece.Locked<B>>> {
+public class PieceNeighbors<B> extends AbstractMap<Face, Optional<Piece.Locked<B>>> {
+    private static final Face[] FACES = Face.values();
+    private static final int CARTESIAN_FACES = 6;
+
     private final @NotNull Piece.Locked<B> centerPiece;
+    /**
+     * {@code null} for missing faces
+     */
+    private Optional<Piece.Locked<B>>[] slots;
+    private int size = 0;
 
     public PieceNeighbors(@NotNull Piece.Locked<B> centerPiece) {
         this.centerPiece = Objects.requireNonNull(centerPiece);
+        slots = newSlots(CARTESIAN_FACES);
     }
 
     public PieceNeighbors(Map<? extends Face, ? extends Optional<Piece.Locked<B>>> m, @NotNull Piece.Locked<B> centerPiece) {
-        super(m);
         this.centerPiece = Objects.requireNonNull(centerPiece);
+        if (m instanceof PieceNeighbors<?> other) {
+            @SuppressWarnings("unchecked")
+            final PieceNeighbors<B> neighbors = (PieceNeighbors<B>) other;
+            slots = neighbors.slots.clone();
+            size = other.size;
+        } else {
+            slots = newSlots(CARTESIAN_FACES);
+            for (Entry<? extends Face, ? extends Optional<Piece.Locked<B>>> entry : m.entrySet()) {
+                setSlot(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <B> Optional<Piece.Locked<B>>[] newSlots(int length) {
+        return new Optional[length];
     }
 
     public @NotNull Piece.Locked<B> getCenterPiece() {
         return centerPiece;
     }
 
+    /**
+     * @return the previous value
+     */
+    private @Nullable Optional<Piece.Locked<B>> setSlot(@NotNull Face face, @Nullable Optional<Piece.Locked<B>> value) {
+        final int index = face.ordinal();
+        if (index >= slots.length) {
+            if (value == null) return null;
+            slots = Arrays.copyOf(slots, FACES.length);
+        }
+        final Optional<Piece.Locked<B>> previous = slots[index];
+        // sharing the same Optional for each piece saves a lot of memory
+        slots[index] = value == null || value.isEmpty() ? value : value.get().asOptional();
+        if (previous == null && value != null) size++;
+        else if (previous != null && value == null) size--;
+        return previous;
+    }
+
+    @Override
+    public Optional<Piece.Locked<B>> get(Object key) {
+        if (!(key instanceof Face face)) return null;
+        final int index = face.ordinal();
+        return index < slots.length ? slots[index] : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    /**
+     * @param value must not be {@code null}, use {@link Optional#empty()} instead
+     */
+    @Override
+    public Optional<Piece.Locked<B>> put(@NotNull Face key, @NotNull Optional<Piece.Locked<B>> value) {
+        return setSlot(Objects.requireNonNull(key), Objects.requireNonNull(value, "use Optional.empty() instead of null"));
+    }
+
+    @Override
+    public Optional<Piece.Locked<B>> remove(Object key) {
+        if (!(key instanceof Face face)) return null;
+        return setSlot(face, null);
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(slots, null);
+        size = 0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public @NotNull Set<Entry<Face, Optional<Piece.Locked<B>>>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            public @NotNull Iterator<Entry<Face, Optional<Piece.Locked<B>>>> iterator() {
+                return new Iterator<>() {
+                    private int next = nextIndex(0);
+                    private int current = -1;
+
+                    private int nextIndex(int from) {
+                        while (from < slots.length && slots[from] == null) from++;
+                        return from;
+                    }
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < slots.length;
+                    }
+
+                    @Override
+                    public Entry<Face, Optional<Piece.Locked<B>>> next() {
+                        if (!hasNext()) throw new NoSuchElementException();
+                        current = next;
+                        next = nextIndex(next + 1);
+                        return new SimpleImmutableEntry<>(FACES[current], slots[current]);
+                    }
+
+                    @Override
+                    public void remove() {
+                        if (current == -1) throw new IllegalStateException();
+                        PieceNeighbors.this.remove(FACES[current]);
+                        current = -1;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
-        if (!(o instanceof PieceNeighbors that)) return false;
-        if (!super.equals(o)) return false;
-
-        return centerPiece.equals(that.centerPiece);
+        if (!(o instanceof PieceNeighbors<?> that)) return false;
+        if (size != that.size || !centerPiece.equals(that.centerPiece)) return false;
+        for (int i = 0; i < Math.max(slots.length, that.slots.length); i++) {
+            if (!Objects.equals(i < slots.length ? slots[i] : null, i < that.slots.length ? that.slots[i] : null))
+                return false;
+        }
+        return true;
     }
 
     @Override
     public int hashCode() {
-        int copy = super.hashCode();
+        int copy = 0;
+        for (int i = 0; i < slots.length; i++) {
+            // same as Map.hashCode()
+            if (slots[i] != null) copy += FACES[i].hashCode() ^ slots[i].hashCode();
+        }
         copy = 31 * copy + centerPiece.hashCode();
         return copy;
     }
@@ -51,111 +184,131 @@ public class PieceNeighbors<B> extends HashMap<Face, Optional<Piece.Locked<B>>>
     public @NotNull Set<PieceNeighbors<B>> generateSiblings(boolean allowUpsideDown) {
         Set<PieceNeighbors<B>> pieces = new HashSet<>();
         pieces.add(this);
-        if (allowUpsideDown) {
-            pieces.addAll(generateSiblings(false));
-            pieces.addAll(rotateZ(D90).generateSiblings(false));
-            pieces.addAll(rotateZ(D180).generateSiblings(false));
-            pieces.addAll(rotateZ(D270).generateSiblings(false));
-            pieces.addAll(rotateX(D90).generateSiblings(false));
-            pieces.addAll(rotateX(D270).generateSiblings(false));
-            pieces.addAll(flipY().generateSiblings(false));
-        } else {
-            final PieceNeighbors<B> r90 = rotateY(D90);
-            if (pieces.add(r90)) {
-                pieces.add(r90.flipX());
-                pieces.add(r90.flipZ());
-            }
-            final PieceNeighbors<B> r180 = rotateY(D180);
-            if (pieces.add(r180)) {
-                pieces.add(r180.flipX());
-                pieces.add(r180.flipZ());
-            }
-            final PieceNeighbors<B> r270 = rotateY(D270);
-            if (pieces.add(r270)) {
-                pieces.add(r270.flipX());
-                pieces.add(r270.flipZ());
-            }
-            pieces.add(flipX());
-            pieces.add(flipZ());
+        for (Symmetry symmetry : Symmetry.all(allowUpsideDown)) {
+            if (symmetry != Symmetry.IDENTITY) pieces.add(transform(symmetry));
         }
         return pieces;
     }
 
     /**
-     * @return a rotated version by <i>angle</i> degrees along the X axis
+     * @return a copy where the center piece and every neighbor are transformed, and every neighbor is moved to the
+     * face given by {@link Symmetry#apply(Face)}
      */
     @Contract(pure = true)
-    public @NotNull PieceNeighbors<B> rotateX(final @NotNull RotationAngle angle) {
-        PieceNeighbors<B> copy = new PieceNeighbors<>(centerPiece.rotateX(angle));
-        for (Map.Entry<Face, Optional<Piece.Locked<B>>> entry : entrySet()) {
-            copy.put(entry.getKey().rotateX(angle), entry.getValue().map(piece -> piece.rotateX(angle)));
+    public @NotNull PieceNeighbors<B> transform(@NotNull Symmetry symmetry) {
+        PieceNeighbors<B> copy = new PieceNeighbors<>(centerPiece.transform(symmetry));
+        for (int i = 0; i < slots.length; i++) {
+            final Optional<Piece.Locked<B>> slot = slots[i];
+            if (slot == null) continue;
+            copy.setSlot(symmetry.apply(FACES[i]), slot.isPresent() ? slot.get().transform(symmetry).asOptional() : slot);
         }
         return copy;
     }
 
+    /**
+     * @return a rotated version by <i>angle</i> degrees along the X axis
+     */
+    @Contract(pure = true)
+    public @NotNull PieceNeighbors<B> rotateX(final @NotNull RotationAngle angle) {
+        return transform(Symmetry.rotationX(angle));
+    }
+
     public @NotNull PieceNeighbors<B> rotateY(final @NotNull RotationAngle angle) {
-        PieceNeighbors<B> copy = new PieceNeighbors<>(centerPiece.rotateY(angle));
-        for (Map.Entry<Face, Optional<Piece.Locked<B>>> entry : entrySet()) {
-            copy.put(entry.getKey().rotateY(angle), entry.getValue().map(piece -> piece.rotateY(angle)));
-        }
-        return copy;
+        return transform(Symmetry.rotationY(angle));
     }
 
     public @NotNull PieceNeighbors<B> rotateZ(final @NotNull RotationAngle angle) {
-        PieceNeighbors<B> copy = new PieceNeighbors<>(centerPiece.rotateZ(angle));
-        for (Map.Entry<Face, Optional<Piece.Locked<B>>> entry : entrySet()) {
-            copy.put(entry.getKey().rotateZ(angle), entry.getValue().map(piece -> piece.rotateZ(angle)));
-        }
-        return copy;
+        return transform(Symmetry.rotationZ(angle));
     }
 
     public @NotNull PieceNeighbors<B> flipX() {
-        PieceNeighbors<B> copy = new PieceNeighbors<>(centerPiece.flipX());
-        for (Map.Entry<Face, Optional<Piece.Locked<B>>> entry : entrySet()) {
-            copy.put(entry.getKey().flipX(), entry.getValue().map(Piece.Locked::flipX));
-        }
-        return copy;
+        return transform(Symmetry.FLIP_X);
     }
 
     public @NotNull PieceNeighbors<B> flipY() {
-        PieceNeighbors<B> copy = new PieceNeighbors<>(centerPiece.flipY());
-        for (Map.Entry<Face, Optional<Piece.Locked<B>>> entry : entrySet()) {
-            copy.put(entry.getKey().flipY(), entry.getValue().map(Piece.Locked::flipY));
-        }
-        return copy;
+        return transform(Symmetry.FLIP_Y);
     }
 
     public @NotNull PieceNeighbors<B> flipZ() {
-        PieceNeighbors<B> copy = new PieceNeighbors<>(centerPiece.flipZ());
-        for (Map.Entry<Face, Optional<Piece.Locked<B>>> entry : entrySet()) {
-            copy.put(entry.getKey().flipZ(), entry.getValue().map(Piece.Locked::flipZ));
-        }
-        return copy;
+        return transform(Symmetry.FLIP_Z);
     }
 
     public @NotNull Locked<B> lock() {
         return Locked.of(this);
     }
 
+    /**
+     * @see Locked#of(PieceNeighbors, Interner)
+     */
+    public @NotNull Locked<B> lock(@NotNull Interner<Locked<?>> pool) {
+        return Locked.of(this, pool);
+    }
+
     public static final class Locked<B> extends PieceNeighbors<B> {
 
-        private static final ArrayList<Locked<?>> instances = new ArrayList<>();
+        /**
+         * The pool used by {@link #of(PieceNeighbors)}
+         */
+        public static final Interner<Locked<?>> DEFAULT_POOL = new Interner<>();
 
         private final int hashCode;
+        private final @NotNull Interner<Locked<?>> pool;
+        /**
+         * see {@link #getStabilizerMask()}, 0 if not computed yet (the identity bit is always set)
+         */
+        private volatile long stabilizerMask;
 
-        private Locked(final @NotNull PieceNeighbors<B> pieceNeighbors) {
+        private Locked(final @NotNull PieceNeighbors<B> pieceNeighbors, @NotNull Interner<Locked<?>> pool) {
             super(pieceNeighbors, pieceNeighbors.centerPiece);
             hashCode = pieceNeighbors.hashCode();
+            this.pool = pool;
         }
 
-        @SuppressWarnings("unchecked")
+        /**
+         * Same as {@link #of(PieceNeighbors, Interner)} with the {@link #DEFAULT_POOL}
+         */
         public static <B> @NotNull Locked<B> of(@NotNull PieceNeighbors<B> pieceNeighbors) {
-            for (Locked<?> locked : instances) {
-                if (pieceNeighbors.equals(locked)) return (Locked<B>) locked;
+            return of(pieceNeighbors, DEFAULT_POOL);
+        }
+
+        /**
+         * This is thread-safe, and instances that are not used anymore can be garbage collected.
+         * @param pool where to look for the instance. Two {@link Locked} instances from different pools are never equal,
+         *             so everything going in the same {@link Sample} should come from the same pool. Rotating or
+         *             flipping a {@link Locked} gives an instance from the same pool.
+         * @return the only {@link Locked} instance of that pool equal to pieceNeighbors
+         */
+        @SuppressWarnings("unchecked")
+        public static <B> @NotNull Locked<B> of(@NotNull PieceNeighbors<B> pieceNeighbors,
+                                                @NotNull Interner<Locked<?>> pool) {
+            if (pieceNeighbors instanceof Locked<B> locked) {
+                if (locked.pool == pool) return locked;
+                // equals() of a Locked only works by identity, so compare the content instead
+                pieceNeighbors = new PieceNeighbors<>(locked, locked.getCenterPiece());
             }
-            Locked<B> newInstance = new Locked<>(pieceNeighbors);
-            instances.add(newInstance);
-            return newInstance;
+            return (Locked<B>) pool.intern(pieceNeighbors, pieceNeighbors.hashCode(), key -> new Locked<>(key, pool));
+        }
+
+        @Override
+        public Optional<Piece.Locked<B>> put(@NotNull Face key, @NotNull Optional<Piece.Locked<B>> value) {
+            throw new UnsupportedOperationException("These piece neighbors are locked");
+        }
+
+        @Override
+        public Optional<Piece.Locked<B>> remove(Object key) {
+            throw new UnsupportedOperationException("These piece neighbors are locked");
+        }
+
+        @Override
+        public void clear() {
+            throw new UnsupportedOperationException("These piece neighbors are locked");
+        }
+
+        /**
+         * @return the pool this instance comes from
+         */
+        public @NotNull Interner<Locked<?>> getPool() {
+            return pool;
         }
 
         /**
@@ -177,67 +330,89 @@ public class PieceNeighbors<B> extends HashMap<Face, Optional<Piece.Locked<B>>>
             return this;
         }
 
+        /**
+         * @return every distinct rotated and flipped version of this (it also contains this). Symmetries giving an
+         * orientation already produced are skipped using {@link #getStabilizerMask()}, so each one is transformed only
+         * once.
+         */
         public @NotNull Set<PieceNeighbors.Locked<B>> generateSiblingsLock(boolean allowUpsideDown) {
             Set<Locked<B>> pieces = new HashSet<>();
-            pieces.add(this);
-            if (allowUpsideDown) {
-                pieces.addAll(generateSiblingsLock(false));
-                pieces.addAll(rotateZ(D90).generateSiblingsLock(false));
-                pieces.addAll(rotateZ(D180).generateSiblingsLock(false));
-                pieces.addAll(rotateZ(D270).generateSiblingsLock(false));
-                pieces.addAll(rotateX(D90).generateSiblingsLock(false));
-                pieces.addAll(rotateX(D270).generateSiblingsLock(false));
-                pieces.addAll(flipY().generateSiblingsLock(false));
-            } else {
-                final PieceNeighbors.Locked<B> r90 = rotateY(D90);
-                if (pieces.add(r90)) {
-                    pieces.add(r90.flipX());
-                    pieces.add(r90.flipZ());
-                }
-                final PieceNeighbors.Locked<B> r180 = rotateY(D180);
-                if (pieces.add(r180)) {
-                    pieces.add(r180.flipX());
-                    pieces.add(r180.flipZ());
-                }
-                final PieceNeighbors.Locked<B> r270 = rotateY(D270);
-                if (pieces.add(r270)) {
-                    pieces.add(r270.flipX());
-                    pieces.add(r270.flipZ());
-                }
-                pieces.add(flipX());
-                pieces.add(flipZ());
+            final long stabilizer = getStabilizerMask();
+            long done = 0;
+            for (Symmetry symmetry : Symmetry.all(allowUpsideDown)) {
+                if ((done & 1L << symmetry.getIndex()) != 0) continue;
+                pieces.add(transform(symmetry));
+                done |= symmetry.precededBy(stabilizer);
             }
             return pieces;
         }
 
+        /**
+         * @return a mask where the bit {@link Symmetry#getIndex() i} is set if {@link Symmetry#get(int) Symmetry.get(i)}
+         * leaves this unchanged. It is computed once, without transforming anything.
+         */
+        public long getStabilizerMask() {
+            long mask = stabilizerMask;
+            if (mask == 0) {
+                for (int i = 0; i < 48; i++) {
+                    if (isUnchangedBy(Symmetry.get(i))) mask |= 1L << i;
+                }
+                stabilizerMask = mask;
+            }
+            return mask;
+        }
+
+        private boolean isUnchangedBy(@NotNull Symmetry symmetry) {
+            final Piece.Locked<B> center = getCenterPiece();
+            if (!center.isTransformOf(center, symmetry)) return false;
+            final Optional<Piece.Locked<B>>[] slots = super.slots;
+            for (int i = 0; i < slots.length; i++) {
+                final Optional<Piece.Locked<B>> slot = slots[i];
+                if (slot == null) continue;
+                final int target = symmetry.apply(FACES[i]).ordinal();
+                if (target >= slots.length) return false;
+                final Optional<Piece.Locked<B>> targetSlot = slots[target];
+                // as the symmetry moves each face to a different face, checking the present slots is enough
+                if (targetSlot == null || slot.isPresent() != targetSlot.isPresent()) return false;
+                if (slot.isPresent() && !targetSlot.get().isTransformOf(slot.get(), symmetry)) return false;
+            }
+            return true;
+        }
+
+        @Override
+        public @NotNull PieceNeighbors.Locked<B> transform(@NotNull Symmetry symmetry) {
+            if (symmetry == Symmetry.IDENTITY) return this;
+            return super.transform(symmetry).lock(pool);
+        }
+
         @Override
         public @NotNull PieceNeighbors.Locked<B> rotateX(@NotNull RotationAngle angle) {
-            return super.rotateX(angle).lock();
+            return transform(Symmetry.rotationX(angle));
         }
 
         @Override
         public @NotNull PieceNeighbors.Locked<B> rotateY(@NotNull RotationAngle angle) {
-            return super.rotateY(angle).lock();
+            return transform(Symmetry.rotationY(angle));
         }
 
         @Override
         public @NotNull PieceNeighbors.Locked<B> rotateZ(@NotNull RotationAngle angle) {
-            return super.rotateZ(angle).lock();
+            return transform(Symmetry.rotationZ(angle));
         }
 
         @Override
         public @NotNull PieceNeighbors.Locked<B> flipX() {
-            return super.flipX().lock();
+            return transform(Symmetry.FLIP_X);
         }
 
         @Override
         public @NotNull PieceNeighbors.Locked<B> flipY() {
-            return super.flipY().lock();
+            return transform(Symmetry.FLIP_Y);
         }
 
         @Override
         public @NotNull PieceNeighbors.Locked<B> flipZ() {
-            return super.flipZ().lock();
+            return transform(Symmetry.FLIP_Z);
         }
     }
 }
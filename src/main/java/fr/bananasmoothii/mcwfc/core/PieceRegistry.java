@@ -0,0 +1,160 @@
+package fr.bananasmoothii.mcwfc.core;
+
+import fr.bananasmoothii.mcwfc.core.util.Face;
+import fr.bananasmoothii.mcwfc.core.util.Palette;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.Optional;
+
+/**
+ * Gives a dense {@code int} id to every {@link Piece.Locked} and every {@link PieceNeighbors.Locked} of a
+ * {@link Sample}, so that solvers can use primitive arrays (bitsets, counters, adjacency tables...) indexed by id
+ * instead of maps. Ids start at 0 and never change once they are given.
+ * <p>
+ * Neighbors of a {@link PieceNeighbors.Locked} are stored as piece ids for each of the 6
+ * {@link Face#getCartesianFaces() cartesian faces}, indexed by {@link Face#ordinal()}. {@link #NO_NEIGHBOR} means
+ * that there can't be any piece on that face ({@link Optional#empty()}), and {@link #ANY_NEIGHBOR} means that the
+ * face is not in the {@link PieceNeighbors} at all.
+ * @param <B> the type of the blocks in the {@link Piece}s. For example, in bukkit, this is BlockData.
+ */
+public class PieceRegistry<B> {
+
+    public static final int NO_NEIGHBOR = -1;
+    public static final int ANY_NEIGHBOR = -2;
+    public static final int FACES = 6;
+
+    private final Palette<Piece.Locked<B>> pieces = new Palette<>();
+    private final Palette<PieceNeighbors.Locked<B>> neighborhoods = new Palette<>();
+    private int[] centerPieceIds = new int[16];
+    private int[] neighborIds = new int[16 * FACES];
+
+    public PieceRegistry() {
+    }
+
+    /**
+     * Registers every element of that sample, in the order of its iterator.
+     * @throws IllegalArgumentException if an element has a neighbor on a face that is not
+     * {@link Face#isCartesian() cartesian}
+     */
+    public PieceRegistry(@NotNull Sample<B> sample) {
+        for (PieceNeighbors.Locked<B> neighborhood : sample) {
+            register(neighborhood);
+        }
+    }
+
+    /**
+     * Registers that piece if it wasn't already registered
+     * @return the id of that piece
+     */
+    public int register(@NotNull Piece.Locked<B> piece) {
+        return pieces.getOrCreateId(piece);
+    }
+
+    /**
+     * Registers that {@link PieceNeighbors.Locked}, its center piece and all its neighbors if they weren't already
+     * registered
+     * @return the id of that {@link PieceNeighbors.Locked}
+     * @throws IllegalArgumentException if it has a neighbor on a face that is not {@link Face#isCartesian() cartesian},
+     * as only these are stored. Nothing is registered then.
+     */
+    public int register(@NotNull PieceNeighbors.Locked<B> neighborhood) {
+        int id = neighborhoods.getId(neighborhood);
+        if (id != -1) return id;
+        for (Face face : neighborhood.keySet()) {
+            if (!face.isCartesian())
+                throw new IllegalArgumentException("only cartesian faces can be registered, not " + face);
+        }
+        id = neighborhoods.getOrCreateId(neighborhood);
+        if (id == centerPieceIds.length) {
+            centerPieceIds = Arrays.copyOf(centerPieceIds, id * 2);
+            neighborIds = Arrays.copyOf(neighborIds, id * 2 * FACES);
+        }
+        centerPieceIds[id] = register(neighborhood.getCenterPiece());
+        for (Face face : Face.getCartesianFaces()) {
+            final Optional<Piece.Locked<B>> neighbor = neighborhood.get(face);
+            final int neighborId;
+            //noinspection OptionalAssignedToNull
+            if (neighbor == null) neighborId = ANY_NEIGHBOR;
+            else neighborId = neighbor.map(this::register).orElse(NO_NEIGHBOR);
+            neighborIds[id * FACES + face.ordinal()] = neighborId;
+        }
+        return id;
+    }
+
+    /**
+     * @return the id of that piece, or -1 if it is not registered
+     */
+    @Contract(pure = true)
+    public int getPieceId(@NotNull Piece.Locked<B> piece) {
+        return pieces.getId(piece);
+    }
+
+    /**
+     * @throws IndexOutOfBoundsException if there is no piece with that id
+     */
+    @Contract(pure = true)
+    public @NotNull Piece.Locked<B> getPiece(int pieceId) {
+        return pieces.get(pieceId);
+    }
+
+    public int pieceCount() {
+        return pieces.size();
+    }
+
+    /**
+     * @return the id of that {@link PieceNeighbors.Locked}, or -1 if it is not registered
+     */
+    @Contract(pure = true)
+    public int getNeighborhoodId(@NotNull PieceNeighbors.Locked<B> neighborhood) {
+        return neighborhoods.getId(neighborhood);
+    }
+
+    /**
+     * @throws IndexOutOfBoundsException if there is no {@link PieceNeighbors.Locked} with that id
+     */
+    @Contract(pure = true)
+    public @NotNull PieceNeighbors.Locked<B> getNeighborhood(int neighborhoodId) {
+        return neighborhoods.get(neighborhoodId);
+    }
+
+    public int neighborhoodCount() {
+        return neighborhoods.size();
+    }
+
+    /**
+     * @return the id of the center piece of that {@link PieceNeighbors.Locked}
+     */
+    @Contract(pure = true)
+    public int getCenterPieceId(int neighborhoodId) {
+        checkNeighborhoodId(neighborhoodId);
+        return centerPieceIds[neighborhoodId];
+    }
+
+    /**
+     * @param face must be {@link Face#isCartesian() cartesian}
+     * @return the id of the piece at that face, {@link #NO_NEIGHBOR} or {@link #ANY_NEIGHBOR}
+     */
+    @Contract(pure = true)
+    public int getNeighborId(int neighborhoodId, @NotNull Face face) {
+        checkNeighborhoodId(neighborhoodId);
+        if (!face.isCartesian()) throw new IllegalArgumentException("only cartesian faces have ids, not " + face);
+        return neighborIds[neighborhoodId * FACES + face.ordinal()];
+    }
+
+    /**
+     * @return a new array with the ids of the pieces at each cartesian face, indexed by {@link Face#ordinal()}
+     * @see #getNeighborId(int, Face)
+     */
+    @Contract(pure = true)
+    public int @NotNull [] getNeighborIds(int neighborhoodId) {
+        checkNeighborhoodId(neighborhoodId);
+        return Arrays.copyOfRange(neighborIds, neighborhoodId * FACES, neighborhoodId * FACES + FACES);
+    }
+
+    private void checkNeighborhoodId(int neighborhoodId) {
+        if (neighborhoodId < 0 || neighborhoodId >= neighborhoods.size())
+            throw new IndexOutOfBoundsException("no neighborhood with id " + neighborhoodId);
+    }
+}
@@ -0,0 +1,202 @@
+package fr.bananasmoothii.mcwfc.core;
+
+import fr.bananasmoothii.mcwfc.core.Wave.GenerationFailedException;
+import fr.bananasmoothii.mcwfc.core.util.Bounds;
+import fr.bananasmoothii.mcwfc.core.util.Face;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
+
+/**
+ * A wave where the states of each cell are center {@link Piece}s instead of whole {@link PieceNeighbors}, so there are
+ * often 10 to 50 times fewer states than in a {@link Wave}. The pieces allowed at a face of a piece are all the pieces
+ * at that face in the {@link PieceNeighbors} having that piece as center, and that also accept that piece at the
+ * opposite face. This is less strict than a {@link Wave}: two neighbors may come from different
+ * {@link PieceNeighbors}, and faces expecting no piece are not checked.
+ * <p>
+ * The weight of a piece is the sum of the weights of the {@link PieceNeighbors} having it as center. Pieces that are
+ * only neighbors (or whose weight is 0) are not states of the wave, so they are never chosen. Cells are at piece
+ * coordinates, like in {@link Wave}.
+ * @param <B> the type of the blocks in the {@link Piece}s. For example, in bukkit, this is BlockData.
+ */
+public class PieceWave<B> {
+
+    private final Piece.Locked<B>[] pieces;
+    private final BitsetWave wave;
+
+    public PieceWave(@NotNull Sample<B> sample, @NotNull Bounds bounds, boolean useModuloCoords, long seed) {
+        this(sample, bounds, useModuloCoords, seed, Face.getCartesianFaces());
+    }
+
+    /**
+     * @param faces the faces that are checked, for example {@link Face#getAllFaces()} for a sample generated with
+     *              {@link MCVirtualSpace#generatePieces(int, boolean, boolean, List)}. Propagation is proportional to
+     *              the number of faces.
+     */
+    public PieceWave(@NotNull Sample<B> sample, @NotNull Bounds bounds, boolean useModuloCoords, long seed,
+                     @NotNull List<Face> faces) {
+        this(registerPieces(sample), sample, bounds, useModuloCoords, seed, faces);
+    }
+
+    /**
+     * @return a registry of every center and neighbor piece of that sample. The {@link PieceNeighbors} themselves are
+     * not registered, as {@link PieceRegistry} only stores cartesian faces.
+     */
+    private static <B> @NotNull PieceRegistry<B> registerPieces(@NotNull Sample<B> sample) {
+        final PieceRegistry<B> registry = new PieceRegistry<>();
+        for (PieceNeighbors.Locked<B> pieceNeighbors : sample) {
+            registry.register(pieceNeighbors.getCenterPiece());
+            for (Optional<Piece.Locked<B>> neighbor : pieceNeighbors.values()) {
+                neighbor.ifPresent(registry::register);
+            }
+        }
+        return registry;
+    }
+
+    private PieceWave(@NotNull PieceRegistry<B> registry, @NotNull Sample<B> sample, @NotNull Bounds bounds,
+                      boolean useModuloCoords, long seed, @NotNull List<Face> faces) {
+        final AdjacencyRules rules = new AdjacencyRules(registry.pieceCount(), faces);
+        final double[] weights = new double[registry.pieceCount()];
+        final Iterator<Map.Entry<PieceNeighbors.Locked<B>, Integer>> iter = sample.elementsAndWeightsIterator();
+        while (iter.hasNext()) {
+            final Map.Entry<PieceNeighbors.Locked<B>, Integer> entry = iter.next();
+            final PieceNeighbors.Locked<B> pieceNeighbors = entry.getKey();
+            final int center = registry.getPieceId(pieceNeighbors.getCenterPiece());
+            weights[center] += entry.getValue();
+            for (Face face : faces) {
+                final @Nullable Optional<Piece.Locked<B>> neighbor = pieceNeighbors.get(face);
+                //noinspection OptionalAssignedToNull
+                if (neighbor == null) rules.allowAll(center, face);
+                else neighbor.ifPresent(piece -> rules.allow(center, face, registry.getPieceId(piece)));
+            }
+        }
+        final int[] centers = centers(weights);
+        pieces = pieces(centers, registry::getPiece);
+        wave = new BitsetWave(symmetric(rules, weights, centers), bounds, useModuloCoords, seed);
+    }
+
+    /**
+     * Copies the adjacency bitsets of that ruleset a whole word at a time
+     */
+    public PieceWave(@NotNull CompiledRuleset<B> ruleset, @NotNull Bounds bounds, boolean useModuloCoords, long seed) {
+        final AdjacencyRules rules = new AdjacencyRules(ruleset.pieceCount(), Face.getCartesianFaces());
+        final double[] weights = new double[ruleset.pieceCount()];
+        for (int pattern = 0; pattern < ruleset.patternCount(); pattern++) {
+            weights[ruleset.getCenterPieceId(pattern)] += ruleset.getWeight(pattern);
+        }
+        for (int piece = 0; piece < ruleset.pieceCount(); piece++) {
+            for (Face face : Face.getCartesianFaces()) {
+                for (int word = 0; word < ruleset.getWordsPerBitset(); word++) {
+                    rules.setAllowedWord(piece, face, word, ruleset.getAdjacencyWord(piece, face, word));
+                }
+            }
+        }
+        final int[] centers = centers(weights);
+        pieces = pieces(centers, ruleset::getPiece);
+        wave = new BitsetWave(symmetric(rules, weights, centers), bounds, useModuloCoords, seed);
+    }
+
+    /**
+     * @param weights the weight of each piece, a piece that is never a center piece has a weight of 0
+     * @return the ids of the pieces having a weight, they are the states of the wave
+     */
+    private static int @NotNull [] centers(double @NotNull [] weights) {
+        return IntStream.range(0, weights.length).filter(piece -> weights[piece] > 0).toArray();
+    }
+
+    /**
+     * @return the piece of each center, see {@link #centers(double[])}
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <B> Piece.Locked<B> @NotNull [] pieces(int @NotNull [] centers,
+                                                          @NotNull IntFunction<Piece.Locked<B>> getPiece) {
+        final Piece.Locked<B>[] pieces = new Piece.Locked[centers.length];
+        for (int i = 0; i < centers.length; i++) {
+            pieces[i] = getPiece.apply(centers[i]);
+        }
+        return pieces;
+    }
+
+    /**
+     * @param centers the pieces kept in the result, see {@link #centers(double[])}. The id of a piece in the result is
+     *                its index in that array.
+     * @return rules where a piece is allowed at a face of another only if the other is also allowed at the opposite
+     * face of that piece
+     */
+    private static @NotNull AdjacencyRules symmetric(@NotNull AdjacencyRules rules, double @NotNull [] weights,
+                                                     int @NotNull [] centers) {
+        final AdjacencyRules result = new AdjacencyRules(centers.length, rules.getFaces());
+        for (int piece = 0; piece < centers.length; piece++) {
+            result.setWeight(piece, weights[centers[piece]]);
+            for (Face face : rules.getFaces()) {
+                for (int neighbor = 0; neighbor < centers.length; neighbor++) {
+                    if (rules.isAllowed(centers[piece], face, centers[neighbor])
+                            && rules.isAllowed(centers[neighbor], face.getOppositeFace(), centers[piece]))
+                        result.allow(piece, face, neighbor);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the wave of piece ids used internally
+     */
+    public @NotNull BitsetWave getWave() {
+        return wave;
+    }
+
+    /**
+     * @see BitsetWave#collapseAll()
+     */
+    public void collapseAll() throws GenerationFailedException {
+        wave.collapseAll();
+    }
+
+    /**
+     * @return the piece of that cell, or {@code null} if it is not collapsed
+     */
+    @Contract(pure = true)
+    public @Nullable Piece.Locked<B> getPiece(int x, int y, int z) {
+        final int piece = wave.getPattern(x, y, z);
+        return piece == -1 ? null : pieces[piece];
+    }
+
+    /**
+     * @return a new space containing the blocks of every collapsed piece. Each cell x, y, z gives the blocks from
+     * {@code x * pieceSize} to {@code x * pieceSize + pieceSize - 1} (and the same for y and z).
+     */
+    @Contract(pure = true)
+    public @NotNull MCVirtualSpace<B> toSpace() {
+        final Bounds bounds = wave.getBounds();
+        final Piece.Locked<B> first = pieces[0];
+        final MCVirtualSpace<B> space = new MCVirtualSpace<>(new Bounds(
+                bounds.xMin() * first.xSize, bounds.yMin() * first.ySize, bounds.zMin() * first.zSize,
+                bounds.xMax() * first.xSize + first.xSize - 1, bounds.yMax() * first.ySize + first.ySize - 1,
+                bounds.zMax() * first.zSize + first.zSize - 1), first.get(0, 0, 0));
+        for (int x = bounds.xMin(); x <= bounds.xMax(); x++) {
+            for (int y = bounds.yMin(); y <= bounds.yMax(); y++) {
+                for (int z = bounds.zMin(); z <= bounds.zMax(); z++) {
+                    final Piece.Locked<B> piece = getPiece(x, y, z);
+                    if (piece == null) continue;
+                    for (int dx = 0; dx < piece.xSize; dx++) {
+                        for (int dy = 0; dy < piece.ySize; dy++) {
+                            for (int dz = 0; dz < piece.zSize; dz++) {
+                                space.set(piece.get(dx, dy, dz), x * piece.xSize + dx, y * piece.ySize + dy,
+                                        z * piece.zSize + dz);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return space;
+    }
+}
@@ -4,20 +4,71 @@ import fr.bananasmoothii.mcwfc.core.util.Face;
 import fr.bananasmoothii.mcwfc.core.util.WeightedSet;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
-import java.util.Iterator;
-import java.util.Map;
-import java.util.Optional;
+import java.util.*;
 
 /**
+ * A {@link WeightedSet} of {@link PieceNeighbors}.
+ * <p>
+ * A sample can be {@link #isIndexed() indexed}: it then also keeps, for each center piece, the {@link PieceNeighbors}
+ * having it, and for each face and each piece, how many {@link PieceNeighbors} have that piece at that face. These
+ * indexes are updated on every change, and they make {@link #getNeighborsFor(Piece.Locked)},
+ * {@link #centerPiecesContains(Piece.Locked)}, {@link #retainAllWithCenterPiece(Piece.Locked)} and
+ * {@link #acceptsAt(Face, Piece.Locked)} not depend on the size of the sample.
  * @param <B> the type of the blocks in the {@link Piece}s. For example, in bukkit, this is {@link org.bukkit.block.data.BlockData}
  */
 public class Sample<B> extends WeightedSet<PieceNeighbors.Locked<B>> {
+
+    private static final Face[] FACES = Face.values();
+
+    /*
+        These are null if the sample is not indexed. They are not initialized in their declaration, as WeightedSet's
+        copy constructor adds elements before the fields of this class are initialized.
+     */
+    private @Nullable Map<Piece.Locked<B>, Set<PieceNeighbors.Locked<B>>> byCenter;
+    private @Nullable WeightedSet<Piece.Locked<B>> centerPieces;
+    /**
+     * for each face ordinal, how many times each piece is at that face, or null if no piece is at that face
+     */
+    private @Nullable WeightedSet<Piece.Locked<B>> @Nullable [] acceptedAt;
+
     public Sample() {
     }
 
+    /**
+     * The copy is {@link #isIndexed() indexed} if other is an indexed sample
+     */
     public Sample(WeightedSet<PieceNeighbors.Locked<B>> other) {
-        super(other);
+        this(other, other instanceof Sample<?> sample && sample.isIndexed());
+    }
+
+    /**
+     * @param indexed see {@link #isIndexed()}
+     */
+    public Sample(boolean indexed) {
+        if (indexed) {
+            byCenter = new HashMap<>();
+            centerPieces = new WeightedSet<>();
+            @SuppressWarnings({"unchecked", "rawtypes"})
+            final WeightedSet<Piece.Locked<B>>[] acceptedAt = new WeightedSet[FACES.length];
+            this.acceptedAt = acceptedAt;
+        }
+    }
+
+    /**
+     * @param indexed see {@link #isIndexed()}
+     */
+    public Sample(WeightedSet<PieceNeighbors.Locked<B>> other, boolean indexed) {
+        this(indexed);
+        addAll(other);
+    }
+
+    /**
+     * @return whether this sample keeps indexes by center piece and by neighbor, see {@link Sample}
+     */
+    public boolean isIndexed() {
+        return byCenter != null;
     }
 
     /**
@@ -26,6 +77,12 @@ public class Sample<B> extends WeightedSet<PieceNeighbors.Locked<B>> {
      */
     public @NotNull Sample<B> getNeighborsFor(@NotNull Piece.Locked<B> piece) {
         Sample<B> result = new Sample<>();
+        if (byCenter != null) {
+            for (PieceNeighbors.Locked<B> neighbors : byCenter.getOrDefault(piece, Set.of())) {
+                result.add(neighbors);
+            }
+            return result;
+        }
         for (PieceNeighbors.Locked<B> neighbors : this) {
             if (neighbors.getCenterPiece().equals(piece)) {
                 result.add(neighbors);
@@ -39,17 +96,18 @@ public class Sample<B> extends WeightedSet<PieceNeighbors.Locked<B>> {
      */
     @Contract(pure = true)
     public @NotNull WeightedSet<Piece.Locked<B>> getCenterPieces() {
+        if (centerPieces != null) return new WeightedSet<>(centerPieces);
         WeightedSet<Piece.Locked<B>> result = new WeightedSet<>();
-        final Iterator<Map.Entry<PieceNeighbors.Locked<B>, Integer>> iter = elementsAndWeightsIterator();
-        while (iter.hasNext()) {
-            final Map.Entry<PieceNeighbors.Locked<B>, Integer> entry = iter.next();
-            result.add(entry.getKey().getCenterPiece(), entry.getValue());
+        final Cursor cursor = cursor();
+        while (cursor.advance()) {
+            result.add(cursor.key().getCenterPiece(), cursor.weight());
         }
         return result;
     }
 
     @Contract(pure = true)
     public boolean centerPiecesContains(Piece.Locked<B> piece) {
+        if (byCenter != null) return byCenter.containsKey(piece);
         for (PieceNeighbors.Locked<B> pieceNeighbors : this) {
             final Piece.Locked<B> centerPiece = pieceNeighbors.getCenterPiece();
             if (centerPiece.equals(piece)) {
@@ -59,7 +117,31 @@ public class Sample<B> extends WeightedSet<PieceNeighbors.Locked<B>> {
         return false;
     }
 
+    /**
+     * @return whether every element has that center piece, so that {@link #retainAllWithCenterPiece(Piece.Locked)}
+     * wouldn't remove anything. This is O(1) if this sample is {@link #isIndexed() indexed}.
+     */
+    @Contract(pure = true)
+    public boolean hasOnlyCenterPiece(@NotNull Piece.Locked<B> centerPiece) {
+        if (byCenter != null) return byCenter.isEmpty() || byCenter.size() == 1 && byCenter.containsKey(centerPiece);
+        for (PieceNeighbors.Locked<B> pieceNeighbors : this) {
+            if (!pieceNeighbors.getCenterPiece().equals(centerPiece)) return false;
+        }
+        return true;
+    }
+
     public boolean retainAllWithCenterPiece(@NotNull Piece.Locked<B> centerPiece) {
+        if (byCenter != null) {
+            if (hasOnlyCenterPiece(centerPiece)) return false;
+            final List<PieceNeighbors.Locked<B>> toRemove = new ArrayList<>();
+            byCenter.forEach((center, pieceNeighbors) -> {
+                if (!center.equals(centerPiece)) toRemove.addAll(pieceNeighbors);
+            });
+            for (PieceNeighbors.Locked<B> pieceNeighbors : toRemove) {
+                remove(pieceNeighbors);
+            }
+            return true;
+        }
         boolean changed = false;
         Iterator<PieceNeighbors.Locked<B>> iterator = iterator();
         while (iterator.hasNext()) {
@@ -76,6 +158,10 @@ public class Sample<B> extends WeightedSet<PieceNeighbors.Locked<B>> {
      * @return true if there is at least one {@link PieceNeighbors} having this {@link Piece} at that {@link Face}
      */
     public boolean acceptsAt(@NotNull Face face, @NotNull Piece.Locked<B> piece) {
+        if (acceptedAt != null) {
+            final WeightedSet<Piece.Locked<B>> pieces = acceptedAt[face.ordinal()];
+            return pieces != null && pieces.contains(piece);
+        }
         for (PieceNeighbors.Locked<B> neighbors : this) {
             final Optional<Piece.Locked<B>> neighbor = neighbors.get(face);
             if (neighbor.isPresent() && neighbor.get().equals(piece)) return true;
@@ -83,6 +169,52 @@ public class Sample<B> extends WeightedSet<PieceNeighbors.Locked<B>> {
         return false;
     }
 
+    @Override
+    public void clear() {
+        super.clear();
+        if (byCenter != null) {
+            byCenter.clear();
+            centerPieces.clear();
+            Arrays.fill(acceptedAt, null);
+        }
+    }
+
+    @Override
+    protected void elementAdded(PieceNeighbors.Locked<B> pieceNeighbors, int weight) {
+        if (byCenter == null) return;
+        final Piece.Locked<B> center = pieceNeighbors.getCenterPiece();
+        byCenter.computeIfAbsent(center, k -> new HashSet<>()).add(pieceNeighbors);
+        centerPieces.add(center, weight);
+        for (Map.Entry<Face, Optional<Piece.Locked<B>>> entry : pieceNeighbors.entrySet()) {
+            if (entry.getValue().isEmpty()) continue;
+            final int face = entry.getKey().ordinal();
+            if (acceptedAt[face] == null) acceptedAt[face] = new WeightedSet<>();
+            acceptedAt[face].add(entry.getValue().get());
+        }
+    }
+
+    @Override
+    protected void elementRemoved(PieceNeighbors.Locked<B> pieceNeighbors, int weight) {
+        if (byCenter == null) return;
+        final Piece.Locked<B> center = pieceNeighbors.getCenterPiece();
+        final Set<PieceNeighbors.Locked<B>> withThatCenter = byCenter.get(center);
+        withThatCenter.remove(pieceNeighbors);
+        if (withThatCenter.isEmpty()) {
+            byCenter.remove(center);
+            centerPieces.remove(center);
+        } else {
+            centerPieces.add(center, -weight);
+        }
+        for (Map.Entry<Face, Optional<Piece.Locked<B>>> entry : pieceNeighbors.entrySet()) {
+            if (entry.getValue().isPresent()) acceptedAt[entry.getKey().ordinal()].removeWeight(entry.getValue().get(), 1);
+        }
+    }
+
+    @Override
+    protected void weightChanged(PieceNeighbors.Locked<B> pieceNeighbors, int oldWeight, int newWeight) {
+        if (centerPieces != null) centerPieces.add(pieceNeighbors.getCenterPiece(), newWeight - oldWeight);
+    }
+
     public ImmutableSample<B> immutable() {
         return new ImmutableSample<>(this);
     }
@@ -0,0 +1,158 @@
+package fr.bananasmoothii.mcwfc.core;
+
+import fr.bananasmoothii.mcwfc.core.util.Bounds;
+import fr.bananasmoothii.mcwfc.core.util.Coords;
+import fr.bananasmoothii.mcwfc.core.util.Face;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Keeps a {@link Sample} equal to what {@link MCVirtualSpace#generatePieces(int, boolean, boolean)} gives for a space,
+ * while that space is being modified. After modifying some blocks, call {@link #update(Bounds)} with the modified
+ * region: only the {@link PieceNeighbors} that can see these blocks are computed again, their old siblings are removed
+ * from the sample and the new ones are added.
+ * <p>
+ * The bounds of the space must not change.
+ * @param <B> the type of the blocks in the {@link Piece}s. For example, in bukkit, this is BlockData.
+ */
+public class SampleMaintainer<B> {
+
+    private final MCVirtualSpace<B> space;
+    private final Bounds bounds;
+    private final int pieceSize;
+    private final boolean allowUpsideDown, useModuloCoordsTopAndBottom;
+    private final Sample<B> sample = new Sample<>();
+    /**
+     * the piece neighbors (without siblings) at each position, looping over X, then Y, then Z
+     */
+    private final PieceNeighbors.Locked<B>[] pieceNeighbors;
+    private @Nullable PieceRegistry<B> registry;
+
+    /**
+     * Generates the sample of the whole space, the parameters are the same as
+     * {@link MCVirtualSpace#generatePieces(int, boolean, boolean)}
+     */
+    public SampleMaintainer(@NotNull MCVirtualSpace<B> space, int pieceSize, boolean allowUpsideDown,
+                            boolean useModuloCoordsTopAndBottom) {
+        if (pieceSize < 1) throw new IllegalArgumentException("Piece size can't be below 1");
+        this.space = space;
+        this.bounds = space.getBounds();
+        this.pieceSize = pieceSize;
+        this.allowUpsideDown = allowUpsideDown;
+        this.useModuloCoordsTopAndBottom = useModuloCoordsTopAndBottom;
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        final PieceNeighbors.Locked<B>[] pieceNeighbors =
+                new PieceNeighbors.Locked[bounds.xSize() * bounds.ySize() * bounds.zSize()];
+        this.pieceNeighbors = pieceNeighbors;
+        final int[] index = {0};
+        space.forEachPieceNeighbors(pieceSize, useModuloCoordsTopAndBottom, neighbors -> {
+            final PieceNeighbors.Locked<B> locked = neighbors.lock();
+            pieceNeighbors[index[0]++] = locked;
+            sample.addAll(locked.generateSiblingsLock(allowUpsideDown));
+        });
+    }
+
+    /**
+     * @return the sample, it is modified by {@link #update(Bounds)} so it should not be modified elsewhere
+     */
+    public @NotNull Sample<B> getSample() {
+        return sample;
+    }
+
+    /**
+     * Sets a registry that will be kept up to date: every new {@link PieceNeighbors} added to the sample by
+     * {@link #update(Bounds)} is registered. As ids never change in a {@link PieceRegistry}, the ones that disappear
+     * from the sample stay registered.
+     */
+    public void setRegistry(@Nullable PieceRegistry<B> registry) {
+        this.registry = registry;
+        if (registry != null) {
+            for (PieceNeighbors.Locked<B> neighbors : sample) {
+                registry.register(neighbors);
+            }
+        }
+    }
+
+    public @Nullable PieceRegistry<B> getRegistry() {
+        return registry;
+    }
+
+    /**
+     * Computes again every {@link PieceNeighbors} that can see a block in that region, and updates the sample.
+     * @param changed the region where blocks were modified, it may loop out of the bounds of the space like modulo
+     *                coordinates
+     * @return every {@link PieceNeighbors} whose weight changed in the sample, including the ones that were removed
+     * @throws IllegalStateException if the bounds of the space changed
+     */
+    public @NotNull Set<PieceNeighbors.Locked<B>> update(@NotNull Bounds changed) {
+        if (!space.getBounds().equals(bounds))
+            throw new IllegalStateException("the bounds of the space changed from " + bounds + " to "
+                    + space.getBounds());
+        // a piece neighbors at p reads the blocks from p - pieceSize to p + 2 * pieceSize - 1
+        final int xFrom = changed.xMin() - 2 * pieceSize + 1, xCount = count(xFrom, changed.xMax() + pieceSize, bounds.xSize());
+        final int yFrom = changed.yMin() - 2 * pieceSize + 1, yCount = count(yFrom, changed.yMax() + pieceSize, bounds.ySize());
+        final int zFrom = changed.zMin() - 2 * pieceSize + 1, zCount = count(zFrom, changed.zMax() + pieceSize, bounds.zSize());
+        final Map<Coords, Optional<Piece.Locked<B>>> pieces = new HashMap<>(), verticalPieces = new HashMap<>();
+        final Set<PieceNeighbors.Locked<B>> modified = new HashSet<>();
+        for (int dx = 0; dx < xCount; dx++) {
+            final int x = bounds.xMin() + Math.floorMod(xFrom + dx - bounds.xMin(), bounds.xSize());
+            for (int dy = 0; dy < yCount; dy++) {
+                final int y = bounds.yMin() + Math.floorMod(yFrom + dy - bounds.yMin(), bounds.ySize());
+                for (int dz = 0; dz < zCount; dz++) {
+                    final int z = bounds.zMin() + Math.floorMod(zFrom + dz - bounds.zMin(), bounds.zSize());
+                    final int index = ((x - bounds.xMin()) * bounds.ySize() + y - bounds.yMin()) * bounds.zSize()
+                            + z - bounds.zMin();
+                    final PieceNeighbors.Locked<B> old = pieceNeighbors[index];
+                    final PieceNeighbors.Locked<B> current = computePieceNeighbors(x, y, z, pieces, verticalPieces);
+                    if (current.equals(old)) continue;
+                    pieceNeighbors[index] = current;
+                    for (PieceNeighbors.Locked<B> sibling : old.generateSiblingsLock(allowUpsideDown)) {
+                        sample.removeWeight(sibling, 1);
+                        modified.add(sibling);
+                    }
+                    for (PieceNeighbors.Locked<B> sibling : current.generateSiblingsLock(allowUpsideDown)) {
+                        if (registry != null) registry.register(sibling);
+                        sample.add(sibling);
+                        modified.add(sibling);
+                    }
+                }
+            }
+        }
+        return modified;
+    }
+
+    /**
+     * @return the number of positions from "from" to "to", but at most the size of the axis
+     */
+    private static int count(int from, int to, int axisSize) {
+        return Math.min(to - from + 1, axisSize);
+    }
+
+    private @NotNull PieceNeighbors.Locked<B> computePieceNeighbors(int x, int y, int z,
+                                                                    Map<Coords, Optional<Piece.Locked<B>>> pieces,
+                                                                    Map<Coords, Optional<Piece.Locked<B>>> verticalPieces) {
+        final PieceNeighbors<B> neighbors = new PieceNeighbors<>(pieceAt(x, y, z, true, pieces).orElseThrow());
+        neighbors.put(Face.TOP, pieceAt(x, y + pieceSize, z, useModuloCoordsTopAndBottom, verticalPieces));
+        neighbors.put(Face.BOTTOM, pieceAt(x, y - pieceSize, z, useModuloCoordsTopAndBottom, verticalPieces));
+        neighbors.put(Face.WEST, pieceAt(x - pieceSize, y, z, true, pieces));
+        neighbors.put(Face.EAST, pieceAt(x + pieceSize, y, z, true, pieces));
+        neighbors.put(Face.NORTH, pieceAt(x, y, z - pieceSize, true, pieces));
+        neighbors.put(Face.SOUTH, pieceAt(x, y, z + pieceSize, true, pieces));
+        return neighbors.lock();
+    }
+
+    private @NotNull Optional<Piece.Locked<B>> pieceAt(int x, int y, int z, boolean useModuloCoords,
+                                                       Map<Coords, Optional<Piece.Locked<B>>> cache) {
+        return space.getPieceAt(new Coords(x, y, z), pieceSize, useModuloCoords, cache);
+    }
+
+    public int getPieceSize() {
+        return pieceSize;
+    }
+}
@@ -0,0 +1,113 @@
+package fr.bananasmoothii.mcwfc.core;
+
+import fr.bananasmoothii.mcwfc.core.util.Codec;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Merges many {@link Sample}s (for example from several input structures) into one. Each {@link PieceNeighbors} gets
+ * an id from a {@link PieceRegistry} the first time it is seen, and its weights are summed in an array, so merging is
+ * linear in the total size of the samples. The weights of each sample can be multiplied by a scale, so that a sample
+ * counts more than another.
+ * <p>
+ * The samples should use the same pool, see {@link PieceNeighbors.Locked#of(PieceNeighbors,
+ * fr.bananasmoothii.mcwfc.core.util.Interner)}.
+ * @param <B> the type of the blocks in the {@link Piece}s. For example, in bukkit, this is BlockData.
+ */
+public class SampleMerger<B> {
+
+    private final PieceRegistry<B> registry = new PieceRegistry<>();
+    /**
+     * the weight of each neighborhood id of the registry
+     */
+    private long[] weights = new long[16];
+
+    /**
+     * Same as {@link #add(Sample, int)} with a scale of 1
+     */
+    @Contract("_ -> this")
+    public @NotNull SampleMerger<B> add(@NotNull Sample<B> sample) {
+        return add(sample, 1);
+    }
+
+    /**
+     * Adds every {@link PieceNeighbors} of that sample, with its weight multiplied by scale
+     * @throws IllegalArgumentException if scale is below 1, or if the sample has neighbors on faces that are not
+     * {@link fr.bananasmoothii.mcwfc.core.util.Face#isCartesian() cartesian}, see {@link PieceRegistry}
+     */
+    @Contract("_, _ -> this")
+    public @NotNull SampleMerger<B> add(@NotNull Sample<B> sample, int scale) {
+        if (scale < 1) throw new IllegalArgumentException("the scale can't be below 1");
+        final Iterator<Map.Entry<PieceNeighbors.Locked<B>, Integer>> iter = sample.elementsAndWeightsIterator();
+        while (iter.hasNext()) {
+            final Map.Entry<PieceNeighbors.Locked<B>, Integer> entry = iter.next();
+            final int id = registry.register(entry.getKey());
+            if (id == weights.length) weights = Arrays.copyOf(weights, id * 2);
+            weights[id] += (long) entry.getValue() * scale;
+        }
+        return this;
+    }
+
+    /**
+     * @return the registry giving an id to each {@link PieceNeighbors} that was added
+     */
+    public @NotNull PieceRegistry<B> getRegistry() {
+        return registry;
+    }
+
+    /**
+     * @return the merged weight of the {@link PieceNeighbors} having that id in the {@link #getRegistry() registry}
+     */
+    @Contract(pure = true)
+    public long getWeight(int neighborhoodId) {
+        if (neighborhoodId < 0 || neighborhoodId >= registry.neighborhoodCount())
+            throw new IndexOutOfBoundsException("no neighborhood with id " + neighborhoodId);
+        return weights[neighborhoodId];
+    }
+
+    /**
+     * @return a new {@link Sample} with every {@link PieceNeighbors} that was added and its merged weight
+     * @throws ArithmeticException if a weight doesn't fit in an {@code int}
+     */
+    @Contract(pure = true)
+    public @NotNull Sample<B> toSample() {
+        final Sample<B> sample = new Sample<>();
+        final int[] weights = intWeights();
+        for (int id = 0; id < weights.length; id++) {
+            sample.add(registry.getNeighborhood(id), weights[id]);
+        }
+        return sample;
+    }
+
+    /**
+     * @return the same as {@link CompiledRuleset#compile(Sample, Codec) CompiledRuleset.compile(toSample(), codec)},
+     * but without building the {@link Sample}
+     * @throws ArithmeticException if a weight doesn't fit in an {@code int}
+     */
+    @Contract(pure = true)
+    public @NotNull CompiledRuleset<B> compile(@NotNull Codec<B> codec) {
+        return CompiledRuleset.compile(registry, intWeights(), codec);
+    }
+
+    /**
+     * Same as {@link CompiledRuleset#write(Sample, OutputStream, Codec)} with the merged sample
+     * @throws ArithmeticException if a weight doesn't fit in an {@code int}
+     */
+    public void write(@NotNull OutputStream out, @NotNull Codec<B> codec) throws IOException {
+        CompiledRuleset.write(registry, intWeights(), out, codec);
+    }
+
+    private int @NotNull [] intWeights() {
+        final int[] result = new int[registry.neighborhoodCount()];
+        for (int id = 0; id < result.length; id++) {
+            result[id] = Math.toIntExact(weights[id]);
+        }
+        return result;
+    }
+}
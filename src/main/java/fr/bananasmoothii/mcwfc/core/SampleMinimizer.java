@@ -0,0 +1,130 @@
+package fr.bananasmoothii.mcwfc.core;
+
+import fr.bananasmoothii.mcwfc.core.util.Face;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+
+/**
+ * Makes a {@link Sample} smaller before it is given to a {@link Wave}. This is done offline, only once for each sample.
+ * <p>
+ * {@link #prune(Sample)} doesn't change what the wave can generate. Merging {@link PieceNeighbors} that are equivalent
+ * for the wave is not possible: the wave uses the center piece and every neighbor of a {@link PieceNeighbors}, so two
+ * different {@link PieceNeighbors} never constrain it in the same way. {@link #projectOnFaces(Sample, Collection)}
+ * merges {@link PieceNeighbors} by forgetting some faces, but that lets the wave generate more things.
+ */
+public final class SampleMinimizer {
+
+    private SampleMinimizer() {
+    }
+
+    /**
+     * Same as {@link #prune(Sample)}, this is everything that can be removed without changing what a {@link Wave} can
+     * generate
+     */
+    @Contract(pure = true)
+    public static <B> @NotNull Sample<B> minimize(@NotNull Sample<B> sample) {
+        return prune(sample);
+    }
+
+    /**
+     * Removes every {@link PieceNeighbors} that can never be placed: a {@link PieceNeighbors} P expecting a piece Q at
+     * some face can only be placed if there is a {@link PieceNeighbors} with Q as center piece expecting the center
+     * piece of P at the opposite face. Removing a {@link PieceNeighbors} can make others impossible, so this is done
+     * until nothing changes (this is arc consistency on the graph of the rules).
+     * @return a new sample with the remaining {@link PieceNeighbors}, with the same weights. It may be empty.
+     */
+    @Contract(pure = true)
+    public static <B> @NotNull Sample<B> prune(@NotNull Sample<B> sample) {
+        // every PieceNeighbors having some center piece and some neighbor at some face
+        final Map<Adjacency, List<PieceNeighbors.Locked<B>>> byAdjacency = new HashMap<>();
+        for (PieceNeighbors.Locked<B> pieceNeighbors : sample) {
+            for (Map.Entry<Face, Optional<Piece.Locked<B>>> entry : pieceNeighbors.entrySet()) {
+                if (entry.getValue().isEmpty()) continue;
+                byAdjacency.computeIfAbsent(new Adjacency(pieceNeighbors.getCenterPiece(), entry.getKey(),
+                        entry.getValue().get()), k -> new ArrayList<>()).add(pieceNeighbors);
+            }
+        }
+        final Map<Adjacency, Integer> counts = new HashMap<>();
+        byAdjacency.forEach((adjacency, list) -> counts.put(adjacency, list.size()));
+
+        final Set<PieceNeighbors.Locked<B>> removed = new HashSet<>();
+        final Deque<PieceNeighbors.Locked<B>> toRemove = new ArrayDeque<>();
+        for (PieceNeighbors.Locked<B> pieceNeighbors : sample) {
+            if (!hasPartners(pieceNeighbors, counts)) {
+                removed.add(pieceNeighbors);
+                toRemove.add(pieceNeighbors);
+            }
+        }
+        while (!toRemove.isEmpty()) {
+            final PieceNeighbors.Locked<B> pieceNeighbors = toRemove.poll();
+            for (Map.Entry<Face, Optional<Piece.Locked<B>>> entry : pieceNeighbors.entrySet()) {
+                if (entry.getValue().isEmpty()) continue;
+                final Piece.Locked<B> center = pieceNeighbors.getCenterPiece(), neighbor = entry.getValue().get();
+                final int count = counts.merge(new Adjacency(center, entry.getKey(), neighbor), -1, Integer::sum);
+                if (count != 0) continue;
+                // the PieceNeighbors that needed this one as partner
+                final List<PieceNeighbors.Locked<B>> dependents = byAdjacency.get(
+                        new Adjacency(neighbor, entry.getKey().getOppositeFace(), center));
+                if (dependents == null) continue;
+                for (PieceNeighbors.Locked<B> dependent : dependents) {
+                    if (removed.add(dependent)) toRemove.add(dependent);
+                }
+            }
+        }
+
+        final Sample<B> result = new Sample<>();
+        final Iterator<Map.Entry<PieceNeighbors.Locked<B>, Integer>> iter = sample.elementsAndWeightsIterator();
+        while (iter.hasNext()) {
+            final Map.Entry<PieceNeighbors.Locked<B>, Integer> entry = iter.next();
+            if (!removed.contains(entry.getKey())) result.add(entry.getKey(), entry.getValue());
+        }
+        return result;
+    }
+
+    private static <B> boolean hasPartners(@NotNull PieceNeighbors.Locked<B> pieceNeighbors,
+                                           @NotNull Map<Adjacency, Integer> counts) {
+        for (Map.Entry<Face, Optional<Piece.Locked<B>>> entry : pieceNeighbors.entrySet()) {
+            if (entry.getValue().isEmpty()) continue;
+            final Integer count = counts.get(new Adjacency(entry.getValue().get(), entry.getKey().getOppositeFace(),
+                    pieceNeighbors.getCenterPiece()));
+            if (count == null || count == 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Removes every face that is not in faces from each {@link PieceNeighbors}, so that the {@link PieceNeighbors}
+     * that only differ by these faces become the same, with the sum of their weights. A {@link Wave} only enforces the
+     * faces that are in its sample, so with the result it will ignore the other faces: this makes the sample smaller,
+     * but the wave will also generate things that were not allowed before. For example, this can remove the edge and
+     * corner faces of a sample made with {@link MCVirtualSpace#generatePieces(int, boolean, boolean, List)}.
+     * @return a new sample
+     */
+    @Contract(pure = true)
+    public static <B> @NotNull Sample<B> projectOnFaces(@NotNull Sample<B> sample, @NotNull Collection<Face> faces) {
+        final Sample<B> result = new Sample<>();
+        final Iterator<Map.Entry<PieceNeighbors.Locked<B>, Integer>> iter = sample.elementsAndWeightsIterator();
+        while (iter.hasNext()) {
+            final Map.Entry<PieceNeighbors.Locked<B>, Integer> entry = iter.next();
+            final PieceNeighbors.Locked<B> pieceNeighbors = entry.getKey();
+            if (faces.containsAll(pieceNeighbors.keySet())) {
+                result.add(pieceNeighbors, entry.getValue());
+                continue;
+            }
+            final PieceNeighbors<B> projection = new PieceNeighbors<>(pieceNeighbors.getCenterPiece());
+            for (Face face : faces) {
+                if (pieceNeighbors.containsKey(face)) projection.put(face, pieceNeighbors.get(face));
+            }
+            result.add(projection.lock(pieceNeighbors.getPool()), entry.getValue());
+        }
+        return result;
+    }
+
+    /**
+     * A center piece having that neighbor at that face
+     */
+    private record Adjacency(@NotNull Piece.Locked<?> center, @NotNull Face face, @NotNull Piece.Locked<?> neighbor) {
+    }
+}
@@ -0,0 +1,196 @@
+package fr.bananasmoothii.mcwfc.core;
+
+import fr.bananasmoothii.mcwfc.core.util.Bounds;
+import fr.bananasmoothii.mcwfc.core.util.Face;
+import fr.bananasmoothii.mcwfc.core.util.Interner;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+/**
+ * Generates the same samples as {@link MCVirtualSpace#generatePieces(int, boolean, boolean)}, but from a
+ * {@link BlockSource} read one X layer at a time, so the input doesn't need to fit in memory. Only 3 * pieceSize layers
+ * of blocks are kept at the same time, plus the pieces of 2 * pieceSize + 1 layers. As coordinates loop along the X
+ * axis, 3 * pieceSize - 1 layers at both ends are read twice.
+ * @param <B> the type of blocks. In vanilla minecraft, this can be {@code BlockData}.
+ */
+public class StreamingSampleExtractor<B> {
+
+    private final BlockSource<B> source;
+    private final Bounds bounds;
+    private final int pieceSize;
+    private final boolean useModuloCoordsTopAndBottom;
+    private final int ySize, zSize;
+
+    /**
+     * layers of blocks, layer x (not looped) is at index {@code floorMod(x - xMin, layers.length)}
+     */
+    private final B[][] layers;
+    private final int[] loadedLayers;
+    /**
+     * pieces starting at each x (not looped), looping over Y then Z
+     */
+    private final Map<Integer, Piece.Locked<B>[]> pieceLayers = new HashMap<>();
+
+    /**
+     * @param useModuloCoordsTopAndBottom see {@link MCVirtualSpace#generatePieces(int, boolean, boolean)}
+     */
+    public StreamingSampleExtractor(@NotNull BlockSource<B> source, int pieceSize, boolean useModuloCoordsTopAndBottom) {
+        if (pieceSize < 1) throw new IllegalArgumentException("Piece size can't be below 1");
+        this.source = source;
+        this.bounds = source.getBounds();
+        this.pieceSize = pieceSize;
+        this.useModuloCoordsTopAndBottom = useModuloCoordsTopAndBottom;
+        ySize = bounds.ySize();
+        zSize = bounds.zSize();
+        @SuppressWarnings("unchecked")
+        final B[][] layers = (B[][]) new Object[3 * pieceSize][];
+        this.layers = layers;
+        loadedLayers = new int[layers.length];
+        Arrays.fill(loadedLayers, Integer.MIN_VALUE);
+    }
+
+    /**
+     * @return a new sample, equal to what {@link MCVirtualSpace#generatePieces(int, boolean, boolean)} would give for
+     * the whole source
+     */
+    public @NotNull Sample<B> generatePieces(boolean allowUpsideDown) throws IOException {
+        return generatePieces(allowUpsideDown, PieceNeighbors.Locked.DEFAULT_POOL);
+    }
+
+    /**
+     * Same as {@link #generatePieces(boolean)}, but the {@link PieceNeighbors.Locked} are taken from that pool, see
+     * {@link MCVirtualSpace#generatePieces(int, boolean, boolean, Interner)}
+     */
+    public @NotNull Sample<B> generatePieces(boolean allowUpsideDown, @NotNull Interner<PieceNeighbors.Locked<?>> pool)
+            throws IOException {
+        Sample<B> sample = new Sample<>();
+        generatePiecesInto(sample, allowUpsideDown, pool);
+        return sample;
+    }
+
+    /**
+     * Adds every {@link PieceNeighbors} with its siblings to the sample as soon as they are read
+     */
+    public void generatePiecesInto(@NotNull Sample<B> sample, boolean allowUpsideDown) throws IOException {
+        generatePiecesInto(sample, allowUpsideDown, PieceNeighbors.Locked.DEFAULT_POOL);
+    }
+
+    /**
+     * Same as {@link #generatePiecesInto(Sample, boolean)}, but the {@link PieceNeighbors.Locked} are taken from that
+     * pool, which should be the pool of what is already in the sample
+     */
+    public void generatePiecesInto(@NotNull Sample<B> sample, boolean allowUpsideDown,
+                                   @NotNull Interner<PieceNeighbors.Locked<?>> pool) throws IOException {
+        forEachPieceNeighbors(pieceNeighbors ->
+                sample.addAll(pieceNeighbors.lock(pool).generateSiblingsLock(allowUpsideDown)));
+    }
+
+    /**
+     * Reads the whole source, and gives each {@link PieceNeighbors} to the action (without their siblings). This can
+     * be used to fill a {@link CanonicalSample} for example.
+     */
+    public void forEachPieceNeighbors(@NotNull Consumer<PieceNeighbors<B>> action) throws IOException {
+        pieceLayers.clear();
+        for (int x = bounds.xMin(); x <= bounds.xMax(); x++) {
+            pieceLayers.remove(x - pieceSize - 1);
+            final Piece.Locked<B>[] center = pieceLayer(x),
+                                    west = pieceLayer(x - pieceSize),
+                                    east = pieceLayer(x + pieceSize);
+            for (int y = bounds.yMin(); y <= bounds.yMax(); y++) {
+                for (int z = bounds.zMin(); z <= bounds.zMax(); z++) {
+                    PieceNeighbors<B> pieceNeighbors = new PieceNeighbors<>(pieceAt(center, y, z));
+                    pieceNeighbors.put(Face.TOP, verticalNeighbor(center, x, y + pieceSize, z));
+                    pieceNeighbors.put(Face.BOTTOM, verticalNeighbor(center, x, y - pieceSize, z));
+                    pieceNeighbors.put(Face.WEST, pieceAt(west, y, z).asOptional());
+                    pieceNeighbors.put(Face.EAST, pieceAt(east, y, z).asOptional());
+                    pieceNeighbors.put(Face.NORTH, pieceAt(center, y, z - pieceSize).asOptional());
+                    pieceNeighbors.put(Face.SOUTH, pieceAt(center, y, z + pieceSize).asOptional());
+                    action.accept(pieceNeighbors);
+                }
+            }
+        }
+        pieceLayers.clear();
+    }
+
+    /**
+     * @return the same as {@link MCVirtualSpace#getPieceAt(int, int, int, int, boolean)} for the top and bottom faces
+     */
+    private @NotNull Optional<Piece.Locked<B>> verticalNeighbor(Piece.Locked<B>[] pieceLayer, int x, int y, int z) {
+        if (!useModuloCoordsTopAndBottom && (x < bounds.xMin() || y < bounds.yMin() || z < bounds.zMin()
+                || x + pieceSize > bounds.xMax() || y + pieceSize > bounds.yMax() || z + pieceSize > bounds.zMax()))
+            return Optional.empty();
+        return pieceAt(pieceLayer, y, z).asOptional();
+    }
+
+    private @NotNull Piece.Locked<B> pieceAt(Piece.Locked<B>[] pieceLayer, int y, int z) {
+        return pieceLayer[Math.floorMod(y - bounds.yMin(), ySize) * zSize + Math.floorMod(z - bounds.zMin(), zSize)];
+    }
+
+    /**
+     * @param x not looped, it may be out of the bounds
+     * @return the pieces starting at x
+     */
+    private Piece.Locked<B> @NotNull [] pieceLayer(int x) throws IOException {
+        Piece.Locked<B>[] pieceLayer = pieceLayers.get(x);
+        if (pieceLayer != null) return pieceLayer;
+        // a space of pieceSize layers, so that the pieces starting at its first layer don't loop along the X axis
+        final B[] firstLayer = layer(x);
+        final MCVirtualSpace<B> slab = new MCVirtualSpace<>(new Bounds(0, bounds.yMin(), bounds.zMin(),
+                pieceSize - 1, bounds.yMax(), bounds.zMax()), firstLayer[0]);
+        for (int dx = 0; dx < pieceSize; dx++) {
+            final B[] layer = dx == 0 ? firstLayer : layer(x + dx);
+            int index = 0;
+            for (int y = bounds.yMin(); y <= bounds.yMax(); y++) {
+                for (int z = bounds.zMin(); z <= bounds.zMax(); z++) {
+                    slab.set(layer[index++], dx, y, z);
+                }
+            }
+        }
+        final PieceExtractor<B> extractor = new PieceExtractor<>(slab, pieceSize);
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        final Piece.Locked<B>[] newPieceLayer = new Piece.Locked[ySize * zSize];
+        int index = 0;
+        for (int y = bounds.yMin(); y <= bounds.yMax(); y++) {
+            for (int z = bounds.zMin(); z <= bounds.zMax(); z++) {
+                newPieceLayer[index++] = extractor.getPieceAt(0, y, z);
+            }
+        }
+        pieceLayers.put(x, newPieceLayer);
+        return newPieceLayer;
+    }
+
+    /**
+     * @param x not looped, it may be out of the bounds
+     * @return the blocks of that layer, read from the source if needed
+     */
+    private @NotNull B @NotNull [] layer(int x) throws IOException {
+        final int slot = Math.floorMod(x - bounds.xMin(), layers.length);
+        if (loadedLayers[slot] != x) {
+            final B[] layer = source.readLayer(bounds.xMin() + Math.floorMod(x - bounds.xMin(), bounds.xSize()));
+            if (layer.length != ySize * zSize)
+                throw new IllegalArgumentException("the source gave a layer of length " + layer.length + " instead of "
+                        + ySize * zSize);
+            layers[slot] = layer;
+            loadedLayers[slot] = x;
+        }
+        return layers[slot];
+    }
+
+    public int getPieceSize() {
+        return pieceSize;
+    }
+
+    /**
+     * @return the bounds of the source
+     */
+    public @NotNull Bounds getBounds() {
+        return bounds;
+    }
+
+}
@@ -6,7 +6,10 @@ import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Objects;
 
 /**
@@ -16,8 +19,16 @@ import java.util.Objects;
  */
 public class VirtualSpace<T> implements Iterable<VirtualSpace.ObjectWithCoordinates<T>> {
 
+    /**
+     * {@link #contentHash() Content hashes} are computed by sections of SECTION_SIZE^3 elements, starting at the
+     * minimum coordinates.
+     */
+    protected static final int SECTION_BITS = 3, SECTION_SIZE = 1 << SECTION_BITS;
+
     private int enlargeAtOnce = 5;
 
+    private double growthFactor = 0.5;
+
     private T[][][] data;
 
     /*
@@ -64,6 +75,7 @@ public class VirtualSpace<T> implements Iterable<VirtualSpace.ObjectWithCoordina
         zMax = propertiesIndicator.zMax;
 
         enlargeAtOnce = propertiesIndicator.enlargeAtOnce;
+        growthFactor = propertiesIndicator.growthFactor;
 
         fill = propertiesIndicator.fill;
     }
@@ -105,6 +117,37 @@ public class VirtualSpace<T> implements Iterable<VirtualSpace.ObjectWithCoordina
         zOffset = -zMin;
     }
 
+    /**
+     * Given to {@link #VirtualSpace(Bounds, NoArrays)} by subclasses that store their elements themselves
+     */
+    protected enum NoArrays {
+        NO_ARRAYS
+    }
+
+    /**
+     * New instance where {@link #xMin()} == {@link Bounds#xMin()}, {@link #zMax()} == {@link Bounds#zMax()}, etc, but
+     * that does not allocate any array. This is for subclasses storing their elements somewhere else: they must
+     * override every method reading or writing elements.
+     * @param marker only there to tell this constructor apart from {@link #VirtualSpace(Bounds)}
+     */
+    protected VirtualSpace(@NotNull Bounds bounds, @SuppressWarnings("unused") @NotNull NoArrays marker) {
+        xMin = bounds.xMin();
+        yMin = bounds.yMin();
+        zMin = bounds.zMin();
+
+        xMax = bounds.xMax();
+        yMax = bounds.yMax();
+        zMax = bounds.zMax();
+
+        xArraySize = xMax - xMin + 1;
+        yArraySize = yMax - yMin + 1;
+        zArraySize = zMax - zMin + 1;
+
+        xOffset = -xMin;
+        yOffset = -yMin;
+        zOffset = -zMin;
+    }
+
     /**
      * Replaces all null values by this. Note that this is more visual: the arrays won't change, but instead of returning
      * null, it will now return what you give in here. This means that if you set {@code null} at a certain coordinate
@@ -280,7 +323,7 @@ public class VirtualSpace<T> implements Iterable<VirtualSpace.ObjectWithCoordina
 
     @SuppressWarnings({"unchecked", "SuspiciousSystemArraycopy"})
     void enlargeX(final int addingSpace) {
-        final int totalAddingSpace = Math.abs(addingSpace) + enlargeAtOnce;
+        final int totalAddingSpace = Math.abs(addingSpace) + extraSpace(xArraySize);
         if (addingSpace < 0) {
             if (xMin + addingSpace + xOffset < 0) {
                 Object[][][] old = data;
@@ -303,7 +346,7 @@ public class VirtualSpace<T> implements Iterable<VirtualSpace.ObjectWithCoordina
 
     @SuppressWarnings({"unchecked", "SuspiciousSystemArraycopy"})
     void enlargeY(final int addingSpace) {
-        final int totalAddingSpace = Math.abs(addingSpace) + enlargeAtOnce;
+        final int totalAddingSpace = Math.abs(addingSpace) + extraSpace(yArraySize);
         if (addingSpace < 0) {
             if (yMin + addingSpace + yOffset < 0) {
                 for (int x = 0; x < xArraySize; x++) {
@@ -330,7 +373,7 @@ public class VirtualSpace<T> implements Iterable<VirtualSpace.ObjectWithCoordina
 
     @SuppressWarnings({"unchecked", "SuspiciousSystemArraycopy"})
     void enlargeZ(final int addingSpace) {
-        final int totalAddingSpace = Math.abs(addingSpace) + enlargeAtOnce;
+        final int totalAddingSpace = Math.abs(addingSpace) + extraSpace(zArraySize);
         if (addingSpace < 0) {
             if (zMin + addingSpace + zOffset < 0) {
                 for (int x = 0; x < xArraySize; x++) {
@@ -359,8 +402,16 @@ public class VirtualSpace<T> implements Iterable<VirtualSpace.ObjectWithCoordina
         }
     }
 
+    /**
+     * @return how much space to add when the arrays need to be enlarged, apart from the space really needed
+     */
+    private int extraSpace(int arraySize) {
+        return Math.max(enlargeAtOnce, (int) (arraySize * growthFactor));
+    }
+
     /**
      * when the arrays need to be enlarged, it will directly grow for example 5, so it hasn't to copy arrays each time.
+     * @see #setGrowthFactor(double)
      */
     public void setEnlargeAtOnce(int enlargeAtOnce) {
         if (enlargeAtOnce < 1) throw new IllegalArgumentException("enlargeAtOnce must be >= 1");
@@ -375,38 +426,87 @@ public class VirtualSpace<T> implements Iterable<VirtualSpace.ObjectWithCoordina
     }
 
     /**
-     * Creates and returns a selection from one point to another. The selection may be larger than the original.
+     * When the arrays need to be enlarged, they grow by at least their current size multiplied by this factor (and by
+     * at least {@link #setEnlargeAtOnce(int) enlargeAtOnce}). This makes setting elements further and further in the
+     * same direction a lot faster, as the arrays are copied fewer times. The default is 0.5, and 0 means that they
+     * only grow by <i>enlargeAtOnce</i>.
+     */
+    public void setGrowthFactor(double growthFactor) {
+        if (!(growthFactor >= 0)) throw new IllegalArgumentException("growthFactor must be >= 0");
+        this.growthFactor = growthFactor;
+    }
+
+    /**
+     * @see #setGrowthFactor(double)
+     */
+    public double getGrowthFactor() {
+        return growthFactor;
+    }
+
+    /**
+     * Creates and returns a selection from one point to another. The selection has exactly these bounds, even if they
+     * go further than the bounds of this space.
      */
     @Contract(pure = true)
     public VirtualSpace<T> select(int xFrom, int yFrom, int zFrom, int xTo, int yTo, int zTo) {
-        if (xFrom > xTo) {
-            int swapper = xFrom;
-            xFrom = xTo;
-            xTo = swapper;
-        }
-        if (yFrom > yTo) {
-            int swapper = yFrom;
-            yFrom = yTo;
-            yTo = swapper;
-        }
-        if (zFrom > zTo) {
-            int swapper = zFrom;
-            zFrom = zTo;
-            zTo = swapper;
-        }
-        VirtualSpace<T> result = new VirtualSpace<>();
+        final Bounds region = Bounds.fromTo(xFrom, yFrom, zFrom, xTo, yTo, zTo);
+        VirtualSpace<T> result = new VirtualSpace<>(region);
         result.setFill(getFill());
-        for (int xi = xFrom; xi <= xTo; xi++) {
-            for (int yi = yFrom; yi <= yTo; yi++) {
-                for (int zi = zFrom; zi <= zTo; zi++) {
-                    final T element = getWithoutFill(xi, yi, zi);
-                    if (element != null) {
-                        result.set(element, xi, yi, zi);
+        result.paste(this, region, region.xMin(), region.yMin(), region.zMin());
+        return result;
+    }
+
+    /**
+     * Same as {@link #paste(VirtualSpace, Bounds, int, int, int)}, keeping the same coordinates as in the source.
+     */
+    public void paste(@NotNull VirtualSpace<T> source) {
+        paste(source, source.getBounds(), source.xMin, source.yMin, source.zMin);
+    }
+
+    /**
+     * Copies all elements (without the fill) of a region of the source space into this space, so that the element at
+     * {@code (region.xMin(), region.yMin(), region.zMin())} in source is now at {@code (x, y, z)} in this space. The
+     * elements that are {@code null} in the source are copied too. This space is enlarged at most once per side, and
+     * elements are copied by whole rows when possible, so this is a lot faster than setting elements one by one.
+     */
+    public void paste(@NotNull VirtualSpace<T> source, @NotNull Bounds region, int x, int y, int z) {
+        if (source == this) {
+            // avoid overwriting elements that are not copied yet
+            source = select(region.xMin(), region.yMin(), region.zMin(), region.xMax(), region.yMax(), region.zMax());
+        }
+        final int xShift = x - region.xMin(), yShift = y - region.yMin(), zShift = z - region.zMin();
+        ensureCapacityForElement(region.xMin() + xShift, region.yMin() + yShift, region.zMin() + zShift);
+        ensureCapacityForElement(region.xMax() + xShift, region.yMax() + yShift, region.zMax() + zShift);
+
+        if (data == null || source.data == null) {
+            // at least one of the spaces stores its elements somewhere else
+            for (int xi = region.xMin(); xi <= region.xMax(); xi++) {
+                for (int yi = region.yMin(); yi <= region.yMax(); yi++) {
+                    for (int zi = region.zMin(); zi <= region.zMax(); zi++) {
+                        set(source.getWithoutFill(xi, yi, zi), xi + xShift, yi + yShift, zi + zShift);
                     }
                 }
             }
+            return;
+        }
+
+        // the part of the region's z-rows that is in the source
+        final int zCopyFrom = Math.max(region.zMin(), source.zMin), zCopyTo = Math.min(region.zMax(), source.zMax);
+        for (int xi = region.xMin(); xi <= region.xMax(); xi++) {
+            for (int yi = region.yMin(); yi <= region.yMax(); yi++) {
+                final T[] row = data[xi + xShift + xOffset][yi + yShift + yOffset];
+                final int rowFrom = region.zMin() + zShift + zOffset, rowTo = region.zMax() + zShift + zOffset; // inclusive
+                if (xi < source.xMin || xi > source.xMax || yi < source.yMin || yi > source.yMax || zCopyFrom > zCopyTo) {
+                    Arrays.fill(row, rowFrom, rowTo + 1, null);
+                    continue;
+                }
+                final int copyFrom = zCopyFrom + zShift + zOffset, copyTo = zCopyTo + zShift + zOffset;
+                Arrays.fill(row, rowFrom, copyFrom, null);
+                System.arraycopy(source.data[xi + source.xOffset][yi + source.yOffset], zCopyFrom + source.zOffset,
+                        row, copyFrom, copyTo - copyFrom + 1);
+                Arrays.fill(row, copyTo + 1, rowTo + 1, null);
+            }
         }
-        return result;
     }
 
     public Iterator<ObjectWithCoordinates<T>> iteratorWithoutFill() {
@@ -473,21 +573,158 @@ public class VirtualSpace<T> implements Iterable<VirtualSpace.ObjectWithCoordina
         return copy;
     }
 
+    /**
+     * Two spaces are equal if they have the same bounds, the same fill, and the same elements (without the fill).
+     * This compares every element, so it is O(elements).
+     */
     @Override
     public boolean equals(Object obj) {
-        if (obj instanceof VirtualSpace other) {
-            if (!Objects.equals(fill, other.fill)) return false;
-            Iterator<ObjectWithCoordinates<T>> thisIterator = iteratorWithoutFill();
-            @SuppressWarnings("unchecked")
-            Iterator<ObjectWithCoordinates<?>> objIterator = other.iteratorWithoutFill();
-            while (thisIterator.hasNext() && objIterator.hasNext()) {
-                if (!thisIterator.next().equals(objIterator.next())) return false;
+        if (this == obj) return true;
+        if (obj instanceof VirtualSpace<?> other) {
+            if (!Objects.equals(fill, other.fill) || !getBounds().equals(other.getBounds())) return false;
+            for (int x = xMin; x <= xMax; x++) {
+                for (int y = yMin; y <= yMax; y++) {
+                    for (int z = zMin; z <= zMax; z++) {
+                        if (!Objects.equals(getWithoutFill(x, y, z), other.getWithoutFill(x, y, z))) return false;
+                    }
+                }
             }
             return true;
         }
         return false;
     }
 
+    /**
+     * @return the {@link #contentHash()}. This depends on every element, so it changes each time the space is
+     * modified, and it is O(elements) unless section hashes are cached. Don't modify a space while it is in a
+     * {@link java.util.HashSet} or used as a key of a {@link java.util.HashMap}.
+     */
+    @Override
+    public int hashCode() {
+        return Long.hashCode(contentHash());
+    }
+
+    /**
+     * @return a 64-bit hash of the bounds, the fill and all the elements (without the fill). Two equal spaces always
+     * have the same content hash. It is computed like a hash tree: elements are hashed by sections of
+     * {@link #SECTION_SIZE}^3 (see {@link #sectionHash(int, int, int)}), then the section hashes are hashed together,
+     * so this is O(elements) here, and O(sections) in subclasses caching section hashes, like
+     * {@link CopyOnWriteVirtualSpace}.
+     */
+    public long contentHash() {
+        long hash = mix(Objects.hashCode(fill), getBounds().hashCode());
+        final int xSections = sectionCount(xSize()), ySections = sectionCount(ySize()), zSections = sectionCount(zSize());
+        for (int sectionX = 0; sectionX < xSections; sectionX++) {
+            for (int sectionY = 0; sectionY < ySections; sectionY++) {
+                for (int sectionZ = 0; sectionZ < zSections; sectionZ++) {
+                    hash = mix(hash, sectionHash(sectionX, sectionY, sectionZ));
+                }
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * @param sectionX the index of the section along the x-axis, the first section starting at {@link #xMin()}
+     * @return the hash of the elements (without the fill) in that section, elements out of the bounds being
+     * {@code null}
+     */
+    protected long sectionHash(int sectionX, int sectionY, int sectionZ) {
+        long hash = 0;
+        final int xFrom = xMin + (sectionX << SECTION_BITS),
+                  yFrom = yMin + (sectionY << SECTION_BITS),
+                  zFrom = zMin + (sectionZ << SECTION_BITS);
+        for (int x = xFrom; x < xFrom + SECTION_SIZE; x++) {
+            for (int y = yFrom; y < yFrom + SECTION_SIZE; y++) {
+                for (int z = zFrom; z < zFrom + SECTION_SIZE; z++) {
+                    hash = mix(hash, Objects.hashCode(getWithoutFill(x, y, z)));
+                }
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Combines a hash with a new value, used for {@link #contentHash()}
+     */
+    protected static long mix(long hash, long value) {
+        return (hash + value) * 0x9E3779B97F4A7C15L; // 2^64 / golden ratio, spreads the bits
+    }
+
+    protected static int sectionCount(int size) {
+        return (size + SECTION_SIZE - 1) >> SECTION_BITS;
+    }
+
+    /**
+     * @return the coordinates of all elements that are different (without the fill) in this space and in the other
+     * one, in the union of both bounds.
+     */
+    public @NotNull List<Coords> diff(@NotNull VirtualSpace<T> other) {
+        final List<Coords> result = new ArrayList<>();
+        final int xFrom = Math.min(xMin, other.xMin), xTo = Math.max(xMax, other.xMax),
+                  yFrom = Math.min(yMin, other.yMin), yTo = Math.max(yMax, other.yMax),
+                  zFrom = Math.min(zMin, other.zMin), zTo = Math.max(zMax, other.zMax);
+        for (int x = xFrom; x <= xTo; x++) {
+            for (int y = yFrom; y <= yTo; y++) {
+                for (int z = zFrom; z <= zTo; z++) {
+                    if (!Objects.equals(getWithoutFill(x, y, z), other.getWithoutFill(x, y, z)))
+                        result.add(new Coords(x, y, z));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param sectionX the index of the section along the x-axis, the first section starting at {@link #xMin()}
+     * @return whether the elements (without the fill) in that section are equal in this space and in the other one,
+     * which must have the same bounds. Subclasses may use cached {@link #sectionHash(int, int, int) section hashes} to
+     * answer faster when they differ, but must still compare elements when they are the same.
+     */
+    protected boolean sectionEquals(@NotNull VirtualSpace<?> other, int sectionX, int sectionY, int sectionZ) {
+        final int xFrom = xMin + (sectionX << SECTION_BITS),
+                  yFrom = yMin + (sectionY << SECTION_BITS),
+                  zFrom = zMin + (sectionZ << SECTION_BITS);
+        for (int x = xFrom; x < Math.min(xFrom + SECTION_SIZE, xMax + 1); x++) {
+            for (int y = yFrom; y < Math.min(yFrom + SECTION_SIZE, yMax + 1); y++) {
+                for (int z = zFrom; z < Math.min(zFrom + SECTION_SIZE, zMax + 1); z++) {
+                    if (!Objects.equals(getWithoutFill(x, y, z), other.getWithoutFill(x, y, z))) return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compares both spaces section by section (see {@link #sectionEquals(VirtualSpace, int, int, int)}), which is
+     * very fast for sections that are shared, or whose hashes are cached and different (like in
+     * {@link CopyOnWriteVirtualSpace}). Sections with the same hash are still compared element by element, so no
+     * change is missed.
+     * @return the bounds of each section (of {@link #SECTION_SIZE}^3 elements at most) whose elements are different
+     * in this space and in the other one
+     * @throws IllegalArgumentException if both spaces don't have the same bounds
+     */
+    public @NotNull List<Bounds> diffSections(@NotNull VirtualSpace<T> other) {
+        if (!getBounds().equals(other.getBounds()))
+            throw new IllegalArgumentException("cannot compare sections of spaces with different bounds");
+        final List<Bounds> result = new ArrayList<>();
+        final int xSections = sectionCount(xSize()), ySections = sectionCount(ySize()), zSections = sectionCount(zSize());
+        for (int sectionX = 0; sectionX < xSections; sectionX++) {
+            for (int sectionY = 0; sectionY < ySections; sectionY++) {
+                for (int sectionZ = 0; sectionZ < zSections; sectionZ++) {
+                    if (!sectionEquals(other, sectionX, sectionY, sectionZ)) {
+                        final int xFrom = xMin + (sectionX << SECTION_BITS),
+                                  yFrom = yMin + (sectionY << SECTION_BITS),
+                                  zFrom = zMin + (sectionZ << SECTION_BITS);
+                        result.add(new Bounds(xFrom, yFrom, zFrom, Math.min(xFrom + SECTION_SIZE - 1, xMax),
+                                Math.min(yFrom + SECTION_SIZE - 1, yMax), Math.min(zFrom + SECTION_SIZE - 1, zMax)));
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
     public int xMin() {
         return xMin;
     }
@@ -572,9 +809,9 @@ public class VirtualSpace<T> implements Iterable<VirtualSpace.ObjectWithCoordina
      */
     public void debugPrint(int zLayer) {
         System.out.println("z = " + zLayer + " ; xMin = " + xMin + " ;  xMax = " + xMax + " ;  yMin = " + yMin + " ;  yMax = " + yMax);
-        for (int y = yMin + yOffset ; y <= yMax + yOffset; y++) {
-            for (int x = xMin + xOffset; x <= xMax + xOffset; x++) {
-                T element = data[x][y][zLayer + zOffset];
+        for (int y = yMin; y <= yMax; y++) {
+            for (int x = xMin; x <= xMax; x++) {
+                T element = getWithoutFill(x, y, zLayer);
                 System.out.print(element != null ? element : fill != null ? fill : ' ');
                 System.out.print(' ');
             }
@@ -587,9 +824,9 @@ public class VirtualSpace<T> implements Iterable<VirtualSpace.ObjectWithCoordina
      */
     public void debugPrintY(int yLayer) {
         System.out.println("y = " + yLayer + " ; xMin = " + xMin + " ;  xMax = " + xMax + " ;  yMin = " + yMin + " ;  yMax = " + yMax);
-        for (int z = zMin + zOffset ; z <= zMax + zOffset; z++) {
-            for (int x = xMin + xOffset; x <= xMax + xOffset; x++) {
-                T element = data[x][yLayer + yOffset][z];
+        for (int z = zMin; z <= zMax; z++) {
+            for (int x = xMin; x <= xMax; x++) {
+                T element = getWithoutFill(x, yLayer, z);
                 System.out.print(element != null ? element : fill != null ? fill : ' ');
                 System.out.print(' ');
             }
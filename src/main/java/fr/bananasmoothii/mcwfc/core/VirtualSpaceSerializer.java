@@ -0,0 +1,289 @@
+package fr.bananasmoothii.mcwfc.core;
+
+import fr.bananasmoothii.mcwfc.core.util.Bounds;
+import fr.bananasmoothii.mcwfc.core.util.Codec;
+import fr.bananasmoothii.mcwfc.core.util.Palette;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Writes and reads {@link VirtualSpace}s (and {@link MCVirtualSpace}s) in a compact binary format. Elements are
+ * written as ids of a palette, section by section, and each section can be compressed. Reading and writing go
+ * directly from the space to the stream and vice versa.
+ */
+public final class VirtualSpaceSerializer {
+
+    /*
+        Format (big endian, as DataOutput does):
+         - int magic, short version
+         - int xMin, yMin, zMin, xMax, yMax, zMax
+         - boolean hasFill, then the fill written with the Codec
+         - int palette size, then every element of the palette written with the Codec
+         - for each section of CHUNK_SIZE^3 elements (looping over X, then Y, then Z):
+           - byte encoding (see SECTION_...)
+           - if not SECTION_EMPTY: int length in bytes, then the bytes. Decompressed, each element of the section is
+             an id on 1, 2 or 4 bytes (depending on the palette size), 0 being null and any other value being the id
+             in the palette + 1. Elements loop over X, then Y, then Z.
+     */
+    private static final int MAGIC = 0x4D435753; // "MCWS"
+    private static final short VERSION = 1;
+    /**
+     * the size of the sections of the format. This is not {@link VirtualSpace#SECTION_SIZE}, as it is part of the
+     * format and must not change.
+     */
+    private static final int CHUNK_SIZE = 16;
+    private static final byte SECTION_EMPTY = 0, SECTION_RAW = 1, SECTION_DEFLATED = 2;
+
+    private VirtualSpaceSerializer() {
+    }
+
+    /**
+     * Same as {@link #write(VirtualSpace, DataOutput, Codec, boolean)} with compression
+     */
+    public static <T> void write(@NotNull VirtualSpace<T> space, @NotNull DataOutput out, @NotNull Codec<T> codec)
+            throws IOException {
+        write(space, out, codec, true);
+    }
+
+    /**
+     * @param compress whether to compress each section (sections that can't be made smaller are never compressed)
+     */
+    public static <T> void write(@NotNull VirtualSpace<T> space, @NotNull DataOutput out, @NotNull Codec<T> codec,
+                                 boolean compress) throws IOException {
+        final Bounds bounds = space.getBounds();
+        final Palette<T> palette = new Palette<>();
+        for (int x = bounds.xMin(); x <= bounds.xMax(); x++) {
+            for (int y = bounds.yMin(); y <= bounds.yMax(); y++) {
+                for (int z = bounds.zMin(); z <= bounds.zMax(); z++) {
+                    final T element = space.getWithoutFill(x, y, z);
+                    if (element != null) palette.getOrCreateId(element);
+                }
+            }
+        }
+
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeInt(bounds.xMin());
+        out.writeInt(bounds.yMin());
+        out.writeInt(bounds.zMin());
+        out.writeInt(bounds.xMax());
+        out.writeInt(bounds.yMax());
+        out.writeInt(bounds.zMax());
+        final @Nullable T fill = space.getFill();
+        out.writeBoolean(fill != null);
+        if (fill != null) codec.write(fill, out);
+        out.writeInt(palette.size());
+        for (T element : palette) {
+            codec.write(element, out);
+        }
+
+        final int idBytes = idBytes(palette.size());
+        final byte[] section = new byte[CHUNK_SIZE * CHUNK_SIZE * CHUNK_SIZE * idBytes];
+        final ReusableByteArrayOutputStream compressed = new ReusableByteArrayOutputStream(section.length);
+        final Deflater deflater = new Deflater();
+        try {
+            for (int sx = bounds.xMin(); sx <= bounds.xMax(); sx += CHUNK_SIZE) {
+                for (int sy = bounds.yMin(); sy <= bounds.yMax(); sy += CHUNK_SIZE) {
+                    for (int sz = bounds.zMin(); sz <= bounds.zMax(); sz += CHUNK_SIZE) {
+                        int length = 0;
+                        boolean empty = true;
+                        for (int x = sx; x <= Math.min(sx + CHUNK_SIZE - 1, bounds.xMax()); x++) {
+                            for (int y = sy; y <= Math.min(sy + CHUNK_SIZE - 1, bounds.yMax()); y++) {
+                                for (int z = sz; z <= Math.min(sz + CHUNK_SIZE - 1, bounds.zMax()); z++) {
+                                    final T element = space.getWithoutFill(x, y, z);
+                                    final int id = element == null ? 0 : palette.getId(element) + 1;
+                                    if (id != 0) empty = false;
+                                    writeId(section, length, id, idBytes);
+                                    length += idBytes;
+                                }
+                            }
+                        }
+                        if (empty) {
+                            out.writeByte(SECTION_EMPTY);
+                            continue;
+                        }
+                        if (compress) {
+                            compressed.reset();
+                            deflater.reset();
+                            DeflaterOutputStream deflaterStream = new DeflaterOutputStream(compressed, deflater);
+                            deflaterStream.write(section, 0, length);
+                            deflaterStream.finish();
+                            if (compressed.size() < length) {
+                                out.writeByte(SECTION_DEFLATED);
+                                out.writeInt(compressed.size());
+                                compressed.writeTo(out);
+                                continue;
+                            }
+                        }
+                        out.writeByte(SECTION_RAW);
+                        out.writeInt(length);
+                        out.write(section, 0, length);
+                    }
+                }
+            }
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Reads a {@link VirtualSpace} written by {@link #write(VirtualSpace, DataOutput, Codec, boolean)}. The result has
+     * exactly the bounds and the fill of the space that was written.
+     */
+    public static <T> @NotNull VirtualSpace<T> read(@NotNull DataInput in, @NotNull Codec<T> codec) throws IOException {
+        return VirtualSpaceSerializer.<T, VirtualSpace<T>>read(in, codec, (bounds, fill) -> {
+            VirtualSpace<T> space = new VirtualSpace<>(bounds);
+            space.setFill(fill);
+            return space;
+        });
+    }
+
+    /**
+     * Same as {@link #read(DataInput, Codec)} but for a {@link MCVirtualSpace}.
+     * @throws IOException if the space that was written had no fill
+     */
+    public static <B> @NotNull MCVirtualSpace<B> readMC(@NotNull DataInput in, @NotNull Codec<B> codec) throws IOException {
+        return VirtualSpaceSerializer.<B, MCVirtualSpace<B>>read(in, codec, (bounds, fill) -> {
+            if (fill == null) throw new IOException("the written space has no fill, it can't be a MCVirtualSpace");
+            return new MCVirtualSpace<>(bounds, fill);
+        });
+    }
+
+    /**
+     * Reads a space written by {@link #write(VirtualSpace, DataOutput, Codec, boolean)} into the space given by
+     * spaceFactory. This can be used to read directly into a {@link MappedVirtualSpace} for example.
+     * @param spaceFactory creates the space where elements will be set, given the bounds and the fill that were written.
+     *                     The fill may be {@code null}.
+     */
+    public static <T, V extends VirtualSpace<T>> @NotNull V read(@NotNull DataInput in, @NotNull Codec<T> codec,
+                                                                @NotNull SpaceFactory<T, V> spaceFactory)
+            throws IOException {
+        if (in.readInt() != MAGIC) throw new IOException("this is not a serialized virtual space");
+        final short version = in.readShort();
+        if (version != VERSION) throw new IOException("unsupported virtual space version: " + version);
+        final Bounds bounds = new Bounds(in.readInt(), in.readInt(), in.readInt(),
+                in.readInt(), in.readInt(), in.readInt());
+        final @Nullable T fill = in.readBoolean() ? codec.read(in) : null;
+        final int paletteSize = in.readInt();
+        // each element of the palette is in at least one cell
+        if (paletteSize < 0 || paletteSize > (long) bounds.xSize() * bounds.ySize() * bounds.zSize())
+            throw new IOException("invalid palette size: " + paletteSize);
+        @SuppressWarnings("unchecked")
+        final T[] palette = (T[]) new Object[paletteSize];
+        for (int i = 0; i < paletteSize; i++) {
+            palette[i] = codec.read(in);
+        }
+
+        final V space = spaceFactory.create(bounds, fill);
+        final int idBytes = idBytes(paletteSize);
+        final byte[] section = new byte[CHUNK_SIZE * CHUNK_SIZE * CHUNK_SIZE * idBytes];
+        byte[] compressed = new byte[0];
+        final Inflater inflater = new Inflater();
+        try {
+            for (int sx = bounds.xMin(); sx <= bounds.xMax(); sx += CHUNK_SIZE) {
+                for (int sy = bounds.yMin(); sy <= bounds.yMax(); sy += CHUNK_SIZE) {
+                    for (int sz = bounds.zMin(); sz <= bounds.zMax(); sz += CHUNK_SIZE) {
+                        final int xTo = Math.min(sx + CHUNK_SIZE - 1, bounds.xMax()),
+                                  yTo = Math.min(sy + CHUNK_SIZE - 1, bounds.yMax()),
+                                  zTo = Math.min(sz + CHUNK_SIZE - 1, bounds.zMax());
+                        final int length = (xTo - sx + 1) * (yTo - sy + 1) * (zTo - sz + 1) * idBytes;
+                        final byte encoding = in.readByte();
+                        switch (encoding) {
+                            case SECTION_EMPTY -> {
+                                continue;
+                            }
+                            case SECTION_RAW -> {
+                                if (in.readInt() != length) throw new IOException("invalid section length");
+                                in.readFully(section, 0, length);
+                            }
+                            case SECTION_DEFLATED -> {
+                                final int compressedLength = in.readInt();
+                                if (compressedLength < 0) throw new IOException("invalid section length");
+                                if (compressed.length < compressedLength) compressed = new byte[compressedLength];
+                                in.readFully(compressed, 0, compressedLength);
+                                inflater.reset();
+                                inflater.setInput(compressed, 0, compressedLength);
+                                int inflated = 0;
+                                while (inflated < length && !inflater.finished()) {
+                                    final int n = inflater.inflate(section, inflated, length - inflated);
+                                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                                    inflated += n;
+                                }
+                                if (inflated != length) throw new IOException("invalid compressed section");
+                            }
+                            default -> throw new IOException("unknown section encoding: " + encoding);
+                        }
+                        int index = 0;
+                        for (int x = sx; x <= xTo; x++) {
+                            for (int y = sy; y <= yTo; y++) {
+                                for (int z = sz; z <= zTo; z++) {
+                                    final int id = readId(section, index, idBytes);
+                                    index += idBytes;
+                                    if (id == 0) continue;
+                                    if (id > paletteSize) throw new IOException("invalid palette id: " + (id - 1));
+                                    space.set(palette[id - 1], x, y, z);
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("invalid compressed section", e);
+        } finally {
+            inflater.end();
+        }
+        return space;
+    }
+
+    /**
+     * Creates the space where elements will be read, see {@link #read(DataInput, Codec, SpaceFactory)}
+     */
+    @FunctionalInterface
+    public interface SpaceFactory<T, V extends VirtualSpace<T>> {
+        @NotNull V create(@NotNull Bounds bounds, @Nullable T fill) throws IOException;
+    }
+
+    /**
+     * @return the number of bytes needed to store ids of a palette of that size, plus the null id
+     */
+    private static int idBytes(int paletteSize) {
+        if (paletteSize < 0xFF) return 1;
+        if (paletteSize < 0xFFFF) return 2;
+        return 4;
+    }
+
+    private static void writeId(byte[] bytes, int index, int id, int idBytes) {
+        for (int i = idBytes - 1; i >= 0; i--) {
+            bytes[index + i] = (byte) id;
+            id >>>= 8;
+        }
+    }
+
+    private static int readId(byte[] bytes, int index, int idBytes) {
+        int id = 0;
+        for (int i = 0; i < idBytes; i++) {
+            id = id << 8 | bytes[index + i] & 0xFF;
+        }
+        return id;
+    }
+
+    /**
+     * A {@link ByteArrayOutputStream} that can write its content to a {@link DataOutput} without copying it
+     */
+    private static final class ReusableByteArrayOutputStream extends ByteArrayOutputStream {
+        private ReusableByteArrayOutputStream(int size) {
+            super(size);
+        }
+
+        private void writeTo(@NotNull DataOutput out) throws IOException {
+            out.write(buf, 0, count);
+        }
+    }
+}
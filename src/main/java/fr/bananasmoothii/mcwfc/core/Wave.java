@@ -10,6 +10,7 @@ import org.jetbrains.annotations.Nullable;
 
 import java.util.*;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.UnaryOperator;
 
 /**
  * @param <B> the type of the blocks in the {@link Piece}s. For example, in bukkit, this is BlockData.
@@ -18,11 +19,19 @@ public class Wave<B> {
     /**
      * This needs to be a virtual space of {@link Sample<B>} and not just {@link Set}<{@link Piece}>
      * because two {@link PieceNeighbors.Locked<B>} are different while their centerpiece might be the same.
-     * At the begenning, every node is equal to {@link #sample}, but they are not the same object: each {@link Sample<B>}
-     * in the {@link VirtualSpace} is unique.
+     * At the begenning, every node is the same indexed copy of {@link #sample}, put with
+     * {@link CopyOnWriteVirtualSpace#setShared(Object, int, int, int)}. As nodes are shared between cells and with the
+     * {@link WaveState}s, a node must be taken with {@link #getForWrite(int, int, int, boolean)} before being
+     * modified, which copies it the first time. These samples are {@link Sample#isIndexed() indexed}, as their
+     * neighbors are checked for each candidate.
      */
-    private VirtualSpace<Sample<B>> wave;
+    private CopyOnWriteVirtualSpace<Sample<B>> wave;
     private final ImmutableSample<B> sample;
+    /**
+     * the faces having a neighbor in at least one {@link PieceNeighbors} of the sample, these are the only ones where
+     * changes need to be propagated
+     */
+    private final List<Face> neighborFaces;
     private final long seed;
     private final List<@NotNull PieceCollapseListener<B>> pieceCollapseListeners = new ArrayList<>();
     public final boolean useModuloCoords;
@@ -37,8 +46,13 @@ public class Wave<B> {
     }
 
     public Wave(@NotNull Sample<B> sample, @NotNull Bounds bounds, boolean useModuloCoords, long seed) {
-        wave = new VirtualSpace<>(bounds);
+        wave = new CopyOnWriteVirtualSpace<>(bounds);
         this.sample = sample.immutable();
+        final EnumSet<Face> faces = EnumSet.noneOf(Face.class);
+        for (PieceNeighbors.Locked<B> pieceNeighbors : this.sample) {
+            faces.addAll(pieceNeighbors.keySet());
+        }
+        neighborFaces = List.copyOf(faces);
         this.useModuloCoords = useModuloCoords;
         this.seed = seed;
     }
@@ -142,8 +156,10 @@ public class Wave<B> {
         if (sample.isEmpty()) throw new GenerationFailedException("Invalid sample");
         boolean isAlreadyCollapsed = sample.size() == 1;
         final PieceNeighbors.Locked<B> aPiece = sample.iterator().next();
+        // a single indexed copy for every cell, each cell gets its own copy the first time it is written
+        final Sample<B> possibleStates = new Sample<>(sample, true);
         for (Coords node : currentGenerationBounds) {
-            wave.set(new Sample<>(sample), node.x(), node.y(), node.z());
+            wave.setShared(possibleStates, node.x(), node.y(), node.z());
             if (isAlreadyCollapsed) {
                 pieceCollapsedCallListeners(node.x(), node.y(), node.z(), aPiece);
             }
@@ -157,7 +173,7 @@ public class Wave<B> {
                 final Sample<B> candidates = getCollapseCandidatesAt(x, y, z);
                 if (candidates.isEmpty()) throw new GenerationFailedException("No candidates at " + coords +
                         ": your sample is invalid");
-                if (candidates.size() <= sample.size()) {
+                if (candidates.size() < sample.size()) {
                     wave.set(candidates, x, y, z);
                     propagateCollapseLaterFrom(x, y, z);
                 }
@@ -170,14 +186,13 @@ public class Wave<B> {
      */
     @Contract(pure = true)
     public @NotNull Sample<B> getCollapseCandidatesAt(int x, int y, int z) throws GenerationFailedException {
-        final Sample<B> newCandidates = new Sample<>();
+        final Sample<B> newCandidates = new Sample<>(true);
         final Sample<B> currentCandidates = wave.get(x, y, z, useModuloCoords);
         if (currentCandidates == null) return newCandidates;
-        final Iterator<Map.Entry<PieceNeighbors.Locked<B>, Integer>> iter = currentCandidates.elementsAndWeightsIterator();
-        while (iter.hasNext()) {
-            final Map.Entry<PieceNeighbors.Locked<B>, Integer> entry = iter.next();
-            final PieceNeighbors.Locked<B> currentCandidate = entry.getKey();
-            final int currentCandidateWeight = entry.getValue();
+        final Sample<B>.Cursor cursor = currentCandidates.cursor();
+        while (cursor.advance()) {
+            final PieceNeighbors.Locked<B> currentCandidate = cursor.key();
+            final int currentCandidateWeight = cursor.weight();
             boolean isValidCandidate = true;
             for (Map.Entry<Face, Optional<Piece.Locked<B>>> faceEntry : currentCandidate.entrySet()) {
                 final Face face = faceEntry.getKey();
@@ -223,7 +238,7 @@ public class Wave<B> {
         } else
             collapsed = Objects.requireNonNull(collapseCandidates.weightedChoose(getRandom(x, y, z)),
                     "weightedChoose() returned null");
-        final Sample<B> newSample = new Sample<>(); // a sample with a size of 1
+        final Sample<B> newSample = new Sample<>(true); // a sample with a size of 1
         newSample.add(collapsed);
         wave.set(newSample, x, y, z, useModuloCoords);
         lastChangedEntropies.addLast(new Coords(x, y, z));
@@ -240,21 +255,27 @@ public class Wave<B> {
         for (Map.Entry<Face, Optional<Piece.Locked<B>>> faceEntry : collapsed.entrySet()) {
             final Face face = faceEntry.getKey();
             if (!useModuloCoords && !currentGenerationBounds.contains(face.addTo(x, y, z))) continue;
-            final Sample<B> sampleAtThatFace = wave.get(x + face.getModX(), y + face.getModY(), z + face.getModZ(), useModuloCoords);
             final Optional<Piece.Locked<B>> expectedPiece = faceEntry.getValue();
-            if (expectedPiece.isPresent()) {
-                if (sampleAtThatFace == null) {
-                    hasImpossibleStates = true;
-                    throw new GenerationFailedException("Encountered an impossible state at " + x + " " + y + " " + z);
-                } else if (sampleAtThatFace.retainAllWithCenterPiece(expectedPiece.get())) {
-                    if (sampleAtThatFace.size() == 1) {
-                        pieceCollapsed(x + face.getModX(), y + face.getModY(), z + face.getModZ(), sampleAtThatFace.peek());
-                    } else if (sampleAtThatFace.isEmpty()) {
-                        // do not throw an exception if the problem is outside the current bounds, and we don't use modulo coords
-                        hasImpossibleStates = true;
-                        throw new GenerationFailedException("Encountered an impossible state at " + x + " " + y + " " + z);
-                    }
-                }
+            if (expectedPiece.isEmpty()) continue;
+            final int neighborX = x + face.getModX(), neighborY = y + face.getModY(), neighborZ = z + face.getModZ();
+            final Sample<B> readOnlySample = useModuloCoords
+                    ? wave.getWithoutFillModuloCoords(neighborX, neighborY, neighborZ)
+                    : wave.getWithoutFill(neighborX, neighborY, neighborZ);
+            if (readOnlySample == null) {
+                hasImpossibleStates = true;
+                throw new GenerationFailedException("Encountered an impossible state at " + x + " " + y + " " + z);
+            }
+            // only copy a shared node if it is going to change
+            if (readOnlySample.hasOnlyCenterPiece(expectedPiece.get())) continue;
+            final Sample<B> sampleAtThatFace = Objects.requireNonNull(getForWrite(neighborX, neighborY, neighborZ,
+                    useModuloCoords));
+            sampleAtThatFace.retainAllWithCenterPiece(expectedPiece.get());
+            if (sampleAtThatFace.size() == 1) {
+                pieceCollapsed(neighborX, neighborY, neighborZ, sampleAtThatFace.peek());
+            } else if (sampleAtThatFace.isEmpty()) {
+                // do not throw an exception if the problem is outside the current bounds, and we don't use modulo coords
+                hasImpossibleStates = true;
+                throw new GenerationFailedException("Encountered an impossible state at " + x + " " + y + " " + z);
             }
         }
         pieceCollapsedCallListeners(x, y, z, collapsed);
@@ -264,8 +285,8 @@ public class Wave<B> {
      * This doesn't modify the wave, it just adds propagation tasks to {@link #propagationTasks}.
      */
     private void propagateCollapseLaterFrom(int x, int y, int z) {
-        for (Face cartesianFace : Face.getCartesianFaces()) {
-            final Coords newCoords = cartesianFace.addTo(x, y, z);
+        for (Face face : neighborFaces) {
+            final Coords newCoords = face.addTo(x, y, z);
             if (! useModuloCoords && ! currentGenerationBounds.contains(newCoords)) continue;
             propagationTasks.add(newCoords);
         }
@@ -273,13 +294,15 @@ public class Wave<B> {
 
     private void propagateCollapseTo(int x, int y, int z) throws GenerationFailedException {
         if (!useModuloCoords && !currentGenerationBounds.contains(x, y, z)) return;
-        final Sample<B> present = wave.getWithoutFill(x, y, z);
+        Sample<B> present = wave.getWithoutFill(x, y, z);
         if (present == null) return;
         final int sizeBefore = present.size();
 
         if (present.size() == 1) return;
-        present.retainAll(getCollapseCandidatesAt(x, y, z));
-        if (present.size() == sizeBefore) return; // nothing changed, no need to propagate
+        final Sample<B> candidates = getCollapseCandidatesAt(x, y, z);
+        if (candidates.size() == sizeBefore) return; // nothing changed, no need to propagate
+        present = Objects.requireNonNull(getForWrite(x, y, z, false));
+        present.retainAll(candidates);
         if (present.isEmpty()) {
             hasImpossibleStates = true;
             throw new GenerationFailedException("Encountered an impossible state at " + x + " " + y + " " + z);
@@ -287,11 +310,20 @@ public class Wave<B> {
             pieceCollapsed(x, y, z, present.peek());
         }
         entropyChanged(x, y, z);
-        for (Face cartesianFace : Face.getCartesianFaces()) {
-            propagationTasks.add(new Coords(x + cartesianFace.getModX(), y + cartesianFace.getModY(), z + cartesianFace.getModZ()));
+        for (Face face : neighborFaces) {
+            propagationTasks.add(face.addTo(x, y, z));
         }
     }
 
+    /**
+     * @return the node at these coordinates, that can be modified in place. It is replaced by an indexed copy if it is
+     * shared.
+     * @see CopyOnWriteVirtualSpace#getForWrite(int, int, int, boolean, UnaryOperator)
+     */
+    private @Nullable Sample<B> getForWrite(int x, int y, int z, boolean useModuloCoords) {
+        return wave.getForWrite(x, y, z, useModuloCoords, toCopy -> new Sample<>(toCopy, true));
+    }
+
     private void entropyChanged(int x, int y, int z) {
         final Coords coords = new Coords(x, y, z);
         lastChangedEntropies.remove(coords);
@@ -368,18 +400,11 @@ public class Wave<B> {
     }
 
     private class WaveState {
-        private final VirtualSpace<Sample<B>> wave = new VirtualSpace<>(Wave.this.wave);
+        private final CopyOnWriteVirtualSpace<Sample<B>> wave = Wave.this.wave.copy(); // shares all the nodes
         private final Set<Coords> propagationTasks = new HashSet<>(Wave.this.propagationTasks);
         private final Deque<Coords> lastChangedEntropies = new ArrayDeque<>(Wave.this.lastChangedEntropies);
         private final ObjectWithCoordinates<PieceNeighbors.Locked<B>> lastManuallyCollapsedPiece = Wave.this.lastManuallyCollapsedPiece;
 
-        private WaveState() {
-            // deep copy
-            for (ObjectWithCoordinates<Sample<B>> node : Wave.this.wave) {
-                wave.set(new Sample<>(node.object()), node.coords().x(), node.coords().y(), node.coords().z());
-            }
-        }
-
         private void restore() {
             Wave.this.wave = wave;
             Wave.this.propagationTasks = propagationTasks;
@@ -414,7 +439,8 @@ public class Wave<B> {
             final ObjectWithCoordinates<PieceNeighbors.Locked<B>> problematicChange = lastManuallyCollapsedPiece;
             lastStates.getLast().restore();
             lastStates.removeLast();
-            final Sample<B> presentSample = wave.get(problematicChange.coords());
+            final Sample<B> presentSample = getForWrite(problematicChange.x(), problematicChange.y(),
+                    problematicChange.z(), false);
             //noinspection ConstantConditions
             presentSample.remove(problematicChange.object());
             if (presentSample.isEmpty()) {
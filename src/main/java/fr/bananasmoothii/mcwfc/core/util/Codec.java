@@ -0,0 +1,19 @@
+package fr.bananasmoothii.mcwfc.core.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Writes and reads one element to and from a binary stream. This is what is used to store blocks (or anything else)
+ * in files, for example in a {@link Palette}.
+ * @param <T> the type of elements, in vanilla minecraft, this can be {@code BlockData}
+ */
+public interface Codec<T> {
+
+    void write(@NotNull T element, @NotNull DataOutput out) throws IOException;
+
+    @NotNull T read(@NotNull DataInput in) throws IOException;
+}
@@ -244,6 +244,15 @@ public enum Face {
         return CARTESIAN_FACES;
     }
 
+    private static final List<Face> ALL_FACES = List.of(values());
+
+    /**
+     * @return the 26 faces: the {@link #isCartesian() cartesian} ones, the edges and the corners
+     */
+    public static List<Face> getAllFaces() {
+        return ALL_FACES;
+    }
+
     public @NotNull Face getOppositeFace() {
         return getWithMods(-modX, -modY, -modZ);
     }
@@ -253,14 +262,15 @@ public enum Face {
     }
 
     /**
-     * @return a rotated version by <i>angle</i> degrees along the X axis
+     * @return a rotated version by <i>angle</i> degrees along the X axis, in the same direction as
+     * {@link Symmetry#rotationX(RotationAngle)}
      */
     @Contract(pure = true)
     public @NotNull Face rotateX(RotationAngle angle) {
         return switch (angle) {
-            case D90 -> getWithMods(modX, modZ, -modY);
+            case D90 -> getWithMods(modX, -modZ, modY);
             case D180 -> getWithMods(modX, -modY, -modZ);
-            case D270 -> getWithMods(modX, -modZ, modY);
+            case D270 -> getWithMods(modX, modZ, -modY);
         };
     }
 
@@ -283,9 +293,9 @@ public enum Face {
     @Contract(pure = true)
     public @NotNull Face rotateZ(RotationAngle angle) {
         return switch (angle) {
-            case D90 -> getWithMods(modY, -modX, modZ);
+            case D90 -> getWithMods(-modY, modX, modZ);
             case D180 -> getWithMods(-modX, -modY, modZ);
-            case D270 -> getWithMods(-modY, modX, modZ);
+            case D270 -> getWithMods(modY, -modX, modZ);
         };
     }
 
@@ -0,0 +1,81 @@
+package fr.bananasmoothii.mcwfc.core.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Random;
+
+/**
+ * A {@link WeightedSet} where {@link #weightedChoose(Random)} is in O(log n) instead of O(n). The weights are also
+ * stored by slot of the {@link WeightedSet} in a Fenwick tree (binary indexed tree), so adding, removing and changing
+ * the weight of an element are in O(log n) too, without boxing anything. This is useful when elements are often chosen
+ * and their weights often change.
+ * <p>
+ * Weights can't be negative.
+ */
+public class FenwickWeightedSet<E> extends WeightedSet<E> {
+
+    /**
+     * the Fenwick tree over the slots, starting at 1: tree[i] is the sum of the weights of the slots from
+     * {@code i - (i & -i)} to {@code i - 1}
+     */
+    private int[] tree;
+
+    public FenwickWeightedSet() {
+        tree = new int[slotCount() + 1];
+    }
+
+    @SuppressWarnings("CopyConstructorMissesField")
+    public FenwickWeightedSet(@NotNull WeightedSet<E> other) {
+        // not using super(other) as the tree wouldn't be initialized when adding
+        tree = new int[slotCount() + 1];
+        addAll(other);
+    }
+
+    /**
+     * Same as {@link WeightedSet#weightedChoose(Random)}, but in O(log n)
+     */
+    @Override
+    public E weightedChoose(@NotNull Random random) {
+        if (isEmpty()) throw new IllegalArgumentException("cannot choose anything from an empty WeightedSet");
+        if (getTotalWeight() <= 0) throw new IllegalStateException("every weight is 0");
+        // finds the first slot where the sum of the weights up to that slot is more than target
+        int remaining = random.nextInt(getTotalWeight()), position = 0;
+        for (int step = Integer.highestOneBit(slotCount()); step != 0; step >>= 1) {
+            final int next = position + step;
+            if (next <= slotCount() && tree[next] <= remaining) {
+                position = next;
+                remaining -= tree[next];
+            }
+        }
+        return keyAt(position);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the weight is negative, before anything is modified
+     */
+    @Override
+    protected void checkWeight(E e, int weight) {
+        if (weight < 0) throw new IllegalArgumentException("weights can't be negative in a FenwickWeightedSet");
+    }
+
+    @Override
+    protected void slotWeightChanged(int slot, int oldWeight, int newWeight) {
+        for (int i = slot + 1; i < tree.length; i += i & -i) {
+            tree[i] += newWeight - oldWeight;
+        }
+    }
+
+    /**
+     * Makes a new tree for the new slots, in O(n)
+     */
+    @Override
+    protected void slotsMoved() {
+        final int[] tree = new int[slotCount() + 1];
+        for (int i = 1; i < tree.length; i++) {
+            tree[i] += weightAt(i - 1);
+            final int parent = i + (i & -i);
+            if (parent < tree.length) tree[parent] += tree[i];
+        }
+        this.tree = tree;
+    }
+}
@@ -0,0 +1,115 @@
+package fr.bananasmoothii.mcwfc.core.util;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * A pool keeping one canonical instance for each group of equal objects, like {@link String#intern()}. Looking for an
+ * instance is O(1) as they are stored by hash code, and it is safe to use it from several threads at the same time.
+ * <p>
+ * Instances are only weakly referenced: once nothing else uses an instance, it can be garbage collected, and it is
+ * removed from the pool.
+ * @param <T> the type of the canonical instances
+ */
+public class Interner<T> {
+
+    /**
+     * Most of the time, there is only one instance per hash code, this is why buckets are arrays.
+     */
+    private final ConcurrentHashMap<Integer, Entry<T>[]> buckets = new ConcurrentHashMap<>();
+    private final ReferenceQueue<T> collected = new ReferenceQueue<>();
+
+    private static final class Entry<T> extends WeakReference<T> {
+        private final int hash;
+
+        private Entry(T referent, int hash, ReferenceQueue<? super T> queue) {
+            super(referent, queue);
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * @param key an object that is {@link Object#equals(Object) equal} to the canonical instance you want (it may be
+     *            the canonical instance itself)
+     * @param hash the hash code of key, it must be the same as the hash code of the canonical instance
+     * @param factory creates the canonical instance from the key if there is no instance equal to key yet
+     * @return the canonical instance equal to key
+     */
+    public <K> @NotNull T intern(@NotNull K key, int hash, @NotNull Function<? super K, ? extends T> factory) {
+        expungeCollectedEntries();
+        final T found = find(buckets.get(hash), key);
+        if (found != null) return found;
+        @SuppressWarnings("unchecked")
+        final T[] result = (T[]) new Object[1];
+        buckets.compute(hash, (h, bucket) -> {
+            final T existing = find(bucket, key);
+            if (existing != null) {
+                result[0] = existing;
+                return bucket;
+            }
+            final T created = factory.apply(key);
+            result[0] = created;
+            final Entry<T> entry = new Entry<>(created, hash, collected);
+            if (bucket == null) {
+                @SuppressWarnings({"unchecked", "rawtypes"})
+                final Entry<T>[] newBucket = new Entry[] {entry};
+                return newBucket;
+            }
+            final Entry<T>[] newBucket = Arrays.copyOf(bucket, bucket.length + 1);
+            newBucket[bucket.length] = entry;
+            return newBucket;
+        });
+        return result[0];
+    }
+
+    private static <T> @Nullable T find(Entry<T> @Nullable [] bucket, @NotNull Object key) {
+        if (bucket == null) return null;
+        for (Entry<T> entry : bucket) {
+            final T instance = entry.get();
+            if (instance != null && key.equals(instance)) return instance;
+        }
+        return null;
+    }
+
+    private void expungeCollectedEntries() {
+        Entry<?> entry;
+        while ((entry = (Entry<?>) collected.poll()) != null) {
+            final Entry<?> collectedEntry = entry;
+            buckets.computeIfPresent(entry.hash, (h, bucket) -> {
+                int kept = 0;
+                for (Entry<T> e : bucket) {
+                    if (e != collectedEntry) kept++;
+                }
+                if (kept == 0) return null;
+                if (kept == bucket.length) return bucket;
+                @SuppressWarnings({"unchecked", "rawtypes"})
+                final Entry<T>[] newBucket = new Entry[kept];
+                int i = 0;
+                for (Entry<T> e : bucket) {
+                    if (e != collectedEntry) newBucket[i++] = e;
+                }
+                return newBucket;
+            });
+        }
+    }
+
+    /**
+     * @return the number of instances in this pool that are not garbage collected yet
+     */
+    public int size() {
+        expungeCollectedEntries();
+        int size = 0;
+        for (Entry<T>[] bucket : buckets.values()) {
+            for (Entry<T> entry : bucket) {
+                if (entry.get() != null) size++;
+            }
+        }
+        return size;
+    }
+}
@@ -0,0 +1,75 @@
+package fr.bananasmoothii.mcwfc.core.util;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * Gives a dense {@code int} id to each distinct element, in the order they are first seen. The first id is 0, the
+ * second is 1, etc. Ids never change once they are given, and elements can't be removed.
+ * @param <T> the type of elements, for example blocks
+ */
+public class Palette<T> implements Iterable<T> {
+
+    private final Map<T, Integer> ids = new HashMap<>();
+    private final List<T> elements = new ArrayList<>();
+
+    public Palette() {
+    }
+
+    /**
+     * @return the id of that element, or a new id if it was not in this palette yet
+     */
+    public int getOrCreateId(@NotNull T element) {
+        Integer id = ids.get(element);
+        if (id != null) return id;
+        id = elements.size();
+        elements.add(Objects.requireNonNull(element, "a palette cannot contain null"));
+        ids.put(element, id);
+        return id;
+    }
+
+    /**
+     * @return the id of that element, or -1 if it is not in this palette
+     */
+    @Contract(pure = true)
+    public int getId(@Nullable Object element) {
+        //noinspection SuspiciousMethodCalls
+        Integer id = ids.get(element);
+        return id != null ? id : -1;
+    }
+
+    /**
+     * @throws IndexOutOfBoundsException if there is no element with that id
+     */
+    @Contract(pure = true)
+    public @NotNull T get(int id) {
+        return elements.get(id);
+    }
+
+    @Contract(pure = true)
+    public boolean contains(@Nullable Object element) {
+        //noinspection SuspiciousMethodCalls
+        return ids.containsKey(element);
+    }
+
+    public int size() {
+        return elements.size();
+    }
+
+    /**
+     * Iterates in the order of ids
+     */
+    @NotNull
+    @Override
+    public Iterator<T> iterator() {
+        return Collections.unmodifiableList(elements).iterator();
+    }
+
+    @Override
+    public String toString() {
+        return elements.toString();
+    }
+}
@@ -0,0 +1,229 @@
+package fr.bananasmoothii.mcwfc.core.util;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * One of the 48 symmetries of a cube: the X, Y and Z axes are swapped in some way, and some of them are flipped. This
+ * contains every rotation and every rotation followed by a flip. Each symmetry keeps a table telling where each block
+ * of a piece goes, for each piece size it was used with, so transforming a piece is only one pass over its blocks.
+ * <p>
+ * The coordinate on axis {@code i} (0 for X, 1 for Y and 2 for Z) after the transformation is the coordinate on axis
+ * {@link #getAxis(int) getAxis(i)} before the transformation, flipped if {@link #isFlipped(int) isFlipped(i)}.
+ */
+public final class Symmetry {
+
+    private static final int[][] AXES_PERMUTATIONS = {{0, 1, 2}, {0, 2, 1}, {1, 0, 2}, {1, 2, 0}, {2, 0, 1}, {2, 1, 0}};
+    private static final Symmetry[] VALUES = new Symmetry[48];
+    static {
+        for (int i = 0; i < VALUES.length; i++) {
+            VALUES[i] = new Symmetry(i);
+        }
+    }
+    private static final List<Symmetry> ALL = List.of(VALUES);
+    private static final List<Symmetry> Y_AXIS = ALL.stream()
+            .filter(symmetry -> symmetry.getAxis(1) == 1 && !symmetry.isFlipped(1))
+            .toList();
+
+    public static final Symmetry IDENTITY = VALUES[0];
+    public static final Symmetry FLIP_X = of(0, 1, 2, true, false, false);
+    public static final Symmetry FLIP_Y = of(0, 1, 2, false, true, false);
+    public static final Symmetry FLIP_Z = of(0, 1, 2, false, false, true);
+
+    private final int index;
+    private final int[] axes;
+    private final int flips; // bit i is set if axis i is flipped
+    private final Face[] faces = new Face[Face.values().length];
+    private final ConcurrentHashMap<Long, int[]> permutations = new ConcurrentHashMap<>();
+
+    private Symmetry(int index) {
+        this.index = index;
+        axes = AXES_PERMUTATIONS[index >> 3];
+        flips = index & 0b111;
+        for (Face face : Face.values()) {
+            final int[] mods = {face.getModX(), face.getModY(), face.getModZ()};
+            faces[face.ordinal()] = Face.getWithMods(newCoordinate(mods, 0), newCoordinate(mods, 1),
+                    newCoordinate(mods, 2));
+        }
+    }
+
+    private int newCoordinate(int[] oldCoordinates, int axis) {
+        return isFlipped(axis) ? -oldCoordinates[axes[axis]] : oldCoordinates[axes[axis]];
+    }
+
+    /**
+     * @param xAxis the axis that becomes the X axis (0 for X, 1 for Y and 2 for Z)
+     * @param yAxis the axis that becomes the Y axis
+     * @param zAxis the axis that becomes the Z axis
+     * @throws IllegalArgumentException if the axes are not 0, 1 and 2 in any order
+     */
+    public static @NotNull Symmetry of(int xAxis, int yAxis, int zAxis, boolean flipX, boolean flipY, boolean flipZ) {
+        for (int i = 0; i < AXES_PERMUTATIONS.length; i++) {
+            final int[] axes = AXES_PERMUTATIONS[i];
+            if (axes[0] == xAxis && axes[1] == yAxis && axes[2] == zAxis)
+                return VALUES[i << 3 | (flipX ? 1 : 0) | (flipY ? 2 : 0) | (flipZ ? 4 : 0)];
+        }
+        throw new IllegalArgumentException("invalid axes: " + xAxis + ' ' + yAxis + ' ' + zAxis);
+    }
+
+    /**
+     * @return the 48 symmetries if allowUpsideDown is true, or else only the 8 symmetries that keep the Y axis
+     * unchanged (rotations along the Y axis and X and Z flips). The first one is always {@link #IDENTITY}.
+     */
+    public static @NotNull List<Symmetry> all(boolean allowUpsideDown) {
+        return allowUpsideDown ? ALL : Y_AXIS;
+    }
+
+    /**
+     * @return the symmetry with that {@link #getIndex() index}
+     */
+    public static @NotNull Symmetry get(int index) {
+        return VALUES[index];
+    }
+
+    /**
+     * @return the same rotation as {@code Piece#rotateX(RotationAngle)}
+     */
+    public static @NotNull Symmetry rotationX(@NotNull RotationAngle angle) {
+        return switch (angle) {
+            case D90 -> of(0, 2, 1, false, true, false);
+            case D180 -> of(0, 1, 2, false, true, true);
+            case D270 -> of(0, 2, 1, false, false, true);
+        };
+    }
+
+    /**
+     * @return the same rotation as {@code Piece#rotateY(RotationAngle)}
+     */
+    public static @NotNull Symmetry rotationY(@NotNull RotationAngle angle) {
+        return switch (angle) {
+            case D90 -> of(2, 1, 0, true, false, false);
+            case D180 -> of(0, 1, 2, true, false, true);
+            case D270 -> of(2, 1, 0, false, false, true);
+        };
+    }
+
+    /**
+     * @return the same rotation as {@code Piece#rotateZ(RotationAngle)}
+     */
+    public static @NotNull Symmetry rotationZ(@NotNull RotationAngle angle) {
+        return switch (angle) {
+            case D90 -> of(1, 0, 2, true, false, false);
+            case D180 -> of(0, 1, 2, true, true, false);
+            case D270 -> of(1, 0, 2, false, true, false);
+        };
+    }
+
+    /**
+     * @return a number between 0 and 47, {@link #IDENTITY} being 0
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * @return the axis that becomes that axis (0 for X, 1 for Y and 2 for Z)
+     */
+    public int getAxis(int axis) {
+        return axes[axis];
+    }
+
+    /**
+     * @return whether the coordinates on that axis are flipped (0 for X, 1 for Y and 2 for Z)
+     */
+    public boolean isFlipped(int axis) {
+        return (flips & 1 << axis) != 0;
+    }
+
+    /**
+     * @return the symmetry doing this one, then the other one
+     */
+    @Contract(pure = true)
+    public @NotNull Symmetry then(@NotNull Symmetry other) {
+        return of(axes[other.axes[0]], axes[other.axes[1]], axes[other.axes[2]],
+                other.isFlipped(0) ^ isFlipped(other.axes[0]),
+                other.isFlipped(1) ^ isFlipped(other.axes[1]),
+                other.isFlipped(2) ^ isFlipped(other.axes[2]));
+    }
+
+    /**
+     * @return a mask where the bit {@code s.then(this).getIndex()} is set for each symmetry {@code s} whose bit is set
+     * in that mask. If that mask is the set of symmetries leaving something unchanged, these are all the symmetries
+     * transforming it in the same way as this one.
+     */
+    @Contract(pure = true)
+    public long precededBy(long mask) {
+        long result = 0;
+        for (; mask != 0; mask &= mask - 1) {
+            result |= 1L << VALUES[Long.numberOfTrailingZeros(mask)].then(this).index;
+        }
+        return result;
+    }
+
+    /**
+     * @return the symmetry undoing this one
+     */
+    @Contract(pure = true)
+    public @NotNull Symmetry inverse() {
+        final int[] inverseAxes = new int[3];
+        final boolean[] inverseFlips = new boolean[3];
+        for (int i = 0; i < 3; i++) {
+            inverseAxes[axes[i]] = i;
+            inverseFlips[axes[i]] = isFlipped(i);
+        }
+        return of(inverseAxes[0], inverseAxes[1], inverseAxes[2], inverseFlips[0], inverseFlips[1], inverseFlips[2]);
+    }
+
+    /**
+     * @return where that face goes with this symmetry
+     */
+    @Contract(pure = true)
+    public @NotNull Face apply(@NotNull Face face) {
+        return faces[face.ordinal()];
+    }
+
+    /**
+     * Gives the table used to transform an array of blocks looping over X, then Y, then Z (so the index of x, y, z is
+     * {@code (x * ySize + y) * zSize + z}). The transformed array has a size of
+     * {@code sizes[getAxis(0)], sizes[getAxis(1)], sizes[getAxis(2)]}. The table is computed only once for each size,
+     * so it must not be modified.
+     * @return a table where {@code table[indexInTransformedArray] = indexInOriginalArray}
+     */
+    public int @NotNull [] permutation(int xSize, int ySize, int zSize) {
+        final long key = (long) xSize << 42 | (long) ySize << 21 | zSize;
+        return permutations.computeIfAbsent(key, k -> computePermutation(xSize, ySize, zSize));
+    }
+
+    private int @NotNull [] computePermutation(int xSize, int ySize, int zSize) {
+        final int[] sizes = {xSize, ySize, zSize};
+        final int[] newSizes = {sizes[axes[0]], sizes[axes[1]], sizes[axes[2]]};
+        final int[] table = new int[xSize * ySize * zSize];
+        final int[] oldCoordinates = new int[3];
+        int index = 0;
+        for (int x = 0; x < newSizes[0]; x++) {
+            for (int y = 0; y < newSizes[1]; y++) {
+                for (int z = 0; z < newSizes[2]; z++) {
+                    oldCoordinates[axes[0]] = isFlipped(0) ? newSizes[0] - 1 - x : x;
+                    oldCoordinates[axes[1]] = isFlipped(1) ? newSizes[1] - 1 - y : y;
+                    oldCoordinates[axes[2]] = isFlipped(2) ? newSizes[2] - 1 - z : z;
+                    table[index++] = (oldCoordinates[0] * ySize + oldCoordinates[1]) * zSize + oldCoordinates[2];
+                }
+            }
+        }
+        return table;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("Symmetry[");
+        for (int i = 0; i < 3; i++) {
+            if (i != 0) sb.append(", ");
+            if (isFlipped(i)) sb.append('-');
+            sb.append((char) ('X' + axes[i]));
+        }
+        return sb.append(']').toString();
+    }
+}
@@ -2,21 +2,39 @@ package fr.bananasmoothii.mcwfc.core.util;
 
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
-import org.jetbrains.annotations.Nullable;
 
 import java.util.*;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.function.BiConsumer;
-import java.util.function.Consumer;
 import java.util.function.Function;
 
 /**
  * A Set where each element have a weight. The default weight is 1.
+ * <p>
+ * The elements and their weights are stored in two arrays (open addressing with linear probing), so weights are never
+ * boxed. Removed elements leave a tombstone until the next resize. Use {@link #cursor()} to iterate over the elements
+ * and their weights without allocating anything for each element. Elements can't be {@code null}.
  */
 public class WeightedSet<E> extends AbstractSet<E> {
 
-    private final Map<E, Integer> map = new HashMap<>();
+    /**
+     * marks a slot whose element was removed, so that the elements after it can still be found
+     */
+    private static final Object TOMBSTONE = new Object();
+    private static final int DEFAULT_CAPACITY = 8;
+
+    /**
+     * {@code null} for free slots, {@link #TOMBSTONE} for removed elements
+     */
+    private Object[] keys = new Object[DEFAULT_CAPACITY];
+    private int[] weights = new int[DEFAULT_CAPACITY];
+    private int size = 0;
+    /**
+     * number of slots that are not free, counting tombstones
+     */
+    private int usedSlots = 0;
     private int totalWeight = 0;
+    private int modCount = 0;
 
     public WeightedSet() {
     }
@@ -29,24 +47,50 @@ public class WeightedSet<E> extends AbstractSet<E> {
 
     @Override
     public int size() {
-        return map.size();
+        return size;
     }
 
     @Override
     public boolean isEmpty() {
-        return map.isEmpty();
+        return size() == 0;
     }
 
-    @SuppressWarnings("SuspiciousMethodCalls")
     @Override
     public boolean contains(Object o) {
-        return map.containsKey(o);
+        return o != null && slotOf(o) != -1;
     }
 
     @NotNull
     @Override
     public Iterator<E> iterator() {
-        return map.keySet().iterator();
+        return new Iterator<>() {
+
+            private int slot = nextSlot(-1), lastSlot = -1, expectedModCount = modCount;
+
+            @Override
+            public boolean hasNext() {
+                return slot != -1;
+            }
+
+            @SuppressWarnings("unchecked")
+            @Override
+            public E next() {
+                if (modCount != expectedModCount) throw new ConcurrentModificationException();
+                if (slot == -1) throw new NoSuchElementException();
+                lastSlot = slot;
+                slot = nextSlot(slot);
+                return (E) keys[lastSlot];
+            }
+
+            @Override
+            public void remove() {
+                if (lastSlot == -1) throw new IllegalStateException();
+                if (modCount != expectedModCount) throw new ConcurrentModificationException();
+                removeSlot(lastSlot);
+                lastSlot = -1;
+                expectedModCount = modCount;
+            }
+        };
     }
 
     /*
@@ -90,18 +134,6 @@ public class WeightedSet<E> extends AbstractSet<E> {
 
      */
 
-    @NotNull
-    @Override
-    public Object[] toArray() {
-        return map.keySet().toArray();
-    }
-
-    @NotNull
-    @Override
-    public <T> T[] toArray(@NotNull T[] a) {
-        return map.keySet().toArray(a);
-    }
-
     @Override
     public boolean add(E e) {
         add(e, 1);
@@ -109,8 +141,36 @@ public class WeightedSet<E> extends AbstractSet<E> {
     }
 
     public void add(E e, int weight) {
-        map.merge(e, weight, Integer::sum);
+        Objects.requireNonNull(e, "WeightedSets can't contain null");
+        final int mask = keys.length - 1;
+        int free = -1;
+        boolean freeWasEmpty = false;
+        for (int slot = hash(e) & mask; ; slot = (slot + 1) & mask) {
+            final Object key = keys[slot];
+            if (key == null) {
+                if (free == -1) {
+                    free = slot;
+                    freeWasEmpty = true;
+                }
+                break;
+            }
+            if (key == TOMBSTONE) {
+                if (free == -1) free = slot;
+            } else if (key.equals(e)) {
+                setSlotWeight(slot, weights[slot] + weight);
+                return;
+            }
+        }
+        checkWeight(e, weight);
+        if (freeWasEmpty) usedSlots++;
+        keys[free] = e;
+        weights[free] = weight;
+        size++;
         totalWeight += weight;
+        modCount++;
+        if (usedSlots * 2 > keys.length) resize(size + 1); // slotsMoved() already sees the new element
+        else slotWeightChanged(free, 0, weight);
+        elementAdded(e, weight);
     }
 
     public boolean addAll(@NotNull Collection<? extends E> c) {
@@ -121,8 +181,10 @@ public class WeightedSet<E> extends AbstractSet<E> {
     }
 
     public void addAll(@NotNull WeightedSet<E> other) {
-        for (Map.Entry<E, Integer> entry : other.map.entrySet()) {
-            add(entry.getKey(), entry.getValue());
+        if (size + other.size() > keys.length / 2) resize(size + other.size());
+        final WeightedSet<E>.Cursor cursor = other.cursor();
+        while (cursor.advance()) {
+            add(cursor.key(), cursor.weight());
         }
     }
 
@@ -140,24 +202,44 @@ public class WeightedSet<E> extends AbstractSet<E> {
      */
 
     @Override
-    public boolean containsAll(@NotNull Collection<?> c) {
-        return map.keySet().containsAll(c);
+    public boolean remove(Object o) {
+        if (o == null) return false;
+        final int slot = slotOf(o);
+        if (slot == -1) return false;
+        removeSlot(slot);
+        return true;
     }
 
-    @Override
-    public boolean remove(Object o) {
-        final Integer removed = map.remove(o);
-        if (removed != null) {
-            totalWeight -= removed;
-            return true;
+    /**
+     * Removes that weight from the weight of e, and removes e if its weight becomes 0
+     * @return the new weight of e
+     * @throws IllegalArgumentException if the weight of e is less than that weight
+     */
+    public int removeWeight(E e, int weight) {
+        final int slot = e == null ? -1 : slotOf(e);
+        final int oldWeight = slot == -1 ? 0 : weights[slot];
+        if (oldWeight < weight)
+            throw new IllegalArgumentException("can't remove a weight of " + weight + " from " + e + " having a weight of "
+                    + oldWeight);
+        final int newWeight = oldWeight - weight;
+        if (newWeight == 0) {
+            if (slot != -1) removeSlot(slot);
+        } else if (slot == -1) {
+            add(e, newWeight);
+        } else {
+            setSlotWeight(slot, newWeight);
         }
-        return false;
+        return newWeight;
     }
 
     @Override
     public void clear() {
-        map.clear();
+        Arrays.fill(keys, null);
+        size = 0;
+        usedSlots = 0;
         totalWeight = 0;
+        modCount++;
+        slotsMoved();
     }
 
     public int getTotalWeight() {
@@ -166,14 +248,28 @@ public class WeightedSet<E> extends AbstractSet<E> {
 
     @Override
     public boolean equals(Object o) {
-        if (o instanceof WeightedSet<?> other)
-            return map.equals(other.map);
-        return false;
+        if (o == this) return true;
+        if (!(o instanceof WeightedSet<?> otherSet) || otherSet.size() != size()) return false;
+        @SuppressWarnings("unchecked")
+        final WeightedSet<Object> other = (WeightedSet<Object>) otherSet;
+        final Cursor cursor = cursor();
+        while (cursor.advance()) {
+            if (!other.contains(cursor.key()) || other.getWeight(cursor.key()) != cursor.weight()) return false;
+        }
+        return true;
     }
 
+    /**
+     * @return the same as the hash code of a {@link Map} of each element to its weight
+     */
     @Override
     public int hashCode() {
-        return map.hashCode();
+        int hashCode = 0;
+        final Cursor cursor = cursor();
+        while (cursor.advance()) {
+            hashCode += cursor.key().hashCode() ^ cursor.weight();
+        }
+        return hashCode;
     }
 
     public E weightedChoose() {
@@ -182,11 +278,12 @@ public class WeightedSet<E> extends AbstractSet<E> {
 
     public E weightedChoose(@NotNull Random random) {
         if (isEmpty()) throw new IllegalArgumentException("cannot choose anything from an empty WeightedSet");
-        final int targetWeight = random.nextInt(totalWeight) + 1;
+        final int targetWeight = random.nextInt(getTotalWeight()) + 1;
         int currentWeight = 0;
-        for (Map.Entry<E, Integer> entry : map.entrySet()) {
-            currentWeight += entry.getValue();
-            if (currentWeight >= targetWeight) return entry.getKey();
+        final Cursor cursor = cursor();
+        while (cursor.advance()) {
+            currentWeight += cursor.weight();
+            if (currentWeight >= targetWeight) return cursor.key();
         }
         throw new IllegalStateException("totalWeight is too big and not possible or there are some weights below or equal to 0");
     }
@@ -196,65 +293,85 @@ public class WeightedSet<E> extends AbstractSet<E> {
      * @throws NoSuchElementException if the iterator is empty
      */
     public E peek() {
-        return map.keySet().iterator().next();
+        final Cursor cursor = cursor();
+        if (!cursor.advance()) throw new NoSuchElementException();
+        return cursor.key();
     }
 
     /**
      * @return the weight for element e or 0 if it doesn't exist
      */
     public int getWeight(E e) {
-        @Nullable Integer weight = map.get(e);
-        if (weight == null) return 0;
-        return weight;
+        if (e == null) return 0;
+        final int slot = slotOf(e);
+        return slot == -1 ? 0 : weights[slot];
     }
 
+    /**
+     * Same as {@link #cursor()}, but each element and its weight are boxed in a new {@link Map.Entry}. Setting the
+     * value of an entry changes the weight of that element.
+     */
     public Iterator<Map.Entry<E, Integer>> elementsAndWeightsIterator() {
         return new Iterator<>() {
 
-            private final Iterator<Map.Entry<E, Integer>> iterator = map.entrySet().iterator();
+            private int slot = nextSlot(-1), lastSlot = -1, expectedModCount = modCount;
 
             @Override
             public boolean hasNext() {
-                return iterator.hasNext();
+                return slot != -1;
             }
 
+            @SuppressWarnings("unchecked")
             @Override
             public Map.Entry<E, Integer> next() {
-                final Map.Entry<E, Integer> next = iterator.next();
+                if (modCount != expectedModCount) throw new ConcurrentModificationException();
+                if (slot == -1) throw new NoSuchElementException();
+                final int entrySlot = lastSlot = slot;
+                final E key = (E) keys[entrySlot];
+                slot = nextSlot(slot);
                 return new Map.Entry<>() {
                     @Override
                     public E getKey() {
-                        return next.getKey();
+                        return key;
                     }
 
                     @Override
                     public Integer getValue() {
-                        return next.getValue();
+                        return weights[entrySlot];
                     }
 
 
                     @Override
                     public Integer setValue(Integer value) {
-                        return next.setValue(value);
+                        final int oldValue = weights[entrySlot];
+                        setSlotWeight(entrySlot, value);
+                        return oldValue;
                     }
                 };
             }
 
             @Override
             public void remove() {
-                iterator.remove();
-            }
-
-            @Override
-            public void forEachRemaining(Consumer<? super Map.Entry<E, Integer>> action) {
-                iterator.forEachRemaining(action);
+                if (lastSlot == -1) throw new IllegalStateException();
+                if (modCount != expectedModCount) throw new ConcurrentModificationException();
+                removeSlot(lastSlot);
+                lastSlot = -1;
+                expectedModCount = modCount;
             }
         };
     }
 
+    /**
+     * @return a new cursor placed before the first element
+     */
+    public @NotNull Cursor cursor() {
+        return new Cursor();
+    }
+
     public void forEach(BiConsumer<? super E, ? super Integer> action) {
-        for (Map.Entry<E, Integer> entry : map.entrySet()) {
-            action.accept(entry.getKey(), entry.getValue());
+        final Cursor cursor = cursor();
+        while (cursor.advance()) {
+            action.accept(cursor.key(), cursor.weight());
         }
     }
 
@@ -264,8 +381,9 @@ public class WeightedSet<E> extends AbstractSet<E> {
     @Contract(pure = true)
     public WeightedSet<E> mapElements(Function<? super E, ? extends E> mappingFunction) {
         final WeightedSet<E> result = new WeightedSet<>();
-        for (Map.Entry<E, Integer> entry : map.entrySet()) {
-            result.add(mappingFunction.apply(entry.getKey()), entry.getValue());
+        final Cursor cursor = cursor();
+        while (cursor.advance()) {
+            result.add(mappingFunction.apply(cursor.key()), cursor.weight());
         }
         return result;
     }
@@ -274,8 +392,9 @@ public class WeightedSet<E> extends AbstractSet<E> {
      * @return {@code true} if some weights are 0 or less
      */
     public boolean containsNonNormalWeights() {
-        for (int weight : map.values()) {
-            if (weight <= 0) return true;
+        final Cursor cursor = cursor();
+        while (cursor.advance()) {
+            if (cursor.weight() <= 0) return true;
         }
         return false;
     }
@@ -293,20 +412,158 @@ public class WeightedSet<E> extends AbstractSet<E> {
      * This calculates the {@link #gcd(int, int) GCD} of the weights and divides each weight by that GCD
      */
     public void simplify() {
-        Iterator<Integer> iterator = map.values().iterator();
-        if (! iterator.hasNext()) return;
-        int gcd = iterator.next();
-        while (iterator.hasNext()) {
-            int weight = iterator.next();
-            gcd = gcd(gcd, weight);
+        int slot = nextSlot(-1);
+        if (slot == -1) return;
+        int gcd = weights[slot];
+        for (slot = nextSlot(slot); slot != -1; slot = nextSlot(slot)) {
+            gcd = gcd(gcd, weights[slot]);
         }
         if (gcd == 1) return;
-        for (Map.Entry<E, Integer> entry : map.entrySet()) {
-            final int oldValue = entry.getValue();
-            final int newValue = oldValue / gcd;
-            entry.setValue(newValue);
-            totalWeight -= oldValue - newValue;
+        for (slot = nextSlot(-1); slot != -1; slot = nextSlot(slot)) {
+            setSlotWeight(slot, weights[slot] / gcd);
+        }
+    }
+
+    /**
+     * Called after a new element was added. This does nothing by default, subclasses may use it to keep other data
+     * up to date. {@link #clear()} doesn't call {@link #elementRemoved(Object, int)}, subclasses should override it
+     * too.
+     */
+    protected void elementAdded(E e, int weight) {
+    }
+
+    /**
+     * Called after an element was removed
+     * @see #elementAdded(Object, int)
+     */
+    protected void elementRemoved(E e, int weight) {
+    }
+
+    /**
+     * Called after the weight of an element that was already there changed
+     * @see #elementAdded(Object, int)
+     */
+    protected void weightChanged(E e, int oldWeight, int newWeight) {
+    }
+
+    /**
+     * Called before an element is added with that weight or before its weight becomes that weight, so nothing is
+     * modified yet. This does nothing by default, subclasses may throw an exception to refuse that weight.
+     */
+    protected void checkWeight(E e, int weight) {
+    }
+
+    /**
+     * Called after the weight in that slot changed, a slot without element having a weight of 0. Subclasses may use it
+     * to keep data by slot (see {@link #slotCount()}), without looking for the element. This is not called when
+     * {@link #slotsMoved()} is called instead.
+     */
+    protected void slotWeightChanged(int slot, int oldWeight, int newWeight) {
+    }
+
+    /**
+     * Called after every element changed slot, after a resize or {@link #clear()}
+     * @see #slotWeightChanged(int, int, int)
+     */
+    protected void slotsMoved() {
+    }
+
+    /**
+     * @return the number of slots, they are numbered from 0
+     */
+    protected int slotCount() {
+        return keys.length;
+    }
+
+    /**
+     * @return the element in that slot, or {@code null} if there is none
+     */
+    @SuppressWarnings("unchecked")
+    protected E keyAt(int slot) {
+        final Object key = keys[slot];
+        return key == TOMBSTONE ? null : (E) key;
+    }
+
+    /**
+     * @return the weight in that slot, or 0 if there is no element in it
+     */
+    protected int weightAt(int slot) {
+        final Object key = keys[slot];
+        return key == null || key == TOMBSTONE ? 0 : weights[slot];
+    }
+
+    private static int hash(@NotNull Object o) {
+        final int h = o.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return the slot of o, or -1 if it is not there
+     */
+    private int slotOf(@NotNull Object o) {
+        final int mask = keys.length - 1;
+        for (int slot = hash(o) & mask; ; slot = (slot + 1) & mask) {
+            final Object key = keys[slot];
+            if (key == null) return -1;
+            if (key != TOMBSTONE && key.equals(o)) return slot;
+        }
+    }
+
+    /**
+     * @return the first slot after that one containing an element, or -1 if there is none
+     */
+    private int nextSlot(int slot) {
+        for (slot++; slot < keys.length; slot++) {
+            final Object key = keys[slot];
+            if (key != null && key != TOMBSTONE) return slot;
+        }
+        return -1;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void removeSlot(int slot) {
+        final E removed = (E) keys[slot];
+        keys[slot] = TOMBSTONE;
+        totalWeight -= weights[slot];
+        size--;
+        modCount++;
+        slotWeightChanged(slot, weights[slot], 0);
+        elementRemoved(removed, weights[slot]);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void setSlotWeight(int slot, int weight) {
+        final int oldWeight = weights[slot];
+        if (oldWeight == weight) return;
+        checkWeight((E) keys[slot], weight);
+        weights[slot] = weight;
+        totalWeight += weight - oldWeight;
+        slotWeightChanged(slot, oldWeight, weight);
+        weightChanged((E) keys[slot], oldWeight, weight);
+    }
+
+    /**
+     * Moves every element to new arrays big enough for that many elements, which also removes the tombstones
+     */
+    private void resize(int expectedSize) {
+        int capacity = DEFAULT_CAPACITY;
+        while (capacity < expectedSize * 2) capacity <<= 1;
+        final Object[] oldKeys = keys;
+        final int[] oldWeights = weights;
+        keys = new Object[capacity];
+        weights = new int[capacity];
+        final int mask = capacity - 1;
+        for (int oldSlot = 0; oldSlot < oldKeys.length; oldSlot++) {
+            final Object key = oldKeys[oldSlot];
+            if (key == null || key == TOMBSTONE) continue;
+            int slot = hash(key) & mask;
+            while (keys[slot] != null) slot = (slot + 1) & mask;
+            keys[slot] = key;
+            weights[slot] = oldWeights[oldSlot];
         }
+        usedSlots = size;
+        modCount++;
+        slotsMoved();
     }
 
     /**
@@ -325,8 +582,85 @@ public class WeightedSet<E> extends AbstractSet<E> {
         }
     }
 
+    /**
+     * @return the same as the {@link Map#toString()} of a map of each element to its weight
+     */
     @Override
     public String toString() {
-        return map.toString();
+        final StringJoiner joiner = new StringJoiner(", ", "{", "}");
+        final Cursor cursor = cursor();
+        while (cursor.advance()) {
+            joiner.add(cursor.key() + "=" + cursor.weight());
+        }
+        return joiner.toString();
+    }
+
+    /**
+     * Iterates over the elements and their weights without allocating anything. Call {@link #advance()} before
+     * reading the first element:
+     * <pre>{@code
+     * final WeightedSet<E>.Cursor cursor = set.cursor();
+     * while (cursor.advance()) {
+     *     use(cursor.key(), cursor.weight());
+     * }
+     * }</pre>
+     * The set must not be modified while a cursor is used, except with {@link #setWeight(int)}.
+     * <p>
+     * Subclasses storing their elements differently can override every method of the cursor, the methods of
+     * {@link WeightedSet} that don't modify it only use {@link #cursor()}, {@link #size()}, {@link #contains(Object)},
+     * {@link #getWeight(Object)} and {@link #getTotalWeight()}.
+     */
+    public class Cursor {
+
+        private int slot = -1;
+        private final int expectedModCount = modCount;
+
+        protected Cursor() {
+        }
+
+        /**
+         * Moves to the next element
+         * @return false if there is no next element
+         */
+        public boolean advance() {
+            if (modCount != expectedModCount) throw new ConcurrentModificationException();
+            if (slot == -2) return false;
+            slot = nextSlot(slot);
+            if (slot == -1) {
+                slot = -2;
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * @throws IllegalStateException if the cursor is not on an element
+         */
+        @SuppressWarnings("unchecked")
+        public E key() {
+            checkSlot();
+            return (E) keys[slot];
+        }
+
+        /**
+         * @throws IllegalStateException if the cursor is not on an element
+         */
+        public int weight() {
+            checkSlot();
+            return weights[slot];
+        }
+
+        /**
+         * Changes the weight of the current element
+         * @throws IllegalStateException if the cursor is not on an element
+         */
+        public void setWeight(int weight) {
+            checkSlot();
+            setSlotWeight(slot, weight);
+        }
+
+        private void checkSlot() {
+            if (slot < 0) throw new IllegalStateException("the cursor is not on an element");
+        }
     }
 }
@@ -1,5 +1,12 @@
 package fr.bananasmoothii.mcwfc;
 
+import fr.bananasmoothii.mcwfc.core.util.Codec;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 /**
  * Some easy blocks for {@link fr.bananasmoothii.mcwfc.core.Piece}
  */
@@ -9,6 +16,25 @@ public class BImpl {
     public static final BImpl STONE = new BImpl(Material.STONE);
     public static final BImpl LEAVES = new BImpl(Material.OAK_LEAVES);
 
+    /**
+     * Writes the material, and reads back {@link #AIR}, {@link #STONE} or {@link #LEAVES}
+     */
+    public static final Codec<BImpl> CODEC = new Codec<>() {
+        @Override
+        public void write(@NotNull BImpl element, @NotNull DataOutput out) throws IOException {
+            out.writeByte(element.material.ordinal());
+        }
+
+        @Override
+        public @NotNull BImpl read(@NotNull DataInput in) throws IOException {
+            return switch (Material.values()[in.readByte()]) {
+                case AIR -> AIR;
+                case STONE -> STONE;
+                case OAK_LEAVES -> LEAVES;
+            };
+        }
+    };
+
     private final Material material;
 
     public BImpl(Material material) {
@@ -2,7 +2,11 @@ package fr.bananasmoothii.mcwfc;
 
 import fr.bananasmoothii.mcwfc.core.*;
 import fr.bananasmoothii.mcwfc.core.util.Bounds;
+import fr.bananasmoothii.mcwfc.core.util.Coords;
 import fr.bananasmoothii.mcwfc.core.util.Face;
+import fr.bananasmoothii.mcwfc.core.util.FenwickWeightedSet;
+import fr.bananasmoothii.mcwfc.core.util.Interner;
+import fr.bananasmoothii.mcwfc.core.util.Symmetry;
 import fr.bananasmoothii.mcwfc.core.util.WeightedSet;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
@@ -12,11 +16,23 @@ import org.junit.jupiter.api.Order;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestMethodOrder;
 
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
 import static fr.bananasmoothii.mcwfc.BImpl.*;
 import static fr.bananasmoothii.mcwfc.core.util.RotationAngle.*;
@@ -333,4 +349,991 @@ class LittleTests {
         hws.simplify();
         assertEquals(14, hws.getTotalWeight());
     }
-}
\ No newline at end of file
+
+    @Test
+    @Order(15)
+    void mappedVirtualSpace() throws IOException {
+        final Path file = Files.createTempFile("mcwfc", ".space");
+        try {
+            final Bounds bounds = new Bounds(-3, 60, 10, 4, 64, 20);
+            try (MappedVirtualSpace<BImpl> space = MappedVirtualSpace.create(file, bounds, CODEC)) {
+                space.setFill(AIR);
+                space.set(STONE, -3, 60, 10);
+                space.set(LEAVES, 4, 64, 20);
+                space.setModuloCoords(LEAVES, 5, 60, 10); // 5 -> -3
+                assertEquals(LEAVES, space.get(-3, 60, 10));
+                assertEquals(AIR, space.get(0, 62, 15));
+                assertNull(space.getWithoutFill(0, 62, 15));
+                assertNull(space.getWithoutFill(5, 62, 15));
+                assertThrows(IndexOutOfBoundsException.class, () -> space.set(STONE, 5, 62, 15));
+                space.flush(-3, -3);
+            }
+            try (MappedVirtualSpace<BImpl> space = MappedVirtualSpace.open(file, CODEC)) {
+                assertEquals(bounds, space.getBounds());
+                assertEquals(AIR, space.getFill());
+                assertEquals(LEAVES, space.get(-3, 60, 10));
+                assertEquals(LEAVES, space.get(4, 64, 20));
+                assertEquals(AIR, space.get(1, 61, 11));
+                assertEquals(space.copy(), space);
+
+                // BImpls are compared by identity, so each new one is a new element of the palette
+                while (space.getPalette().size() < Character.MAX_VALUE) {
+                    space.getPalette().getOrCreateId(new BImpl(BImpl.Material.STONE));
+                }
+                final BImpl oneTooMany = new BImpl(BImpl.Material.STONE);
+                assertThrows(IllegalStateException.class, () -> space.set(oneTooMany, 0, 62, 15));
+                assertThrows(IllegalStateException.class, () -> space.set(oneTooMany, 0, 62, 15));
+                assertEquals(Character.MAX_VALUE, space.getPalette().size());
+                space.set(STONE, 0, 62, 15); // already in the palette
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    @Order(16)
+    void virtualSpaceSerialization() throws IOException {
+        final MCVirtualSpace<BImpl> space = new MCVirtualSpace<>(new Bounds(-20, 0, -5, 20, 3, 30), AIR);
+        for (int x = -20; x <= 20; x++) {
+            space.set(x % 3 == 0 ? STONE : LEAVES, x, 1, x / 2);
+        }
+        space.set(STONE, 20, 3, 30);
+        for (boolean compress : new boolean[] {true, false}) {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            VirtualSpaceSerializer.write(space, new DataOutputStream(bytes), CODEC, compress);
+            final MCVirtualSpace<BImpl> read = VirtualSpaceSerializer.readMC(
+                    new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), CODEC);
+            assertEquals(space.getBounds(), read.getBounds());
+            assertEquals(AIR, read.getFill());
+            assertEquals(space, read);
+            assertEquals(STONE, read.get(20, 3, 30));
+        }
+
+        // a corrupted palette size is an IOException, without allocating the palette
+        final VirtualSpace<BImpl> noFill = new VirtualSpace<>(new Bounds(0, 0, 0, 1, 1, 1));
+        noFill.set(STONE, 0, 0, 0);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        VirtualSpaceSerializer.write(noFill, new DataOutputStream(bytes), CODEC, true);
+        assertEquals(1, ByteBuffer.wrap(bytes.toByteArray()).getInt(31)); // the palette size, after the header
+        for (int paletteSize : new int[] {-1, 9, Integer.MAX_VALUE}) {
+            final ByteBuffer corrupted = ByteBuffer.wrap(bytes.toByteArray()).putInt(31, paletteSize);
+            assertThrows(IOException.class, () -> VirtualSpaceSerializer.read(
+                    new DataInputStream(new ByteArrayInputStream(corrupted.array())), CODEC));
+        }
+    }
+
+    @Test
+    @Order(17)
+    void copyOnWriteVirtualSpace() {
+        final CopyOnWriteVirtualSpace<StringBuilder> space = new CopyOnWriteVirtualSpace<>(new Bounds(-10, 0, 0, 10, 20, 3));
+        space.set(new StringBuilder("a"), -10, 0, 0);
+        space.set(new StringBuilder("b"), 10, 20, 3);
+        final CopyOnWriteVirtualSpace<StringBuilder> copy = space.copy();
+        space.set(new StringBuilder("c"), -10, 0, 0);
+        Objects.requireNonNull(copy.getForWrite(10, 20, 3, StringBuilder::new)).append('!');
+        assertEquals("c", String.valueOf(space.get(-10, 0, 0)));
+        assertEquals("a", String.valueOf(copy.get(-10, 0, 0)));
+        assertEquals("b", String.valueOf(space.get(10, 20, 3)));
+        assertEquals("b!", String.valueOf(copy.get(10, 20, 3)));
+        assertSame(copy.get(10, 20, 3), copy.getForWrite(10, 20, 3, StringBuilder::new));
+        assertNull(copy.getForWrite(0, 0, 0, StringBuilder::new));
+        assertThrows(IndexOutOfBoundsException.class, () -> space.set(new StringBuilder(), 11, 0, 0));
+
+        // a shared element is copied by the first getForWrite of each position, and only there
+        final StringBuilder shared = new StringBuilder("s");
+        for (int x = -10; x <= 10; x++) {
+            space.setShared(shared, x, 5, 1);
+        }
+        Objects.requireNonNull(space.getForWrite(3, 5, 1, StringBuilder::new)).append('!');
+        assertEquals("s!", String.valueOf(space.get(3, 5, 1)));
+        assertSame(space.get(3, 5, 1), space.getForWrite(3, 5, 1, StringBuilder::new));
+        assertSame(shared, space.get(4, 5, 1));
+        assertEquals("s", shared.toString());
+    }
+
+    @Test
+    @Order(18)
+    void virtualSpaceDiff() {
+        final Bounds bounds = new Bounds(0, 0, 0, 20, 9, 20);
+        final CopyOnWriteVirtualSpace<BImpl> space = new CopyOnWriteVirtualSpace<>(bounds);
+        final VirtualSpace<BImpl> normalSpace = new VirtualSpace<>(bounds);
+        for (Coords coords : bounds) {
+            final BImpl block = (coords.x() + coords.y() + coords.z()) % 5 == 0 ? STONE : AIR;
+            space.set(block, coords.x(), coords.y(), coords.z());
+            normalSpace.set(block, coords.x(), coords.y(), coords.z());
+        }
+        assertEquals(space, normalSpace);
+        assertEquals(normalSpace, space);
+        assertEquals(space.contentHash(), normalSpace.contentHash());
+
+        final CopyOnWriteVirtualSpace<BImpl> copy = space.copy();
+        assertEquals(space, copy);
+        copy.set(LEAVES, 3, 4, 5);
+        copy.set(LEAVES, 19, 9, 20);
+        assertNotEquals(space, copy);
+        assertNotEquals(space.contentHash(), copy.contentHash());
+        assertEquals(List.of(new Coords(3, 4, 5), new Coords(19, 9, 20)), space.diff(copy));
+        assertEquals(List.of(new Coords(3, 4, 5), new Coords(19, 9, 20)), normalSpace.diff(copy));
+        assertEquals(List.of(new Bounds(0, 0, 0, 7, 7, 7), new Bounds(16, 8, 16, 20, 9, 20)),
+                normalSpace.diffSections(copy));
+
+        // "Aa" and "BB" have the same hashCode, so their sections have the same hash
+        final CopyOnWriteVirtualSpace<String> aa = new CopyOnWriteVirtualSpace<>(bounds);
+        final CopyOnWriteVirtualSpace<String> bb = new CopyOnWriteVirtualSpace<>(bounds);
+        aa.set("Aa", 1, 1, 1);
+        bb.set("BB", 1, 1, 1);
+        assertEquals(aa.contentHash(), bb.contentHash());
+        assertNotEquals(aa, bb);
+        assertEquals(List.of(new Coords(1, 1, 1)), aa.diff(bb));
+        assertEquals(List.of(new Bounds(0, 0, 0, 7, 7, 7)), aa.diffSections(bb));
+        final CopyOnWriteVirtualSpace<String> aaCopy = aa.copy();
+        aaCopy.set("Aa", 1, 1, 1);
+        assertEquals(aa, aaCopy);
+        assertEquals(List.of(), aa.diff(aaCopy));
+    }
+
+    @Test
+    @Order(19)
+    void selectAndPaste() {
+        final MCVirtualSpace<BImpl> space = new MCVirtualSpace<>(AIR);
+        for (int x = 0; x < 200; x++) {
+            space.set(x % 2 == 0 ? STONE : LEAVES, x, x % 7, -x);
+        }
+        final MCVirtualSpace<BImpl> selection = space.select(150, 10, -160, 100, -3, -100);
+        assertEquals(new Bounds(100, -3, -160, 150, 10, -100), selection.getBounds());
+        assertEquals(STONE, selection.get(120, 1, -120));
+        assertEquals(LEAVES, selection.get(101, 3, -101));
+        assertNull(selection.getWithoutFill(102, 3, -102));
+        assertEquals(space.select(100, -3, -160, 150, 10, -100), selection);
+
+        final VirtualSpace<BImpl> pasted = new VirtualSpace<>();
+        pasted.paste(selection, new Bounds(120, 0, -125, 125, 6, -120), -3, 0, 0);
+        assertEquals(new Bounds(-3, 0, 0, 2, 6, 5), pasted.getBounds());
+        assertEquals(STONE, pasted.get(-3, 1, 5));
+        assertEquals(LEAVES, pasted.get(2, 6, 0));
+        assertNull(pasted.get(0, 0, 0));
+
+        final CopyOnWriteVirtualSpace<BImpl> copyOnWrite = new CopyOnWriteVirtualSpace<>(selection.getBounds());
+        copyOnWrite.paste(selection);
+        assertEquals(selection.diff(copyOnWrite), List.of());
+    }
+
+    @Test
+    @Order(20)
+    void concurrentPieceInterning() throws InterruptedException {
+        final int threadCount = 4;
+        @SuppressWarnings("unchecked")
+        final Piece.Locked<BImpl>[][] results = new Piece.Locked[threadCount][];
+        final Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final int thread = t;
+            threads[t] = new Thread(() -> {
+                results[thread] = new Piece.Locked[50];
+                for (int i = 0; i < 50; i++) {
+                    final Piece<BImpl> piece = new Piece<>(2, AIR);
+                    piece.set(i % 2 == 0 ? STONE : LEAVES, i % 2, i / 2 % 2, i / 4 % 2);
+                    piece.set(STONE, 1, 1, 1);
+                    results[thread][i] = piece.lock();
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (int i = 0; i < 50; i++) {
+            for (int t = 1; t < threadCount; t++) {
+                assertSame(results[0][i], results[t][i]);
+            }
+        }
+        assertSame(results[0][0], Piece.Locked.of(results[0][0]));
+        assertSame(results[0][3], results[0][3].flipX().flipX());
+    }
+
+    @Test
+    @Order(21)
+    void pieceNeighborsPools() throws IOException {
+        final MCVirtualSpace<BImpl> space = new MCVirtualSpace<>(new Bounds(0, 0, 0, 3, 3, 3), AIR);
+        space.set(STONE, 0, 0, 0);
+        space.set(LEAVES, 1, 2, 3);
+        final Sample<BImpl> defaultSample = space.generatePieces(2, true, true);
+        final Interner<PieceNeighbors.Locked<?>> pool = new Interner<>();
+        final Sample<BImpl> scopedSample = space.generatePieces(2, true, true, pool);
+        assertEquals(defaultSample.size(), scopedSample.size());
+        assertEquals(defaultSample.getTotalWeight(), scopedSample.getTotalWeight());
+
+        for (PieceNeighbors.Locked<BImpl> neighbors : scopedSample) {
+            assertSame(pool, neighbors.getPool());
+            assertSame(neighbors, neighbors.rotateY(D90).rotateY(D270));
+            final PieceNeighbors.Locked<BImpl> inDefaultPool = neighbors.lock(PieceNeighbors.Locked.DEFAULT_POOL);
+            assertTrue(defaultSample.contains(inDefaultPool));
+            assertSame(neighbors, inDefaultPool.lock(pool));
+        }
+
+        // every way of generating a sample must keep the pool
+        final ForkJoinPool forkJoinPool = new ForkJoinPool(2);
+        try {
+            assertEquals(scopedSample, space.generatePiecesParallel(2, true, true, forkJoinPool, pool));
+        } finally {
+            forkJoinPool.shutdown();
+        }
+    }
+
+    @Test
+    @Order(22)
+    void pieceRegistry() {
+        final MCVirtualSpace<BImpl> space = new MCVirtualSpace<>(new Bounds(0, 0, 0, 3, 3, 3), AIR);
+        space.set(STONE, 0, 0, 0);
+        space.set(LEAVES, 1, 2, 3);
+        final Sample<BImpl> sample = space.generatePieces(2);
+        final PieceRegistry<BImpl> registry = new PieceRegistry<>(sample);
+        assertEquals(sample.size(), registry.neighborhoodCount());
+        int expectedId = 0;
+        for (PieceNeighbors.Locked<BImpl> neighborhood : sample) {
+            final int id = registry.getNeighborhoodId(neighborhood);
+            assertEquals(expectedId++, id);
+            assertSame(neighborhood, registry.getNeighborhood(id));
+            assertSame(neighborhood.getCenterPiece(), registry.getPiece(registry.getCenterPieceId(id)));
+            final int[] neighborIds = registry.getNeighborIds(id);
+            assertEquals(PieceRegistry.FACES, neighborIds.length);
+            for (Face face : Face.getCartesianFaces()) {
+                assertSame(neighborhood.get(face).orElseThrow(), registry.getPiece(neighborIds[face.ordinal()]));
+                assertEquals(neighborIds[face.ordinal()], registry.getNeighborId(id, face));
+            }
+        }
+        assertEquals(sample.getCenterPieces().size(), registry.pieceCount());
+        assertEquals(-1, registry.getPieceId(faultyPiece));
+        assertThrows(IndexOutOfBoundsException.class, () -> registry.getCenterPieceId(sample.size()));
+
+        final Sample<BImpl> allFaces = space.generatePieces(2, false, true, Face.getAllFaces());
+        final int neighborhoodCount = registry.neighborhoodCount();
+        assertThrows(IllegalArgumentException.class, () -> registry.register(allFaces.peek()));
+        assertEquals(neighborhoodCount, registry.neighborhoodCount());
+        assertThrows(IllegalArgumentException.class,
+                () -> CompiledRuleset.write(allFaces, OutputStream.nullOutputStream(), CODEC));
+    }
+
+    @Test
+    @Order(23)
+    void compactPieceNeighbors() {
+        final Piece<BImpl> center = new Piece<>(2, AIR);
+        center.set(STONE, 0, 0, 0);
+        final Piece.Locked<BImpl> centerLocked = center.lock();
+        final PieceNeighbors<BImpl> neighbors = new PieceNeighbors<>(centerLocked);
+        neighbors.put(Face.TOP, Optional.of(centerLocked));
+        neighbors.put(Face.BOTTOM, Optional.empty());
+        assertEquals(2, neighbors.size());
+        assertSame(centerLocked.asOptional(), neighbors.get(Face.TOP));
+        assertEquals(Optional.empty(), neighbors.get(Face.BOTTOM));
+        assertNull(neighbors.get(Face.NORTH));
+        assertNull(neighbors.get(Face.SOUTH_EAST_TOP));
+
+        final Map<Face, Optional<Piece.Locked<BImpl>>> hashMap = new HashMap<>(neighbors);
+        assertEquals(hashMap, neighbors);
+        assertEquals(31 * hashMap.hashCode() + centerLocked.hashCode(), neighbors.hashCode());
+        assertEquals(neighbors, new PieceNeighbors<>(hashMap, centerLocked));
+
+        neighbors.put(Face.SOUTH_EAST_TOP, Optional.of(centerLocked));
+        assertEquals(3, neighbors.size());
+        final PieceNeighbors<BImpl> rotated = neighbors.rotateY(D90);
+        assertEquals(Set.of(Face.TOP, Face.BOTTOM, Face.SOUTH_EAST_TOP.rotateY(D90)), rotated.keySet());
+        assertEquals(neighbors, rotated.rotateY(D270));
+        assertEquals(neighbors, neighbors.flipX().flipX());
+
+        neighbors.remove(Face.SOUTH_EAST_TOP);
+        neighbors.entrySet().removeIf(entry -> entry.getKey() == Face.BOTTOM);
+        assertEquals(Map.of(Face.TOP, Optional.of(centerLocked)), new HashMap<>(neighbors));
+        assertThrows(UnsupportedOperationException.class, () -> neighbors.lock().put(Face.NORTH, Optional.empty()));
+    }
+
+    @Test
+    @Order(24)
+    void symmetries() {
+        assertEquals(48, Symmetry.all(true).size());
+        assertEquals(8, Symmetry.all(false).size());
+
+        // a marker in the middle of each face of the piece must go to the face given by Symmetry.apply(Face)
+        for (Face face : Face.getCartesianFaces()) {
+            final Piece<BImpl> piece = new Piece<>(3, AIR);
+            piece.set(STONE, 1 + face.getModX(), 1 + face.getModY(), 1 + face.getModZ());
+            for (Symmetry symmetry : Symmetry.all(true)) {
+                final Face expected = symmetry.apply(face);
+                final Piece<BImpl> transformed = piece.transform(symmetry);
+                assertSame(STONE, transformed.get(1 + expected.getModX(), 1 + expected.getModY(), 1 + expected.getModZ()),
+                        symmetry + " " + face);
+            }
+        }
+
+        final Piece<BImpl> piece = new Piece<>(2, 3, 4, AIR);
+        piece.set(STONE, 0, 0, 0);
+        piece.set(LEAVES, 1, 2, 3);
+        piece.set(STONE, 0, 1, 3);
+        for (Symmetry first : Symmetry.all(true)) {
+            assertEquals(piece, piece.transform(first).transform(first.inverse()));
+            for (Symmetry second : Symmetry.all(true)) {
+                assertEquals(piece.transform(first).transform(second), piece.transform(first.then(second)));
+            }
+        }
+        assertEquals(piece.rotateY(D90), piece.transform(Symmetry.rotationY(D90)));
+        assertEquals(Face.EAST, Face.NORTH.rotateY(D90));
+        assertEquals(Symmetry.rotationX(D90).apply(Face.TOP), Face.TOP.rotateX(D90));
+        assertEquals(Symmetry.rotationZ(D270).apply(Face.EAST), Face.EAST.rotateZ(D270));
+
+        // only unique orientations are generated, but they must be the same as when transforming with everything
+        final Piece<BImpl> pillar = new Piece<>(3, AIR);
+        pillar.set(STONE, 1, 1, 1);
+        pillar.set(STONE, 1, 2, 1);
+        final Piece.Locked<BImpl> pillarLocked = pillar.lock();
+        assertEquals(8, Long.bitCount(pillarLocked.getStabilizerMask()));
+        for (Piece.Locked<BImpl> locked : List.of(pillarLocked, piece.lock(), new Piece<>(3, AIR).lock())) {
+            for (boolean allowUpsideDown : new boolean[]{true, false}) {
+                final Set<Piece.Locked<BImpl>> expected = new HashSet<>();
+                for (Symmetry symmetry : Symmetry.all(allowUpsideDown)) {
+                    expected.add(locked.transform(symmetry));
+                    assertTrue(locked.transform(symmetry).isTransformOf(locked, symmetry));
+                }
+                assertEquals(expected, locked.generateSiblingsLock(allowUpsideDown));
+            }
+        }
+        assertEquals(6, pillarLocked.generateSiblingsLock(true).size());
+        assertFalse(pillarLocked.isTransformOf(pillarLocked, Symmetry.FLIP_Y));
+
+        final PieceNeighbors<BImpl> neighbors = new PieceNeighbors<>(pillarLocked);
+        neighbors.put(Face.TOP, pillarLocked.asOptional());
+        neighbors.put(Face.NORTH, Optional.empty());
+        final PieceNeighbors.Locked<BImpl> neighborsLocked = neighbors.lock();
+        for (boolean allowUpsideDown : new boolean[]{true, false}) {
+            final Set<PieceNeighbors.Locked<BImpl>> expected = new HashSet<>();
+            for (Symmetry symmetry : Symmetry.all(allowUpsideDown)) {
+                expected.add(neighborsLocked.transform(symmetry));
+            }
+            assertEquals(expected, neighborsLocked.generateSiblingsLock(allowUpsideDown));
+        }
+        assertEquals(2, Long.bitCount(neighborsLocked.getStabilizerMask()));
+    }
+
+    @Test
+    @Order(25)
+    void canonicalSample() {
+        final MCVirtualSpace<BImpl> space = new MCVirtualSpace<>(new Bounds(0, 0, 0, 5, 3, 4), AIR);
+        space.set(STONE, 0, 0, 0);
+        space.set(STONE, 1, 0, 0);
+        space.set(LEAVES, 1, 2, 3);
+        space.set(LEAVES, 4, 1, 2);
+        for (boolean allowUpsideDown : new boolean[] {false, true}) {
+            final Sample<BImpl> sample = space.generatePieces(2, allowUpsideDown, true);
+            final CanonicalSample<BImpl> canonicalSample = space.generateCanonicalPieces(2, allowUpsideDown, true);
+            assertTrue(canonicalSample.size() < sample.size());
+            assertEquals(space.getBounds().xSize() * space.getBounds().ySize() * space.getBounds().zSize(),
+                    canonicalSample.getTotalWeight());
+            assertEquals(sample.size(), canonicalSample.expandedSize());
+            assertEquals(sample, canonicalSample.expand());
+            for (PieceNeighbors.Locked<BImpl> canonical : canonicalSample) {
+                assertSame(canonical, canonicalSample.canonicalize(canonical.rotateY(D90).flipX()));
+                assertNotEquals(0, canonicalSample.getSymmetryMask(canonical) & 1L);
+            }
+            // canonicalize doesn't add anything
+            final Piece<BImpl> leaves = new Piece<>(2, LEAVES);
+            final PieceNeighbors.Locked<BImpl> absent = new PieceNeighbors<>(leaves.lock()).lock();
+            final int size = canonicalSample.size();
+            assertSame(absent, canonicalSample.canonicalize(absent));
+            assertEquals(0, canonicalSample.getSymmetryMask(absent));
+            assertEquals(size, canonicalSample.size());
+        }
+
+        final Interner<PieceNeighbors.Locked<?>> pool = new Interner<>();
+        final CanonicalSample<BImpl> scopedSample = space.generateCanonicalPieces(2, true, true, pool);
+        for (PieceNeighbors.Locked<BImpl> canonical : scopedSample) {
+            assertSame(pool, canonical.getPool());
+        }
+        assertEquals(space.generatePieces(2, true, true, pool), scopedSample.expand());
+    }
+
+    @Test
+    @Order(26)
+    void pieceExtractor() {
+        final MCVirtualSpace<BImpl> space = randomSpace(new Bounds(-3, 2, 1, 4, 6, 3), 5);
+        for (int pieceSize = 1; pieceSize <= 4; pieceSize++) {
+            final PieceExtractor<BImpl> extractor = new PieceExtractor<>(space, pieceSize);
+            for (int x = -5; x <= 6; x++) {
+                for (int y = 0; y <= 8; y++) {
+                    for (int z = -1; z <= 5; z++) {
+                        assertSame(space.getPieceAt(x, y, z, pieceSize, true), extractor.getPieceAt(x, y, z));
+                        assertSame(space.getPieceAt(x, y, z, pieceSize, false), extractor.getPieceAt(x, y, z, false));
+                    }
+                }
+            }
+        }
+
+        // every piece has the same hash here, so they can only be told apart by their blocks
+        final PieceExtractor<BImpl> colliding = new PieceExtractor<>(space, 2) {
+            @Override
+            protected long @NotNull [] zobristValues(int paletteSize) {
+                return new long[paletteSize];
+            }
+        };
+        final Set<Piece.Locked<BImpl>> pieces = new HashSet<>();
+        for (Coords coords : space.getBounds()) {
+            assertEquals(colliding.getHashAt(0, 2, 1), colliding.getHashAt(coords.x(), coords.y(), coords.z()));
+            final Piece.Locked<BImpl> piece = colliding.getPieceAt(coords.x(), coords.y(), coords.z());
+            assertSame(space.getPieceAt(coords.x(), coords.y(), coords.z(), 2, true), piece);
+            pieces.add(piece);
+        }
+        assertTrue(pieces.size() > 1);
+    }
+
+    @Test
+    @Order(27)
+    void parallelGeneratePieces() {
+        final MCVirtualSpace<BImpl> space = randomSpace(new Bounds(0, 0, 0, 19, 4, 6), 8);
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (boolean allowUpsideDown : new boolean[] {false, true}) {
+                assertEquals(space.generatePieces(2, allowUpsideDown, false),
+                        space.generatePiecesParallel(2, allowUpsideDown, false, pool));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    @Order(28)
+    void streamingSampleExtractor() throws IOException {
+        final MCVirtualSpace<BImpl> space = randomSpace(new Bounds(-4, 0, 0, 9, 5, 4), 13);
+        final int[] layerReads = new int[1];
+        final BlockSource<BImpl> source = countingReads(BlockSource.of(space, AIR), layerReads);
+        for (int pieceSize = 1; pieceSize <= 3; pieceSize++) {
+            for (boolean useModuloCoordsTopAndBottom : new boolean[] {false, true}) {
+                layerReads[0] = 0;
+                final StreamingSampleExtractor<BImpl> extractor =
+                        new StreamingSampleExtractor<>(source, pieceSize, useModuloCoordsTopAndBottom);
+                assertEquals(space.generatePieces(pieceSize, false, useModuloCoordsTopAndBottom),
+                        extractor.generatePieces(false));
+                assertEquals(space.getBounds().xSize() + 3 * pieceSize - 1, layerReads[0]);
+            }
+        }
+
+        final Interner<PieceNeighbors.Locked<?>> pool = new Interner<>();
+        final Sample<BImpl> scopedSample = new StreamingSampleExtractor<>(source, 2, true).generatePieces(true, pool);
+        assertEquals(space.generatePieces(2, true, true, pool), scopedSample);
+        for (PieceNeighbors.Locked<BImpl> pieceNeighbors : scopedSample) {
+            assertSame(pool, pieceNeighbors.getPool());
+        }
+    }
+
+    @Test
+    @Order(29)
+    void sampleMaintainer() {
+        final MCVirtualSpace<BImpl> space = randomSpace(new Bounds(-3, 0, 2, 6, 5, 8), 17);
+        final Random random = new Random(17);
+        for (boolean useModuloCoordsTopAndBottom : new boolean[] {false, true}) {
+            final SampleMaintainer<BImpl> maintainer = new SampleMaintainer<>(space, 2, false, useModuloCoordsTopAndBottom);
+            assertEquals(space.generatePieces(2, false, useModuloCoordsTopAndBottom), maintainer.getSample());
+            final PieceRegistry<BImpl> registry = new PieceRegistry<>();
+            maintainer.setRegistry(registry);
+            for (int i = 0; i < 10; i++) {
+                final int x = space.xMin() + random.nextInt(space.xSize());
+                final int y = space.yMin() + random.nextInt(space.ySize());
+                final int z = space.zMin() + random.nextInt(space.zSize());
+                final Bounds changed = Bounds.fromTo(x, y, z, x + random.nextInt(3), y + random.nextInt(3), z);
+                boolean blocksChanged = false;
+                for (Coords coords : changed) {
+                    final BImpl block = random.nextBoolean() ? LEAVES : AIR;
+                    blocksChanged |= space.getModuloCoords(coords) != block;
+                    space.setModuloCoords(block, coords.x(), coords.y(), coords.z());
+                }
+                final Set<PieceNeighbors.Locked<BImpl>> modified = maintainer.update(changed);
+                final Sample<BImpl> expected = space.generatePieces(2, false, useModuloCoordsTopAndBottom);
+                assertEquals(expected, maintainer.getSample());
+                assertEquals(expected.getTotalWeight(), maintainer.getSample().getTotalWeight());
+                for (PieceNeighbors.Locked<BImpl> neighbors : expected) {
+                    assertNotEquals(-1, registry.getNeighborhoodId(neighbors));
+                }
+                if (blocksChanged) assertFalse(modified.isEmpty());
+            }
+        }
+    }
+
+    @Test
+    @Order(30)
+    void compiledRuleset() throws IOException {
+        final MCVirtualSpace<BImpl> space = randomSpace(new Bounds(0, 0, 0, 5, 4, 5), 23);
+        final Sample<BImpl> sample = space.generatePieces(2, false, false);
+        final Path file = Files.createTempFile("mcwfc", ".ruleset");
+        try {
+            try (OutputStream out = Files.newOutputStream(file)) {
+                CompiledRuleset.write(sample, out, CODEC);
+            }
+            final CompiledRuleset<BImpl> ruleset = CompiledRuleset.map(file, CODEC);
+            assertEquals(sample.size(), ruleset.patternCount());
+            assertEquals(sample.getTotalWeight(), ruleset.getTotalWeight());
+            assertEquals(2, ruleset.getPieceXSize());
+            assertEquals(sample, ruleset.toSample());
+            assertEquals(sample, CompiledRuleset.compile(sample, CODEC).toSample());
+            for (int pattern = 0; pattern < ruleset.patternCount(); pattern++) {
+                final PieceNeighbors.Locked<BImpl> neighbors = ruleset.getPattern(pattern);
+                assertEquals(sample.getWeight(neighbors), ruleset.getWeight(pattern));
+                for (Face face : Face.getCartesianFaces()) {
+                    final int neighbor = ruleset.getNeighborId(pattern, face);
+                    if (neighbor >= 0) assertTrue(ruleset.isAllowed(ruleset.getCenterPieceId(pattern), face, neighbor));
+                }
+            }
+            final Map<Piece.Locked<BImpl>, Integer> pieceIds = new HashMap<>();
+            for (int piece = 0; piece < ruleset.pieceCount(); piece++) {
+                pieceIds.put(ruleset.getPiece(piece), piece);
+            }
+            final Set<List<Integer>> allowed = new HashSet<>();
+            for (PieceNeighbors.Locked<BImpl> neighbors : sample) {
+                for (Face face : Face.getCartesianFaces()) {
+                    neighbors.get(face).ifPresent(neighbor -> allowed.add(List.of(
+                            pieceIds.get(neighbors.getCenterPiece()), face.ordinal(), pieceIds.get(neighbor))));
+                }
+            }
+            for (int piece = 0; piece < ruleset.pieceCount(); piece++) {
+                for (Face face : Face.getCartesianFaces()) {
+                    for (int neighbor = 0; neighbor < ruleset.pieceCount(); neighbor++) {
+                        assertEquals(allowed.contains(List.of(piece, face.ordinal(), neighbor)),
+                                ruleset.isAllowed(piece, face, neighbor));
+                    }
+                }
+            }
+            assertThrows(IllegalArgumentException.class, () -> ruleset.getNeighborId(0, Face.NORTH_EAST));
+
+            // the order of the given buffer doesn't matter, and a truncated palette is an IOException
+            final byte[] bytes = Files.readAllBytes(file);
+            assertEquals(sample, CompiledRuleset.of(ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN), CODEC)
+                    .toSample());
+            assertThrows(IOException.class, () -> CompiledRuleset.of(ByteBuffer.wrap(bytes, 0, 35).slice(), CODEC));
+            assertThrows(IOException.class, () -> CompiledRuleset.of(
+                    ByteBuffer.wrap(bytes.clone()).putInt(18, Integer.MAX_VALUE), CODEC));
+            Files.write(file, new byte[] {1, 2, 3});
+            assertThrows(IOException.class, () -> CompiledRuleset.map(file, CODEC));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    @Order(31)
+    void sampleMerger() {
+        final Sample<BImpl> expected = new Sample<>();
+        final SampleMerger<BImpl> merger = new SampleMerger<>();
+        for (int i = 1; i <= 3; i++) {
+            final MCVirtualSpace<BImpl> space = randomSpace(new Bounds(0, 0, 0, 3, 3, 3), 29 + i);
+            final Sample<BImpl> sample = space.generatePieces(1);
+            merger.add(sample, i);
+            for (int scale = 0; scale < i; scale++) {
+                expected.addAll(sample);
+            }
+        }
+        assertEquals(expected, merger.toSample());
+        assertEquals(expected.getTotalWeight(), merger.toSample().getTotalWeight());
+        assertEquals(expected, merger.compile(CODEC).toSample());
+        assertThrows(IllegalArgumentException.class, () -> merger.add(expected, 0));
+    }
+
+    @Test
+    @Order(32)
+    void sampleMinimizer() {
+        final MCVirtualSpace<BImpl> space = randomSpace(new Bounds(0, 0, 0, 4, 4, 4), 31);
+        final Sample<BImpl> sample = space.generatePieces(1, false, true);
+        assertEquals(sample, SampleMinimizer.prune(sample));
+
+        // these leaves are not the LEAVES of the space, they only exist as a neighbor of that piece, so nothing can be
+        // placed next to it, and then nothing can be placed next to the stone expecting it
+        final Piece.Locked<BImpl> stone = new Piece<>(1, STONE).lock(),
+                leaves = new Piece<>(1, new BImpl(BImpl.Material.OAK_LEAVES)).lock();
+        final PieceNeighbors<BImpl> dead = new PieceNeighbors<>(stone);
+        dead.put(Face.TOP, leaves.asOptional());
+        final PieceNeighbors<BImpl> deadToo = new PieceNeighbors<>(new Piece<>(1, AIR).lock());
+        deadToo.put(Face.BOTTOM, stone.asOptional());
+        deadToo.put(Face.TOP, leaves.asOptional());
+        final Sample<BImpl> withDead = new Sample<>(sample);
+        withDead.add(dead.lock(), 3);
+        withDead.add(deadToo.lock());
+        final Sample<BImpl> pruned = SampleMinimizer.prune(withDead);
+        assertEquals(sample, pruned);
+        assertEquals(sample.getTotalWeight(), pruned.getTotalWeight());
+
+        final Sample<BImpl> vertical = SampleMinimizer.projectOnFaces(sample, List.of(Face.TOP, Face.BOTTOM));
+        assertTrue(vertical.size() < sample.size());
+        assertEquals(sample.getTotalWeight(), vertical.getTotalWeight());
+        for (PieceNeighbors.Locked<BImpl> pieceNeighbors : vertical) {
+            assertEquals(Set.of(Face.TOP, Face.BOTTOM), pieceNeighbors.keySet());
+        }
+        assertEquals(sample, SampleMinimizer.minimize(sample));
+        // minimizing must not make the wave ignore edge and corner faces
+        final Sample<BImpl> allFaces = space.generatePieces(1, false, true, Face.getAllFaces());
+        assertEquals(allFaces, SampleMinimizer.minimize(allFaces));
+    }
+
+    @Test
+    @Order(33)
+    void pieceWave() throws Wave.GenerationFailedException {
+        final MCVirtualSpace<BImpl> sampleSource = new MCVirtualSpace<>(new Bounds(0, 0, 0, 4, 0, 2), AIR);
+        sampleSource.set(LEAVES, 0, 0, 1);
+        sampleSource.set(STONE, 1, 0, 1);
+        sampleSource.set(LEAVES, 1, 0, 2);
+        sampleSource.set(LEAVES, 2, 0, 2);
+        sampleSource.set(LEAVES, 3, 0, 2);
+        sampleSource.set(STONE, 3, 0, 1);
+        sampleSource.set(LEAVES, 4, 0, 1);
+        final Sample<BImpl> sample = sampleSource.generatePieces(1);
+        final Bounds bounds = new Bounds(0, 0, 0, 11, 0, 11);
+        for (PieceWave<BImpl> wave : List.of(new PieceWave<>(sample, bounds, true, 42),
+                new PieceWave<>(CompiledRuleset.compile(sample, CODEC), bounds, true, 42))) {
+            wave.collapseAll();
+            final AdjacencyRules rules = wave.getWave().getRules();
+            assertEquals(3, rules.getPatternCount());
+            for (Coords coords : bounds) {
+                final int pattern = wave.getWave().getPattern(coords.x(), coords.y(), coords.z());
+                assertNotEquals(-1, pattern);
+                for (Face face : Face.getCartesianFaces()) {
+                    final Coords neighbor = face.addTo(coords.x(), coords.y(), coords.z());
+                    final int neighborPattern = wave.getWave().getPattern(Math.floorMod(neighbor.x(), 12),
+                            0, Math.floorMod(neighbor.z(), 12));
+                    assertTrue(rules.isAllowed(pattern, face, neighborPattern));
+                }
+            }
+            final MCVirtualSpace<BImpl> result = wave.toSpace();
+            assertEquals(bounds, result.getBounds());
+            assertEquals(wave.getPiece(3, 0, 4).get(0, 0, 0), result.get(3, 0, 4));
+        }
+
+        // a piece that is only a neighbor is not a state of the wave
+        final Piece.Locked<BImpl> onlyNeighbor = new Piece<>(1, new BImpl(BImpl.Material.STONE)).lock();
+        final PieceNeighbors<BImpl> withOnlyNeighbor = new PieceNeighbors<>(new Piece<>(1, AIR).lock());
+        withOnlyNeighbor.put(Face.NORTH, onlyNeighbor.asOptional());
+        final Sample<BImpl> withUnusedPiece = new Sample<>(sample);
+        withUnusedPiece.add(withOnlyNeighbor.lock());
+        for (PieceWave<BImpl> wave : List.of(new PieceWave<>(withUnusedPiece, bounds, true, 42),
+                new PieceWave<>(CompiledRuleset.compile(withUnusedPiece, CODEC), bounds, true, 42))) {
+            assertEquals(3, wave.getWave().getRules().getPatternCount());
+            wave.collapseAll();
+            for (Coords coords : bounds) {
+                assertNotSame(onlyNeighbor, wave.getPiece(coords.x(), coords.y(), coords.z()));
+            }
+        }
+    }
+
+    @Test
+    @Order(34)
+    void overlappingModel() throws Wave.GenerationFailedException {
+        final MCVirtualSpace<BImpl> input = new MCVirtualSpace<>(new Bounds(0, 0, 0, 5, 0, 5), AIR);
+        for (int x = 0; x <= 5; x++) {
+            input.set(STONE, x, 0, 2);
+            input.set(LEAVES, 2, 0, x);
+        }
+        final OverlappingModel<BImpl> model = new OverlappingModel<>(input, 2, false);
+        final Set<Piece.Locked<BImpl>> patterns = new HashSet<>();
+        int totalWeight = 0;
+        for (int id = 0; id < model.getPatternCount(); id++) {
+            patterns.add(model.getPattern(id));
+            totalWeight += (int) model.getRules().getWeight(id);
+        }
+        assertEquals(model.getPatternCount(), patterns.size());
+        // each window gives between 1 and 8 orientations
+        assertTrue(36 < totalWeight && totalWeight <= 36 * 8);
+        final Bounds bounds = new Bounds(0, 0, 0, 15, 0, 15);
+        final MCVirtualSpace<BImpl> output = model.generate(bounds, true, 7);
+        assertEquals(bounds, output.getBounds());
+        final PieceExtractor<BImpl> windows = new PieceExtractor<>(output, 2);
+        for (Coords coords : bounds) {
+            assertTrue(patterns.contains(windows.getPieceAt(coords.x(), coords.y(), coords.z())));
+        }
+    }
+
+    @Test
+    @Order(35)
+    void diagonalNeighbors() throws Wave.GenerationFailedException {
+        final MCVirtualSpace<BImpl> space = new MCVirtualSpace<>(new Bounds(0, 0, 0, 5, 0, 5), AIR);
+        for (int x = 0; x <= 5; x++) {
+            space.set(STONE, x, 0, x); // a diagonal line
+            space.set(LEAVES, x, 0, (x + 3) % 6);
+        }
+        assertEquals(space.generatePieces(1, false, true),
+                space.generatePieces(1, false, true, Face.getCartesianFaces()));
+        final Sample<BImpl> sample = space.generatePieces(1, false, true, Face.getAllFaces());
+        for (PieceNeighbors.Locked<BImpl> pieceNeighbors : sample) {
+            assertEquals(26, pieceNeighbors.size());
+            if (pieceNeighbors.getCenterPiece().get(0, 0, 0) == STONE) {
+                // the line continues on one of the diagonals
+                assertTrue(pieceNeighbors.get(Face.NORTH_EAST).orElseThrow().get(0, 0, 0) == STONE
+                        || pieceNeighbors.get(Face.NORTH_WEST).orElseThrow().get(0, 0, 0) == STONE);
+            }
+        }
+
+        final Interner<PieceNeighbors.Locked<?>> pool = new Interner<>();
+        final Sample<BImpl> scopedSample = space.generatePieces(1, false, true, Face.getAllFaces(), pool);
+        assertEquals(sample.size(), scopedSample.size());
+        for (PieceNeighbors.Locked<BImpl> pieceNeighbors : scopedSample) {
+            assertSame(pool, pieceNeighbors.getPool());
+        }
+
+        // a Wave enforces every face of its sample, so the collapsed cells must agree on the diagonals too
+        final Bounds bounds = new Bounds(0, 0, 0, 11, 0, 11);
+        @Nullable Wave.GenerationFailedException lastException = null;
+        boolean collapsed = false;
+        for (int seed = 0; seed < 8 && !collapsed; seed++) {
+            final Wave<BImpl> fullWave = new Wave<>(sample, bounds, true, seed);
+            try {
+                fullWave.collapseAll();
+            } catch (Wave.GenerationFailedException e) {
+                lastException = e;
+                continue;
+            }
+            collapsed = true;
+            for (Coords coords : bounds) {
+                final PieceNeighbors.Locked<BImpl> cell = fullWave.getWave().get(coords.x(), 0, coords.z()).peek();
+                for (Face face : Face.getAllFaces()) {
+                    final PieceNeighbors.Locked<BImpl> neighbor = fullWave.getWave().get(
+                            Math.floorMod(coords.x() + face.getModX(), 12), 0,
+                            Math.floorMod(coords.z() + face.getModZ(), 12)).peek();
+                    assertSame(cell.get(face).orElseThrow(), neighbor.getCenterPiece(), coords + " " + face);
+                }
+            }
+        }
+        if (!collapsed) fail("The wave has failed to collapse after 8 attempts", lastException);
+
+        final PieceWave<BImpl> wave = new PieceWave<>(sample, bounds, true, 3, Face.getAllFaces());
+        wave.collapseAll();
+        final AdjacencyRules rules = wave.getWave().getRules();
+        assertEquals(26, rules.getFaces().size());
+        for (Coords coords : bounds) {
+            final int pattern = wave.getWave().getPattern(coords.x(), 0, coords.z());
+            for (Face face : Face.getAllFaces()) {
+                final int neighbor = wave.getWave().getPattern(Math.floorMod(coords.x() + face.getModX(), 12), 0,
+                        Math.floorMod(coords.z() + face.getModZ(), 12));
+                assertTrue(rules.isAllowed(pattern, face, neighbor));
+            }
+        }
+
+        final OverlappingModel<BImpl> model = new OverlappingModel<>(space, 2, false, Face.getAllFaces());
+        final MCVirtualSpace<BImpl> output = model.generate(bounds, true, 5);
+        final Set<Piece.Locked<BImpl>> patterns = new HashSet<>();
+        for (int id = 0; id < model.getPatternCount(); id++) {
+            patterns.add(model.getPattern(id));
+        }
+        final PieceExtractor<BImpl> windows = new PieceExtractor<>(output, 2);
+        for (Coords coords : bounds) {
+            assertTrue(patterns.contains(windows.getPieceAt(coords.x(), coords.y(), coords.z())));
+        }
+    }
+
+    @Test
+    @Order(36)
+    void weightedSetOpenAddressing() {
+        final WeightedSet<Integer> set = new WeightedSet<>();
+        final Map<Integer, Integer> expected = new HashMap<>();
+        final Random random = new Random(36);
+        for (int i = 0; i < 20_000; i++) {
+            final int element = random.nextInt(500);
+            switch (random.nextInt(4)) {
+                case 0, 1 -> {
+                    final int weight = random.nextInt(5) + 1;
+                    set.add(element, weight);
+                    expected.merge(element, weight, Integer::sum);
+                }
+                case 2 -> assertEquals(expected.remove(element) != null, set.remove(element));
+                default -> {
+                    final int weight = expected.getOrDefault(element, 0);
+                    if (weight == 0) continue;
+                    assertEquals(weight - 1, set.removeWeight(element, 1));
+                    if (weight == 1) expected.remove(element);
+                    else expected.put(element, weight - 1);
+                }
+            }
+        }
+        assertEquals(expected.size(), set.size());
+        assertEquals(expected.values().stream().mapToInt(Integer::intValue).sum(), set.getTotalWeight());
+        assertEquals(expected.hashCode(), set.hashCode());
+        final Map<Integer, Integer> seen = new HashMap<>();
+        final WeightedSet<Integer>.Cursor cursor = set.cursor();
+        while (cursor.advance()) {
+            assertNull(seen.put(cursor.key(), cursor.weight()));
+        }
+        assertFalse(cursor.advance());
+        assertEquals(expected, seen);
+        for (int element = 0; element < 500; element++) {
+            assertEquals(expected.getOrDefault(element, 0), set.getWeight(element));
+            assertEquals(expected.containsKey(element), set.contains(element));
+        }
+
+        final WeightedSet<Integer> copy = new WeightedSet<>(set);
+        assertEquals(set, copy);
+        copy.removeIf(element -> element % 2 == 0);
+        expected.keySet().removeIf(element -> element % 2 == 0);
+        assertEquals(expected.keySet(), new HashSet<>(copy));
+        assertThrows(ConcurrentModificationException.class, () -> {
+            for (int element : copy) copy.add(element + 1000);
+        });
+        assertThrows(IllegalStateException.class, () -> set.cursor().key());
+    }
+
+    @Test
+    @Order(37)
+    void fenwickWeightedSet() {
+        final FenwickWeightedSet<Integer> set = new FenwickWeightedSet<>();
+        final Random random = new Random(37);
+        for (int i = 0; i < 5_000; i++) {
+            final int element = random.nextInt(200);
+            switch (random.nextInt(3)) {
+                case 0 -> set.add(element, random.nextInt(4));
+                case 1 -> set.remove(element);
+                default -> {
+                    if (set.getWeight(element) > 0) set.removeWeight(element, 1);
+                }
+            }
+            if (set.getTotalWeight() > 0) assertTrue(set.getWeight(set.weightedChoose(random)) > 0);
+        }
+        assertEquals(new WeightedSet<>(set), set);
+
+        set.clear();
+        set.add(1, 10);
+        set.add(2, 0);
+        set.add(3, 30);
+        set.add(4, 60);
+        set.remove(1);
+        set.add(5, 10); // may take the slot of 1
+        set.simplify();
+        assertEquals(10, set.getTotalWeight());
+        final Map<Integer, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 10_000; i++) {
+            counts.merge(set.weightedChoose(random), 1, Integer::sum);
+        }
+        assertNull(counts.get(2));
+        assertEquals(1000, counts.get(5), 150);
+        assertEquals(3000, counts.get(3), 250);
+        assertEquals(6000, counts.get(4), 250);
+        assertThrows(IllegalArgumentException.class, () -> set.add(5, -2));
+        assertThrows(IllegalArgumentException.class, () -> set.add(6, -1));
+        final FenwickWeightedSet<Integer>.Cursor cursor = set.cursor();
+        assertTrue(cursor.advance());
+        final int weightBefore = cursor.weight();
+        assertThrows(IllegalArgumentException.class, () -> cursor.setWeight(-1));
+        assertEquals(weightBefore, cursor.weight());
+        final Map.Entry<Integer, Integer> entry = set.elementsAndWeightsIterator().next();
+        assertThrows(IllegalArgumentException.class, () -> entry.setValue(-3));
+        // nothing was modified by the refused weights
+        assertEquals(1, set.getWeight(5));
+        assertFalse(set.contains(6));
+        assertEquals(10, set.getTotalWeight());
+        assertEquals(new WeightedSet<>(set), set);
+        for (int i = 0; i < 1_000; i++) {
+            assertNotEquals(2, set.weightedChoose(random));
+        }
+    }
+
+    @Test
+    @Order(38)
+    void sampleIndexes() {
+        final MCVirtualSpace<BImpl> space = randomSpace(new Bounds(0, 0, 0, 5, 2, 5), 38);
+        final Random random = new Random(38);
+        final Sample<BImpl> sample = space.generatePieces(2, false, true);
+        final Sample<BImpl> indexed = new Sample<>(sample, true);
+        assertTrue(indexed.isIndexed());
+        assertFalse(sample.isIndexed());
+        assertEquals(sample, indexed);
+
+        final List<PieceNeighbors.Locked<BImpl>> all = new ArrayList<>(sample);
+        final List<Piece.Locked<BImpl>> pieces = new ArrayList<>(sample.getCenterPieces());
+        for (int i = 0; i < all.size() / 2; i++) {
+            final PieceNeighbors.Locked<BImpl> removed = all.get(random.nextInt(all.size()));
+            sample.remove(removed);
+            indexed.remove(removed);
+            final PieceNeighbors.Locked<BImpl> added = all.get(random.nextInt(all.size()));
+            sample.add(added, 3);
+            indexed.add(added, 3);
+        }
+        for (int i = 0; i < 3; i++) {
+            assertEquals(sample.getCenterPieces(), indexed.getCenterPieces());
+            for (Piece.Locked<BImpl> piece : pieces) {
+                assertEquals(sample.getNeighborsFor(piece), indexed.getNeighborsFor(piece));
+                assertEquals(sample.centerPiecesContains(piece), indexed.centerPiecesContains(piece));
+                for (Face face : Face.getCartesianFaces()) {
+                    assertEquals(sample.acceptsAt(face, piece), indexed.acceptsAt(face, piece));
+                }
+            }
+            final Piece.Locked<BImpl> kept = pieces.get(i);
+            assertEquals(sample.retainAllWithCenterPiece(kept), indexed.retainAllWithCenterPiece(kept));
+            assertEquals(sample, indexed);
+        }
+        // a copy of an indexed sample is indexed too
+        final Sample<BImpl> copy = new Sample<>(indexed);
+        assertTrue(copy.isIndexed());
+        assertEquals(indexed.getCenterPieces(), copy.getCenterPieces());
+        assertFalse(new Sample<>(sample).isIndexed());
+        indexed.clear();
+        assertFalse(indexed.centerPiecesContains(pieces.get(2)));
+        assertTrue(indexed.getCenterPieces().isEmpty());
+    }
+
+    @Test
+    @Order(39)
+    void frozenImmutableSample() {
+        final MCVirtualSpace<BImpl> space = randomSpace(new Bounds(0, 0, 0, 5, 2, 5), 39);
+        final Random random = new Random(39);
+        final Sample<BImpl> sample = space.generatePieces(2, false, true);
+        sample.add(sample.peek(), 4); // so that not every weight is the same
+        final ImmutableSample<BImpl> immutable = sample.immutable();
+        assertEquals(sample, immutable);
+        assertEquals(immutable, sample);
+        assertEquals(sample.hashCode(), immutable.hashCode());
+        assertEquals(sample.getTotalWeight(), immutable.getTotalWeight());
+        assertEquals(sample, immutable.mutable());
+        assertEquals(sample, new Sample<>(immutable, true));
+
+        for (int index = 0; index < immutable.size(); index++) {
+            final PieceNeighbors.Locked<BImpl> element = immutable.get(index);
+            assertEquals(index, immutable.indexOf(element));
+            assertEquals(sample.getWeight(element), immutable.getWeightAt(index));
+            assertEquals(sample.getWeight(element), immutable.getWeight(element));
+        }
+        final Map<PieceNeighbors.Locked<BImpl>, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 10 * immutable.getTotalWeight(); i++) {
+            counts.merge(immutable.weightedChoose(random), 1, Integer::sum);
+        }
+        assertEquals(immutable.size(), counts.size());
+
+        final Sample<BImpl> subset = immutable.getNeighborsFor(sample.peek().getCenterPiece());
+        final long[] bitset = immutable.toBitset(subset);
+        final Sample<BImpl> fromBitset = immutable.fromBitset(bitset);
+        assertEquals(subset.size(), fromBitset.size());
+        for (PieceNeighbors.Locked<BImpl> element : subset) {
+            assertEquals(sample.getWeight(element), fromBitset.getWeight(element));
+        }
+        assertEquals(sample, immutable.fromBitset(immutable.fullBitset()));
+        assertThrows(UnsupportedOperationException.class, () -> immutable.add(sample.peek(), 1));
+        assertThrows(UnsupportedOperationException.class, () -> immutable.iterator().remove());
+    }
+
+    /**
+     * @return a space of air where each block has a chance of 1/3 to be stone and 1/3 to be leaves
+     */
+    private static MCVirtualSpace<BImpl> randomSpace(Bounds bounds, long seed) {
+        final MCVirtualSpace<BImpl> space = new MCVirtualSpace<>(bounds, AIR);
+        final Random random = new Random(seed);
+        for (Coords coords : bounds) {
+            final int r = random.nextInt(3);
+            if (r != 0) space.set(r == 1 ? STONE : LEAVES, coords.x(), coords.y(), coords.z());
+        }
+        return space;
+    }
+
+    private static <B> BlockSource<B> countingReads(BlockSource<B> source, int[] reads) {
+        return new BlockSource<>() {
+            @Override
+            public @NotNull Bounds getBounds() {
+                return source.getBounds();
+            }
+
+            @Override
+            public @NotNull B @NotNull [] readLayer(int x) throws IOException {
+                reads[0]++;
+                return source.readLayer(x);
+            }
+        };
+    }
+}